@@ -0,0 +1,301 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import scout.Action;
+import scout.AppState;
+import scout.Path;
+import scout.PathStep;
+import scout.Widget;
+
+/**
+ * Creates deep copies of app states, widgets and paths by copying their fields.
+ *
+ * Every object is copied once per clone operation. References to the same
+ * object, e.g. widgets that share a next state or a path step, point to the
+ * same copy afterwards, and cycles in the state graph are preserved.
+ */
+public class AppStateCloner {
+
+    private static final Field ACTION_TIMESTAMP = findField(Action.class, "timestamp");
+
+    private final Map<Object, Object> copies = new IdentityHashMap<>();
+
+    public static AppState copy(AppState state) {
+        return new AppStateCloner().cloneState(state);
+    }
+
+    public static Widget copy(Widget widget) {
+        return new AppStateCloner().cloneWidget(widget);
+    }
+
+    public static Path copy(Path path) {
+        return new AppStateCloner().clonePath(path);
+    }
+
+    public AppState cloneState(AppState state) {
+        if (state == null) {
+            return null;
+        }
+        AppState copy = (AppState) copies.get(state);
+        if (copy != null) {
+            return copy;
+        }
+
+        copy = new AppState(state.getId(), state.getBookmark());
+        copies.put(state, copy);
+
+        copy.getProductVersions().addAll(state.getProductVersions());
+        copy.setIteration(state.getIteration());
+
+        List<Path> paths = new ArrayList<>(state.getPaths().size());
+        for (Path path : state.getPaths()) {
+            paths.add(clonePath(path));
+        }
+        copy.setPaths(paths);
+
+        for (Widget widget : state.getAllWidgets()) {
+            copy.addWidget(cloneWidget(widget));
+        }
+
+        for (String key : state.getMetadataKeys()) {
+            copy.putMetadata(key, copyValue(state.getMetadata(key)));
+        }
+
+        return copy;
+    }
+
+    public Widget cloneWidget(Widget widget) {
+        if (widget == null) {
+            return null;
+        }
+        Widget copy = (Widget) copies.get(widget);
+        if (copy != null) {
+            return copy;
+        }
+
+        // The state behind an unloaded lazy widget is not read for the copy.
+        copy = LazyWidget.isUnloaded(widget) ? ((LazyWidget) widget).newDeferredCopy() : new Widget();
+        copies.put(widget, copy);
+
+        // Action
+        copy.setId(widget.getId());
+        copyTimestamp(widget, copy);
+        copy.setDeltaTime(widget.getDeltaTime());
+        copy.setTimesManual(widget.getTimesManual());
+        copy.setTimesAuto((int) widget.getTimesAuto());
+        copy.setTimesAutoFailed(widget.getTimesAutoFailed());
+        copy.setWeight(widget.getWeight());
+        copy.setComment(widget.getComment());
+        copy.setCreatedByPlugin(widget.getCreatedByPlugin());
+        copy.setToolbarAction(widget.isToolbarAction());
+        copy.setInvalidMetadata(new ArrayList<>(widget.getInvalidMetadata()));
+        copy.setIgnoredMetadata(copyIgnoredMetadata(widget));
+
+        // MoveAction
+        copy.setImagePath(widget.getImagePath());
+        copy.setDeltaX(widget.getDeltaX());
+        copy.setDeltaY(widget.getDeltaY());
+        copy.setLocation(copyPoint(widget.getLocation()));
+        copy.setLocationArea(copyRectangle(widget.getLocationArea()));
+
+        // Widget
+        copy.setWidgetType(widget.getWidgetType());
+        copy.setWidgetSubtype(widget.getWidgetSubtype());
+        copy.setWidgetStatus(widget.getWidgetStatus());
+        copy.setWidgetVisibility(widget.getWidgetVisibility());
+        copy.setPriority(widget.getPriority());
+        copy.setCreatedDate(copyDate(widget.getCreatedDate()));
+        copy.setReportedDate(copyDate(widget.getReportedDate()));
+        copy.setResolvedDate(copyDate(widget.getResolvedDate()));
+        copy.setCreatedBy(widget.getCreatedBy());
+        copy.setReportedBy(widget.getReportedBy());
+        copy.setResolvedBy(widget.getResolvedBy());
+        copy.setCreatedProductVersion(widget.getCreatedProductVersion());
+        copy.setReportedProductVersion(widget.getReportedProductVersion());
+        copy.setResolvedProductVersion(widget.getResolvedProductVersion());
+        copy.setValidExpression(widget.getValidExpression());
+        copy.setText(widget.getText());
+        copy.setSteps(widget.getSteps());
+        copy.setReportedText(widget.getReportedText());
+        copy.setResolvedText(widget.getResolvedText());
+
+        for (String key : widget.getMetadataKeys()) {
+            copy.putMetadata(key, copyValue(widget.getMetadata(key)));
+        }
+
+        if (!LazyWidget.isUnloaded(copy)) {
+            copy.setNextState(cloneState(widget.getNextState()));
+        }
+
+        return copy;
+    }
+
+    public Path clonePath(Path path) {
+        if (path == null) {
+            return null;
+        }
+        Path copy = (Path) copies.get(path);
+        if (copy != null) {
+            return copy;
+        }
+
+        copy = new Path(path.getId());
+        copies.put(path, copy);
+
+        copy.setSessionId(path.getSessionId());
+        copy.setProductVersion(path.getProductVersion());
+        copy.setTester(path.getTester());
+        copy.setSessionLog(path.getSessionLog());
+        copy.setCreatedDate(copyDate(path.getCreatedDate()));
+        copy.setSessionDuration(path.getSessionDuration());
+
+        List<PathStep> steps = new ArrayList<>(path.getPathSteps().size());
+        for (PathStep step : path.getPathSteps()) {
+            steps.add(clonePathStep(step));
+        }
+        copy.setPathSteps(steps);
+
+        return copy;
+    }
+
+    private PathStep clonePathStep(PathStep step) {
+        if (step == null) {
+            return null;
+        }
+        PathStep copy = (PathStep) copies.get(step);
+        if (copy == null) {
+            copy = new PathStep(cloneWidget(step.getAction()));
+            copies.put(step, copy);
+        }
+        return copy;
+    }
+
+    /**
+     * Copies a meta-data value. Immutable values are shared, known Scout and
+     * collection types are copied structurally, anything else that is serializable
+     * falls back to a copy by Java serialization.
+     */
+    @SuppressWarnings("unchecked")
+    protected Object copyValue(Object value) {
+        if (value == null
+            || value instanceof String
+            || value instanceof Number
+            || value instanceof Boolean
+            || value instanceof Character
+            || value instanceof Enum) {
+            return value;
+        }
+        if (value instanceof Widget) {
+            return cloneWidget((Widget) value);
+        }
+        if (value instanceof AppState) {
+            return cloneState((AppState) value);
+        }
+        if (value instanceof Path) {
+            return clonePath((Path) value);
+        }
+        if (value instanceof Date) {
+            return copyDate((Date) value);
+        }
+        if (value instanceof Rectangle) {
+            return copyRectangle((Rectangle) value);
+        }
+        if (value instanceof Point) {
+            return copyPoint((Point) value);
+        }
+        if (value instanceof HashMap) {
+            Map<Object, Object> copy = new HashMap<>();
+            ((Map<Object, Object>) value).forEach((k, v) -> copy.put(k, copyValue(v)));
+            return copy;
+        }
+        if (value instanceof ArrayList) {
+            List<Object> copy = new ArrayList<>();
+            ((List<Object>) value).forEach(v -> copy.add(copyValue(v)));
+            return copy;
+        }
+        if (value instanceof Serializable) {
+            return copyBySerialization((Serializable) value);
+        }
+        return value;
+    }
+
+    @SuppressWarnings("unchecked")
+    protected static <T extends Serializable> T copyBySerialization(T original) {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bos);
+            out.writeObject(original);
+
+            ByteArrayInputStream bis = new ByteArrayInputStream(bos.toByteArray());
+            ObjectInputStream in = new ObjectInputStream(bis);
+            return (T) in.readObject();
+        } catch (Exception e) {
+            throw new IllegalStateException("Unable to copy object of " + original.getClass(), e);
+        }
+    }
+
+    private static List<String> copyIgnoredMetadata(Widget widget) {
+        List<String> ignored = new ArrayList<>();
+        for (String key : widget.getMetadataKeys()) {
+            if (widget.isIgnoredMetadata(key)) {
+                ignored.add(key);
+            }
+        }
+        return ignored;
+    }
+
+    private static Date copyDate(Date date) {
+        return date == null ? null : new Date(date.getTime());
+    }
+
+    private static Rectangle copyRectangle(Rectangle rectangle) {
+        return rectangle == null ? null : new Rectangle(rectangle);
+    }
+
+    private static Point copyPoint(Point point) {
+        return point == null ? null : new Point(point);
+    }
+
+    /**
+     * The creation timestamp of an action has no setter,
+     * so it is copied by reflection if the runtime allows it.
+     */
+    private static void copyTimestamp(Widget widget, Widget copy) {
+        if (ACTION_TIMESTAMP == null) {
+            return;
+        }
+        try {
+            ACTION_TIMESTAMP.setLong(copy, widget.getTimestamp());
+        } catch (IllegalAccessException e) {
+            // keep the timestamp of the copy
+        }
+    }
+
+    private static Field findField(Class<?> type, String name) {
+        try {
+            Field field = type.getDeclaredField(name);
+            field.setAccessible(true);
+            return field;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,254 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Logger that hands messages to a background thread, so merges do not wait for console output.
+ *
+ * Messages are kept in a ring buffer of fixed size with preallocated entries. If the
+ * buffer is full, the oldest message is dropped and the number of dropped messages is
+ * printed with the next message. A message is given as a pattern with "{}" placeholders
+ * and up to two arguments, which are only turned into text on the background thread,
+ * so a disabled level costs a comparison and no strings are built.
+ */
+public class AsyncLogger {
+
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    private static final DateTimeFormatter TIMESTAMP =
+        DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+    private static final int BATCH_SIZE = 64;
+
+    private final PrintStream out;
+    private final Entry[] ring;
+    private final Thread thread;
+    private volatile Level level;
+
+    private long head = 0;
+    private long tail = 0;
+    private long printed = 0;
+    private long droppedCount = 0;
+    private long reportedDroppedCount = 0;
+
+    /**
+     * @param capacity number of messages that can wait for the background thread
+     */
+    public AsyncLogger(PrintStream out, int capacity, Level level) {
+        this.out = out;
+        this.level = level;
+        ring = new Entry[capacity];
+        for (int i = 0; i < capacity; i++) {
+            ring[i] = new Entry();
+        }
+        thread = new Thread(this::printMessages, "multi-user-log");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+
+    public void setLevel(Level level) {
+        this.level = level;
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.ordinal() >= this.level.ordinal();
+    }
+
+    public void debug(String pattern, Object arg) {
+        append(Level.DEBUG, pattern, 1, arg, null);
+    }
+
+    public void debug(String pattern, Object arg, Object otherArg) {
+        append(Level.DEBUG, pattern, 2, arg, otherArg);
+    }
+
+    public void info(String message) {
+        append(Level.INFO, message, 0, null, null);
+    }
+
+    public void warn(String message) {
+        append(Level.WARN, message, 0, null, null);
+    }
+
+    public void error(String message) {
+        append(Level.ERROR, message, 0, null, null);
+    }
+
+    public void log(Level level, String message) {
+        append(level, message, 0, null, null);
+    }
+
+    /**
+     * @param pattern message with a "{}" for each argument
+     */
+    public void log(Level level, String pattern, Object arg, Object otherArg) {
+        append(level, pattern, 2, arg, otherArg);
+    }
+
+    private void append(Level level, String pattern, int argCount, Object arg, Object otherArg) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        long timeMillis = System.currentTimeMillis();
+        synchronized (this) {
+            if (head - tail == ring.length) {
+                tail++;
+                droppedCount++;
+            }
+            ring[(int) (head % ring.length)].set(timeMillis, level, pattern, argCount, arg, otherArg);
+            head++;
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return number of messages dropped because the buffer was full
+     */
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * Waits until the messages logged before are printed.
+     * @return false if they were not printed within the timeout
+     */
+    public synchronized boolean flush(long timeoutMillis) {
+        long target = head;
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (printed < target) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0 || !thread.isAlive()) {
+                return false;
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops the background thread after the waiting messages are printed.
+     */
+    public void close() {
+        flush(1000);
+        thread.interrupt();
+    }
+
+    private void printMessages() {
+        Entry[] batch = new Entry[BATCH_SIZE];
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            batch[i] = new Entry();
+        }
+        StringBuilder line = new StringBuilder(256);
+
+        try {
+            while (true) {
+                int count = 0;
+                long dropped;
+                long taken;
+                synchronized (this) {
+                    while (head == tail) {
+                        wait();
+                    }
+                    while (tail < head && count < BATCH_SIZE) {
+                        Entry entry = ring[(int) (tail % ring.length)];
+                        batch[count++].copyFrom(entry);
+                        entry.clear();
+                        tail++;
+                    }
+                    dropped = droppedCount - reportedDroppedCount;
+                    reportedDroppedCount = droppedCount;
+                    taken = tail;
+                }
+
+                if (dropped > 0) {
+                    line.setLength(0);
+                    appendPrefix(line, System.currentTimeMillis(), Level.WARN);
+                    line.append("Dropped ").append(dropped).append(" log messages");
+                    out.println(line);
+                }
+                for (int i = 0; i < count; i++) {
+                    line.setLength(0);
+                    batch[i].format(line);
+                    batch[i].clear();
+                    out.println(line);
+                }
+                out.flush();
+
+                synchronized (this) {
+                    printed = taken;
+                    notifyAll();
+                }
+            }
+        } catch (InterruptedException e) {
+            // Logger closed
+        }
+    }
+
+    private static void appendPrefix(StringBuilder line, long timeMillis, Level level) {
+        line.append('[');
+        TIMESTAMP.formatTo(Instant.ofEpochMilli(timeMillis), line);
+        line.append("] ");
+        if (level != Level.INFO) {
+            line.append(level).append(' ');
+        }
+    }
+
+    private static class Entry {
+        private long timeMillis;
+        private Level level;
+        private String pattern;
+        private int argCount;
+        private Object arg;
+        private Object otherArg;
+
+        private void set(long timeMillis, Level level, String pattern, int argCount, Object arg, Object otherArg) {
+            this.timeMillis = timeMillis;
+            this.level = level;
+            this.pattern = pattern;
+            this.argCount = argCount;
+            this.arg = arg;
+            this.otherArg = otherArg;
+        }
+
+        private void copyFrom(Entry other) {
+            set(other.timeMillis, other.level, other.pattern, other.argCount, other.arg, other.otherArg);
+        }
+
+        /**
+         * Releases the references, so logged objects are not kept alive by the buffer.
+         */
+        private void clear() {
+            set(0, null, null, 0, null, null);
+        }
+
+        private void format(StringBuilder line) {
+            appendPrefix(line, timeMillis, level);
+            int start = 0;
+            int argIndex = 0;
+            int placeholder;
+            while (argIndex < argCount && (placeholder = pattern.indexOf("{}", start)) >= 0) {
+                line.append(pattern, start, placeholder).append(argIndex == 0 ? arg : otherArg);
+                start = placeholder + 2;
+                argIndex++;
+            }
+            line.append(pattern, start, pattern.length());
+        }
+    }
+}
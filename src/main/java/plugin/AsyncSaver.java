@@ -0,0 +1,107 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Runs saves one after another on a background thread.
+ *
+ * At most one save runs and at most one waits. A save submitted while another
+ * one is still waiting replaces the waiting one, since it saves a newer state
+ * of the same session, and both callers get the same future.
+ * The future completes with the result of the save, or exceptionally if the save failed with an exception.
+ */
+public class AsyncSaver {
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final ThreadPoolExecutor executor;
+    private PendingSave pending = null;
+    private CompletableFuture<Boolean> lastSave = CompletableFuture.completedFuture(true);
+    private int coalescedCount = 0;
+
+    public AsyncSaver() {
+        executor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new ArrayBlockingQueue<>(1), runnable -> {
+            Thread thread = new Thread(runnable, "multi-user-save");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @param save runs on the background thread and returns true if done
+     * @return completes when the save, or a newer save that replaced it, is done
+     */
+    public synchronized CompletableFuture<Boolean> submit(BooleanSupplier save) {
+        if (pending != null) {
+            pending.save = save;
+            coalescedCount++;
+            return pending.future;
+        }
+
+        PendingSave pendingSave = new PendingSave(save);
+        executor.execute(() -> run(pendingSave));
+        pending = pendingSave;
+        lastSave = pendingSave.future;
+        return pendingSave.future;
+    }
+
+    /**
+     * @return the future of the latest submitted save, completed if nothing was submitted yet
+     */
+    public synchronized CompletableFuture<Boolean> getLastSave() {
+        return lastSave;
+    }
+
+    /**
+     * @return true if no save is running or waiting
+     */
+    public synchronized boolean isIdle() {
+        return lastSave.isDone();
+    }
+
+    /**
+     * @return number of saves that were replaced by a newer save before they started
+     */
+    public synchronized int getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    /**
+     * Lets the running and the waiting save finish, but accepts no new ones.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private void run(PendingSave pendingSave) {
+        BooleanSupplier save;
+        synchronized (this) {
+            save = pendingSave.save;
+            pending = null;
+        }
+
+        try {
+            pendingSave.future.complete(save.getAsBoolean());
+        } catch (Throwable e) {
+            pendingSave.future.completeExceptionally(e);
+        }
+    }
+
+    private static class PendingSave {
+        private final CompletableFuture<Boolean> future = new CompletableFuture<>();
+        private BooleanSupplier save;
+
+        private PendingSave(BooleanSupplier save) {
+            this.save = save;
+        }
+    }
+}
@@ -0,0 +1,495 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import java.awt.Rectangle;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+import plugin.MultiUser.DiffType;
+import scout.AppState;
+import scout.Widget;
+import scout.Widget.WidgetStatus;
+import scout.Widget.WidgetSubtype;
+import scout.Widget.WidgetType;
+import scout.Widget.WidgetVisibility;
+
+/**
+ * Compact binary snapshot of the shared state model.
+ *
+ * The snapshot holds the same content that is restored when a state model is
+ * read from JSON: the widgets with their fields and parsed meta-data, and the
+ * state tree with the diff annotations. Every string is stored once in a string
+ * table and referenced by index, numbers are stored as variable length integers
+ * and enums by their ordinal.
+ *
+ * Layout: magic, format version, model version, string table, widget table, state tree.
+ * The model version comes right after the magic, so it can be read without the rest.
+ */
+public class BinaryStateFormat {
+
+    private static final byte[] MAGIC = {'M', 'U', 'S', 'M'};
+    private static final int FORMAT_VERSION = 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final List<String> WIDGET_META_DATA = Arrays.asList(
+        "type", "title", "xpath", "name", "href", "id", "text", "tag", "class");
+
+    private static final int HAS_CREATED_DATE = 1;
+    private static final int HAS_RESOLVED_DATE = 1 << 1;
+    private static final int HAS_REPORTED_DATE = 1 << 2;
+    private static final int HAS_LOCATION = 1 << 3;
+    private static final int HAS_DELETED_AT = 1 << 4;
+
+    private static final WidgetType[] WIDGET_TYPES = WidgetType.values();
+    private static final WidgetSubtype[] WIDGET_SUBTYPES = WidgetSubtype.values();
+    private static final WidgetStatus[] WIDGET_STATUSES = WidgetStatus.values();
+    private static final WidgetVisibility[] WIDGET_VISIBILITIES = WidgetVisibility.values();
+    private static final DiffType[] DIFF_TYPES = DiffType.values();
+
+    // ********************************************
+    // * Write                                    *
+    // ********************************************
+
+    public static void write(OutputStream out, AppState state, long modelVersion) throws IOException {
+        Writer writer = new Writer();
+        writer.collectWidgets(state);
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream(BUFFER_SIZE);
+        DataOutputStream bodyOut = new DataOutputStream(body);
+        writer.writeWidgets(bodyOut);
+        writer.writeState(bodyOut, state);
+        bodyOut.flush();
+
+        DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+        dataOut.write(MAGIC);
+        writeVarLong(dataOut, FORMAT_VERSION);
+        writeVarLong(dataOut, modelVersion);
+        writer.writeStringTable(dataOut);
+        body.writeTo(dataOut);
+        dataOut.flush();
+    }
+
+    /**
+     * Collects the strings and widgets of a state tree and writes them by index.
+     */
+    static class Writer {
+        private final Map<String, Integer> strings = new LinkedHashMap<>();
+        private final Map<String, Integer> widgetIndex = new HashMap<>();
+        private final List<Widget> widgets = new ArrayList<>();
+
+        void collectWidgets(AppState state) {
+            List<Widget> visibleWidgets = state.getVisibleWidgets();
+            for (Widget widget : visibleWidgets) {
+                AppState nextState = widget.getNextState();
+                if (nextState != null && !nextState.isHome()) {
+                    collectWidgets(nextState);
+                }
+                addWidget(widget);
+                if (widget.getMetadata("matching_widget") instanceof Widget) {
+                    addWidget((Widget) widget.getMetadata("matching_widget"));
+                }
+            }
+        }
+
+        private void addWidget(Widget widget) {
+            if (!widgetIndex.containsKey(widget.getId())) {
+                widgetIndex.put(widget.getId(), widgets.size());
+                widgets.add(widget);
+            }
+        }
+
+        private void writeWidgets(DataOutput out) throws IOException {
+            writeVarLong(out, widgets.size());
+            for (Widget widget : widgets) {
+                writeWidget(out, widget);
+            }
+        }
+
+        List<Widget> getWidgets() {
+            return widgets;
+        }
+
+        int getWidgetIndex(Widget widget) {
+            return widgetIndex.get(widget.getId());
+        }
+
+        /**
+         * @return the strings in the order of their index, starting with index 1
+         */
+        Iterable<String> getStrings() {
+            return strings.keySet();
+        }
+
+        void writeWidget(DataOutput out, Widget widget) throws IOException {
+            writeString(out, widget.getId());
+            writeString(out, widget.getText());
+            writeString(out, widget.getCreatedBy());
+            writeString(out, widget.getCreatedByPlugin());
+            writeString(out, widget.getComment());
+            writeString(out, widget.getReportedText());
+            writeString(out, widget.getReportedBy());
+            writeVarLong(out, widget.getWidgetType().ordinal());
+            writeVarLong(out, widget.getWidgetSubtype().ordinal());
+            writeVarLong(out, widget.getWidgetStatus().ordinal());
+            writeVarLong(out, widget.getWidgetVisibility().ordinal());
+            out.writeDouble(widget.getWeight());
+
+            Rectangle location = widget.getLocationArea();
+            Long deletedAt = JSONStateParser.parseEpochMilli(widget.getMetadata(MultiUser.DELETED_AT));
+            int flags = 0;
+            flags |= widget.getCreatedDate() != null ? HAS_CREATED_DATE : 0;
+            flags |= widget.getResolvedDate() != null ? HAS_RESOLVED_DATE : 0;
+            flags |= widget.getReportedDate() != null ? HAS_REPORTED_DATE : 0;
+            flags |= location != null ? HAS_LOCATION : 0;
+            flags |= deletedAt != null ? HAS_DELETED_AT : 0;
+            writeVarLong(out, flags);
+
+            if (widget.getCreatedDate() != null) {
+                writeVarLong(out, widget.getCreatedDate().getTime());
+            }
+            if (widget.getResolvedDate() != null) {
+                writeVarLong(out, widget.getResolvedDate().getTime());
+            }
+            if (widget.getReportedDate() != null) {
+                writeVarLong(out, widget.getReportedDate().getTime());
+            }
+            if (location != null) {
+                writeVarLong(out, location.x);
+                writeVarLong(out, location.y);
+                writeVarLong(out, location.width);
+                writeVarLong(out, location.height);
+            }
+            if (deletedAt != null) {
+                writeVarLong(out, deletedAt);
+            }
+
+            List<String> keys = new ArrayList<>(WIDGET_META_DATA.size());
+            for (String key : WIDGET_META_DATA) {
+                if (widget.getMetadata(key) != null) {
+                    keys.add(key);
+                }
+            }
+            writeVarLong(out, keys.size());
+            for (String key : keys) {
+                writeString(out, key);
+                writeString(out, String.valueOf(widget.getMetadata(key)));
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        void writeState(DataOutput out, AppState state) throws IOException {
+            writeString(out, state.getId());
+            writeString(out, state.getBookmark());
+
+            List<Widget> visibleWidgets = state.getVisibleWidgets();
+            writeVarLong(out, visibleWidgets.size());
+            for (Widget widget : visibleWidgets) {
+                writeVarLong(out, widgetIndex.get(widget.getId()));
+
+                Object matchingWidget = widget.getMetadata("matching_widget");
+                if (matchingWidget instanceof Widget) {
+                    writeVarLong(out, widgetIndex.get(((Widget) matchingWidget).getId()) + 1);
+                } else {
+                    writeVarLong(out, 0);
+                }
+
+                AppState nextState = widget.getNextState();
+                if (nextState == null || nextState.isHome()) {
+                    out.writeBoolean(false);
+                } else {
+                    out.writeBoolean(true);
+                    writeState(out, nextState);
+                }
+            }
+
+            Object diff = state.getMetadata(MultiUser.META_DATA_DIFF);
+            if (diff instanceof Map) {
+                Map<String, DiffType> diffMap = (Map<String, DiffType>) diff;
+                writeVarLong(out, diffMap.size() + 1);
+                for (Map.Entry<String, DiffType> entry : diffMap.entrySet()) {
+                    writeString(out, entry.getKey());
+                    writeVarLong(out, entry.getValue().ordinal());
+                }
+            } else {
+                writeVarLong(out, 0);
+            }
+        }
+
+        /**
+         * Index 0 stands for null, the strings of the table start at 1.
+         */
+        void writeString(DataOutput out, String value) throws IOException {
+            if (value == null) {
+                writeVarLong(out, 0);
+                return;
+            }
+            Integer index = strings.get(value);
+            if (index == null) {
+                index = strings.size() + 1;
+                strings.put(value, index);
+            }
+            writeVarLong(out, index);
+        }
+
+        void writeStringTable(DataOutput out) throws IOException {
+            writeVarLong(out, strings.size());
+            for (String value : strings.keySet()) {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                writeVarLong(out, bytes.length);
+                out.write(bytes);
+            }
+        }
+    }
+
+    // ********************************************
+    // * Read                                     *
+    // ********************************************
+
+    public static AppState readStateModel(String filePath) throws IOException {
+        try (InputStream in = new FileInputStream(filePath)) {
+            return read(in);
+        }
+    }
+
+    public static AppState read(InputStream in) throws IOException {
+        DataInputStream dataIn = new DataInputStream(new BufferedInputStream(in, BUFFER_SIZE));
+        readHeader(dataIn);
+        return new Reader(dataIn).read();
+    }
+
+    /**
+     * Reads the version of the state model without reading the rest of the file.
+     */
+    public static long readModelVersion(String filePath) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(filePath))) {
+            return readHeader(in);
+        }
+    }
+
+    /**
+     * @return the model version
+     */
+    private static long readHeader(DataInput in) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(MAGIC, magic)) {
+            throw new IOException("Not a binary state model file");
+        }
+        long formatVersion = readVarLong(in);
+        if (formatVersion != FORMAT_VERSION) {
+            throw new IOException("Unsupported binary state model version " + formatVersion);
+        }
+        return readVarLong(in);
+    }
+
+    static class Reader {
+        private final DataInput in;
+        private String[] strings;
+        private Widget[] widgets;
+
+        Reader(DataInput in) {
+            this.in = in;
+        }
+
+        private AppState read() throws IOException {
+            readStringTable();
+
+            widgets = new Widget[readLength()];
+            for (int i = 0; i < widgets.length; i++) {
+                widgets[i] = readWidget();
+            }
+
+            return readState();
+        }
+
+        void readStringTable() throws IOException {
+            strings = new String[readLength() + 1];
+            for (int i = 1; i < strings.length; i++) {
+                byte[] bytes = new byte[readLength()];
+                in.readFully(bytes);
+                strings[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+        }
+
+        /**
+         * Reads the state tree with widgets that were read from elsewhere, in the order of their index.
+         */
+        AppState readState(Widget[] widgets) throws IOException {
+            this.widgets = widgets;
+            return readState();
+        }
+
+        private Widget readWidget() throws IOException {
+            Widget widget = new Widget();
+            BinaryStateFormat.readWidget(in, widget, index -> strings[index]);
+            return widget;
+        }
+
+        private AppState readState() throws IOException {
+            AppState state = new AppState(readString(), readString());
+
+            int widgetCount = readLength();
+            List<Widget> visibleWidgets = new ArrayList<>(widgetCount);
+            for (int i = 0; i < widgetCount; i++) {
+                Widget widget = widgets[readLength()];
+                int matchingWidget = readLength();
+                if (matchingWidget > 0) {
+                    widget.putMetadata("matching_widget", widgets[matchingWidget - 1]);
+                }
+                if (in.readBoolean()) {
+                    widget.setNextState(readState());
+                }
+                visibleWidgets.add(widget);
+            }
+            state.addWidgets(visibleWidgets, WidgetVisibility.VISIBLE, null);
+
+            int diffCount = readLength();
+            if (diffCount > 0) {
+                Map<String, DiffType> diff = new HashMap<>();
+                for (int i = 1; i < diffCount; i++) {
+                    diff.put(readString(), DIFF_TYPES[readLength()]);
+                }
+                state.putMetadata(MultiUser.META_DATA_DIFF, diff);
+            }
+            return state;
+        }
+
+        private String readString() throws IOException {
+            return strings[readLength()];
+        }
+
+        private int readLength() throws IOException {
+            return BinaryStateFormat.readLength(in);
+        }
+    }
+
+    /**
+     * Reads the fields of a widget written by {@link Writer#writeWidget(DataOutput, Widget)}.
+     * @param strings resolves indexes of the string table
+     */
+    static void readWidget(DataInput in, Widget widget, IntFunction<String> strings) throws IOException {
+        widget.setId(strings.apply(readLength(in)));
+        widget.setText(strings.apply(readLength(in)));
+        widget.setCreatedBy(strings.apply(readLength(in)));
+        widget.setCreatedByPlugin(strings.apply(readLength(in)));
+        widget.setComment(strings.apply(readLength(in)));
+        widget.setReportedText(strings.apply(readLength(in)));
+        widget.setReportedBy(strings.apply(readLength(in)));
+        widget.setWidgetType(WIDGET_TYPES[readLength(in)]);
+        widget.setWidgetSubtype(WIDGET_SUBTYPES[readLength(in)]);
+        widget.setWidgetStatus(WIDGET_STATUSES[readLength(in)]);
+        widget.setWidgetVisibility(WIDGET_VISIBILITIES[readLength(in)]);
+        widget.setWeight(in.readDouble());
+
+        int flags = readLength(in);
+        if ((flags & HAS_CREATED_DATE) != 0) {
+            widget.setCreatedDate(new Date(readVarLong(in)));
+        }
+        if ((flags & HAS_RESOLVED_DATE) != 0) {
+            widget.setResolvedDate(new Date(readVarLong(in)));
+        }
+        if ((flags & HAS_REPORTED_DATE) != 0) {
+            widget.setReportedDate(new Date(readVarLong(in)));
+        }
+        if ((flags & HAS_LOCATION) != 0) {
+            int x = (int) readVarLong(in);
+            int y = (int) readVarLong(in);
+            int width = (int) readVarLong(in);
+            int height = (int) readVarLong(in);
+            widget.setLocationArea(new Rectangle(x, y, width, height));
+        }
+        if ((flags & HAS_DELETED_AT) != 0) {
+            widget.putMetadata(MultiUser.DELETED_AT, readVarLong(in));
+        }
+
+        int metadataCount = readLength(in);
+        for (int i = 0; i < metadataCount; i++) {
+            widget.putMetadata(strings.apply(readLength(in)), strings.apply(readLength(in)));
+        }
+    }
+
+    /**
+     * Writes a single widget together with its own string table, so it can be read without a snapshot.
+     */
+    static byte[] encodeWidget(Widget widget) throws IOException {
+        Writer writer = new Writer();
+        ByteArrayOutputStream body = new ByteArrayOutputStream(256);
+        DataOutputStream bodyOut = new DataOutputStream(body);
+        writer.writeWidget(bodyOut, widget);
+        bodyOut.flush();
+
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream(body.size() * 2);
+        DataOutputStream encodedOut = new DataOutputStream(encoded);
+        writer.writeStringTable(encodedOut);
+        body.writeTo(encodedOut);
+        encodedOut.flush();
+        return encoded.toByteArray();
+    }
+
+    static Widget decodeWidget(byte[] encoded) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded));
+        Reader reader = new Reader(in);
+        reader.readStringTable();
+        return reader.readWidget();
+    }
+
+    static int readLength(DataInput in) throws IOException {
+        long value = readVarLong(in);
+        if (value < 0 || value > Integer.MAX_VALUE) {
+            throw new IOException("Invalid length in binary state model: " + value);
+        }
+        return (int) value;
+    }
+
+    // ********************************************
+    // * Variable length integers                 *
+    // ********************************************
+
+    /**
+     * Writes a zig-zag encoded number with 7 bits per byte, so small positive
+     * and negative numbers take one byte.
+     */
+    protected static void writeVarLong(DataOutput out, long value) throws IOException {
+        long zigZag = (value << 1) ^ (value >> 63);
+        while ((zigZag & ~0x7FL) != 0) {
+            out.writeByte((int) ((zigZag & 0x7F) | 0x80));
+            zigZag >>>= 7;
+        }
+        out.writeByte((int) zigZag);
+    }
+
+    protected static long readVarLong(DataInput in) throws IOException {
+        long zigZag = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            zigZag |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return (zigZag >>> 1) ^ -(zigZag & 1);
+            }
+        }
+        throw new EOFException("Malformed variable length number");
+    }
+}
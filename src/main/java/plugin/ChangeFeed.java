@@ -0,0 +1,112 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.simple.parser.ParseException;
+
+import scout.AppState;
+
+/**
+ * Reads the session changes that other testers append to the {@link DeltaLog},
+ * starting where the last read stopped, so that only new records are parsed.
+ *
+ * The feed also keeps the latency from writing changes to the shared model until
+ * they are visible in the local session. The write time of a record is the modification
+ * time of the file it was read from, which is the time of the last append before the read.
+ */
+public class ChangeFeed {
+
+    private final DeltaLog deltaLog;
+    private long offset;
+    private long lastWriteMillis = 0;
+
+    private long deliveredCount = 0;
+    private long lastLatencyMillis = 0;
+    private long maxLatencyMillis = 0;
+    private long totalLatencyMillis = 0;
+
+    /**
+     * @param offset position in the log up to which the records are already known
+     */
+    public ChangeFeed(DeltaLog deltaLog, long offset) {
+        this.deltaLog = deltaLog;
+        this.offset = offset;
+    }
+
+    public synchronized long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Continues after the given offset, e.g. after the log was read together with the shared model.
+     */
+    public synchronized void skipTo(long offset) {
+        this.offset = offset;
+    }
+
+    /**
+     * @return true if the log changed since the last read
+     */
+    public synchronized boolean hasNewRecords() {
+        return deltaLog.length() != offset;
+    }
+
+    /**
+     * @return the records appended since the last read, or null if the log was folded into
+     * the shared model or replaced meanwhile, so that the records can not be continued
+     */
+    public synchronized List<AppState> readNewRecords() throws IOException, ParseException {
+        long length = deltaLog.length();
+        if (length < offset) {
+            return null;
+        }
+        lastWriteMillis = deltaLog.lastModified();
+
+        List<AppState> records = new ArrayList<>();
+        offset = deltaLog.readRecords(offset, records);
+        return records;
+    }
+
+    /**
+     * @return time of the last write before the last read, in epoch milliseconds
+     */
+    public synchronized long getLastWriteMillis() {
+        return lastWriteMillis;
+    }
+
+    /**
+     * Records that changes written at the given time are now visible in the session.
+     */
+    public synchronized void recordVisible(long writtenAtMillis) {
+        long latency = Math.max(0, System.currentTimeMillis() - writtenAtMillis);
+        deliveredCount++;
+        lastLatencyMillis = latency;
+        maxLatencyMillis = Math.max(maxLatencyMillis, latency);
+        totalLatencyMillis += latency;
+    }
+
+    /**
+     * @return number of times that remote changes were made visible in the session
+     */
+    public synchronized long getDeliveredCount() {
+        return deliveredCount;
+    }
+
+    public synchronized long getLastLatencyMillis() {
+        return lastLatencyMillis;
+    }
+
+    public synchronized long getMaxLatencyMillis() {
+        return maxLatencyMillis;
+    }
+
+    public synchronized long getAverageLatencyMillis() {
+        return deliveredCount == 0 ? 0 : totalLatencyMillis / deliveredCount;
+    }
+}
@@ -0,0 +1,338 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.json.simple.parser.ParseException;
+
+import plugin.MultiUser.DiffType;
+import scout.AppState;
+import scout.Widget;
+
+/**
+ * Append-only log of session changes next to the shared model.
+ *
+ * Every record is one line with an annotated session state tree in the
+ * format of the state model files, cut down to the widgets the merge needs:
+ * widgets that were created in the session and the unchanged widgets on
+ * the way to a state with created or deleted widgets.
+ * Deleted widgets are only listed in the diff annotations of their state,
+ * which also keeps the time they were deleted.
+ * The log is always written in UTF-8.
+ * Replaying the records in order with {@link MultiUser#mergeStateChanges(AppState, AppState)}
+ * gives the same shared model as merging every session right away.
+ *
+ * To fold the log into the shared model, it is first moved aside to a file stamped with
+ * the model version that will contain its records, see {@link #moveToFold(long)}.
+ * Until the shared model has that version, the moved records are replayed like the log;
+ * afterwards they are skipped, even if the moved file could not be deleted.
+ */
+public class DeltaLog {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String FOLD_SUFFIX = ".fold";
+
+    private final File file;
+
+    public DeltaLog(String filePath) {
+        this.file = new File(filePath);
+    }
+
+    public String getFilePath() {
+        return file.getPath();
+    }
+
+    public boolean exists() {
+        return file.exists();
+    }
+
+    /**
+     * @return size of the log in bytes, 0 if there is no log
+     */
+    public long length() {
+        return file.length();
+    }
+
+    /**
+     * @return time of the last change of the log in epoch milliseconds, 0 if there is no log
+     */
+    public long lastModified() {
+        return file.lastModified();
+    }
+
+    /**
+     * Appends the changes of an annotated session state tree.
+     * @return false if the session did not change anything, nothing is written then
+     */
+    public boolean append(AppState annotatedSessionState) throws IOException {
+        Set<Widget> changedWidgets = Collections.newSetFromMap(new IdentityHashMap<>());
+        Map<AppState, Boolean> visited = new IdentityHashMap<>();
+        collectChangedWidgets(annotatedSessionState, changedWidgets, visited);
+        if (changedWidgets.isEmpty() && !hasChanges(annotatedSessionState)) {
+            return false;
+        }
+
+        Long deletedAt = Instant.now().toEpochMilli();
+        for (AppState state : visited.keySet()) {
+            if (getDiff(state).containsValue(DiffType.DELETED)) {
+                state.putMetadata(MultiUser.DELETED_AT, deletedAt);
+            }
+        }
+
+        try (FileOutputStream out = new FileOutputStream(file, true);
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE)) {
+            JSONStateWriter.write(writer, annotatedSessionState, changedWidgets::contains);
+            writer.write('\n');
+            writer.flush();
+            out.getChannel().force(true);
+        }
+        return true;
+    }
+
+    /**
+     * @return the recorded session changes in the order they were appended
+     */
+    public List<AppState> readRecords() throws IOException, ParseException {
+        List<AppState> records = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8), BUFFER_SIZE)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                AppState record = readRecord(line, reader);
+                if (record != null) {
+                    records.add(record);
+                }
+            }
+        } catch (FileNotFoundException e) {
+            return records;
+        }
+        return records;
+    }
+
+    /**
+     * Reads the records that were appended after the given offset.
+     * A last record without line end is still being written and left for the next read.
+     * @param offset position in the log, in bytes, where a record starts
+     * @param records receives the records in the order they were appended
+     * @return offset after the last complete record
+     */
+    public long readRecords(long offset, List<AppState> records) throws IOException, ParseException {
+        try (FileInputStream in = new FileInputStream(file)) {
+            in.getChannel().position(offset);
+            BufferedInputStream bufferedIn = new BufferedInputStream(in, BUFFER_SIZE);
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = bufferedIn.read()) != -1) {
+                if (b != '\n') {
+                    line.write(b);
+                    continue;
+                }
+                offset += line.size() + 1;
+                String record = new String(line.toByteArray(), StandardCharsets.UTF_8);
+                line.reset();
+                if (!record.trim().isEmpty()) {
+                    records.add(JSONStateReader.read(new StringReader(record)));
+                }
+            }
+        } catch (FileNotFoundException e) {
+            return offset;
+        }
+        return offset;
+    }
+
+    private static AppState readRecord(String line, BufferedReader reader) throws IOException, ParseException {
+        try {
+            return JSONStateReader.read(new StringReader(line));
+        } catch (ParseException e) {
+            // Only the last record can be incomplete, if a client stopped while appending it.
+            if (reader.readLine() == null) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return number of records in the log
+     */
+    public int countRecords() throws IOException {
+        int count = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8), BUFFER_SIZE)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    count++;
+                }
+            }
+        } catch (FileNotFoundException e) {
+            return 0;
+        }
+        return count;
+    }
+
+    /**
+     * Removes the log after its records were folded into the shared model.
+     */
+    public boolean delete() {
+        return !file.exists() || file.delete();
+    }
+
+    /**
+     * Moves the log aside before its records are written into the shared model with the given version.
+     * @return false if there is no log
+     */
+    public boolean moveToFold(long modelVersion) throws IOException {
+        if (!file.exists()) {
+            return false;
+        }
+        File target = new File(file.getParentFile(), file.getName() + "." + modelVersion + FOLD_SUFFIX);
+        for (int n = 1; target.exists(); n++) {
+            target = new File(file.getParentFile(), file.getName() + "." + modelVersion + "-" + n + FOLD_SUFFIX);
+        }
+        try {
+            Files.move(file.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(file.toPath(), target.toPath());
+        }
+        return true;
+    }
+
+    /**
+     * @return the logs with records that a shared model of the given version does not contain,
+     * in the order they must be replayed: the logs moved aside for a later version, then this log
+     */
+    public List<DeltaLog> getUnfoldedLogs(long modelVersion) {
+        List<DeltaLog> logs = new ArrayList<>();
+        for (FoldedLog foldedLog : listFoldedLogs()) {
+            if (foldedLog.modelVersion > modelVersion) {
+                logs.add(new DeltaLog(foldedLog.file.getPath()));
+            }
+        }
+        if (file.exists()) {
+            logs.add(this);
+        }
+        return logs;
+    }
+
+    /**
+     * Deletes the logs that were moved aside for a shared model up to the given version.
+     * @return false if a log could not be deleted
+     */
+    public boolean deleteFolded(long modelVersion) {
+        boolean isDeleted = true;
+        for (FoldedLog foldedLog : listFoldedLogs()) {
+            if (foldedLog.modelVersion <= modelVersion) {
+                isDeleted &= foldedLog.file.delete() || !foldedLog.file.exists();
+            }
+        }
+        return isDeleted;
+    }
+
+    private List<FoldedLog> listFoldedLogs() {
+        Pattern pattern = Pattern.compile(Pattern.quote(file.getName()) + "\\.(\\d+)(?:-(\\d+))?" + Pattern.quote(FOLD_SUFFIX));
+        File folder = file.getAbsoluteFile().getParentFile();
+        File[] files = folder == null ? null : folder.listFiles((dir, name) -> name.endsWith(FOLD_SUFFIX));
+        if (files == null) {
+            return Collections.emptyList();
+        }
+
+        List<FoldedLog> foldedLogs = new ArrayList<>();
+        for (File candidate : files) {
+            Matcher matcher = pattern.matcher(candidate.getName());
+            if (matcher.matches()) {
+                foldedLogs.add(new FoldedLog(candidate, Long.parseLong(matcher.group(1)), 
+                    matcher.group(2) == null ? 0 : Integer.parseInt(matcher.group(2))));
+            }
+        }
+        foldedLogs.sort(Comparator.comparingLong((FoldedLog f) -> f.modelVersion).thenComparingInt(f -> f.sequence));
+        return foldedLogs;
+    }
+
+    /**
+     * Collects the widgets that belong into a record.
+     * @return true if the state or a state behind it has created or deleted widgets
+     */
+    private static boolean collectChangedWidgets(AppState state, Set<Widget> changedWidgets, Map<AppState, Boolean> visited) {
+        Boolean isChanged = visited.get(state);
+        if (isChanged != null) {
+            return isChanged;
+        }
+        visited.put(state, false);
+
+        isChanged = hasChanges(state);
+        Map<String, DiffType> diff = getDiff(state);
+        for (Widget widget : state.getVisibleWidgets()) {
+            boolean isWidgetChanged = diff.get(widget.getId()) != DiffType.NO_CHANGES;
+
+            // A state that was never loaded in the session can not have changed.
+            AppState nextState = LazyWidget.isUnloaded(widget) ? null : widget.getNextState();
+            if (nextState != null && !nextState.isHome()) {
+                isWidgetChanged |= collectChangedWidgets(nextState, changedWidgets, visited);
+            }
+
+            if (isWidgetChanged) {
+                changedWidgets.add(widget);
+                isChanged = true;
+            }
+        }
+
+        visited.put(state, isChanged);
+        return isChanged;
+    }
+
+    private static boolean hasChanges(AppState state) {
+        return getDiff(state).values().stream().anyMatch(diffType -> diffType != DiffType.NO_CHANGES);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, DiffType> getDiff(AppState state) {
+        Object diff = state.getMetadata(MultiUser.META_DATA_DIFF);
+        if (diff instanceof Map) {
+            return (Map<String, DiffType>) diff;
+        }
+        return Collections.emptyMap();
+    }
+
+    private static class FoldedLog {
+        private final File file;
+        private final long modelVersion;
+        private final int sequence;
+
+        private FoldedLog(File file, long modelVersion, int sequence) {
+            this.file = file;
+            this.modelVersion = modelVersion;
+            this.sequence = sequence;
+        }
+    }
+}
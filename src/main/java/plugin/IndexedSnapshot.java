@@ -0,0 +1,463 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+import plugin.MultiUser.DiffType;
+import scout.AppState;
+import scout.Widget;
+import scout.Widget.WidgetVisibility;
+
+/**
+ * Snapshot of the shared state model with an index, for reading the state tree on demand.
+ *
+ * The file is memory-mapped and only the root state is read when it is opened.
+ * Widgets come as {@link LazyWidget}s, the state behind a widget is read the first
+ * time its next state is requested. Strings and widgets are stored with the
+ * encoding of {@link BinaryStateFormat} and read once on first use.
+ *
+ * Layout: header, string index, strings, widget index, widgets, states.
+ * The header holds the model version and the offsets of the sections. The index
+ * sections hold the offset of every string and widget within its section.
+ * States are written children first, every visible widget of a state
+ * refers to its next state by offset within the states section.
+ * Files over 2 GB can not be mapped and are not supported.
+ */
+public class IndexedSnapshot {
+
+    private static final byte[] MAGIC = {'M', 'U', 'S', 'I'};
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 48;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final DiffType[] DIFF_TYPES = DiffType.values();
+
+    private final ByteBuffer buffer;
+    private final long modelVersion;
+    private final int stringIndexOffset;
+    private final int stringsOffset;
+    private final int widgetIndexOffset;
+    private final int widgetsOffset;
+    private final int statesOffset;
+    private final int rootStateOffset;
+
+    private final String[] strings;
+    private final LazyWidget[] widgets;
+    private int loadedStates = 0;
+    private BiConsumer<Widget, AppState> loadListener = null;
+
+    private IndexedSnapshot(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE) {
+            throw new IOException("Not an indexed state model file");
+        }
+        byte[] magic = new byte[MAGIC.length];
+        ByteBufferInput header = new ByteBufferInput(buffer, 0);
+        header.readFully(magic);
+        if (!Arrays.equals(MAGIC, magic)) {
+            throw new IOException("Not an indexed state model file");
+        }
+        int formatVersion = header.readInt();
+        if (formatVersion != FORMAT_VERSION) {
+            throw new IOException("Unsupported indexed state model version " + formatVersion);
+        }
+        this.modelVersion = header.readLong();
+        this.strings = new String[header.readInt() + 1];
+        this.widgets = new LazyWidget[header.readInt()];
+        this.stringIndexOffset = header.readInt();
+        this.stringsOffset = header.readInt();
+        this.widgetIndexOffset = header.readInt();
+        this.widgetsOffset = header.readInt();
+        this.statesOffset = header.readInt();
+        this.rootStateOffset = header.readInt();
+    }
+
+    // ********************************************
+    // * Write                                    *
+    // ********************************************
+
+    public static void write(OutputStream out, AppState state, long modelVersion) throws IOException {
+        BinaryStateFormat.Writer writer = new BinaryStateFormat.Writer();
+        writer.collectWidgets(state);
+
+        ByteArrayOutputStream widgets = new ByteArrayOutputStream(BUFFER_SIZE);
+        DataOutputStream widgetsOut = new DataOutputStream(widgets);
+        List<Widget> allWidgets = writer.getWidgets();
+        int[] widgetOffsets = new int[allWidgets.size()];
+        for (int i = 0; i < widgetOffsets.length; i++) {
+            widgetOffsets[i] = widgetsOut.size();
+            writer.writeWidget(widgetsOut, allWidgets.get(i));
+        }
+
+        ByteArrayOutputStream states = new ByteArrayOutputStream(BUFFER_SIZE);
+        DataOutputStream statesOut = new DataOutputStream(states);
+        int rootStateOffset = writeState(writer, statesOut, state, new IdentityHashMap<>());
+
+        ByteArrayOutputStream strings = new ByteArrayOutputStream(BUFFER_SIZE);
+        DataOutputStream stringsOut = new DataOutputStream(strings);
+        List<Integer> stringOffsets = new ArrayList<>();
+        for (String value : writer.getStrings()) {
+            stringOffsets.add(stringsOut.size());
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            BinaryStateFormat.writeVarLong(stringsOut, bytes.length);
+            stringsOut.write(bytes);
+        }
+
+        long stringIndexOffset = HEADER_SIZE;
+        long stringsOffset = stringIndexOffset + 4L * stringOffsets.size();
+        long widgetIndexOffset = stringsOffset + strings.size();
+        long widgetsOffset = widgetIndexOffset + 4L * widgetOffsets.length;
+        long statesOffset = widgetsOffset + widgets.size();
+        if (statesOffset + states.size() > Integer.MAX_VALUE) {
+            throw new IOException("State model is too large for an indexed snapshot");
+        }
+
+        DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+        dataOut.write(MAGIC);
+        dataOut.writeInt(FORMAT_VERSION);
+        dataOut.writeLong(modelVersion);
+        dataOut.writeInt(stringOffsets.size());
+        dataOut.writeInt(widgetOffsets.length);
+        dataOut.writeInt((int) stringIndexOffset);
+        dataOut.writeInt((int) stringsOffset);
+        dataOut.writeInt((int) widgetIndexOffset);
+        dataOut.writeInt((int) widgetsOffset);
+        dataOut.writeInt((int) statesOffset);
+        dataOut.writeInt(rootStateOffset);
+        for (int offset : stringOffsets) {
+            dataOut.writeInt(offset);
+        }
+        strings.writeTo(dataOut);
+        for (int offset : widgetOffsets) {
+            dataOut.writeInt(offset);
+        }
+        widgets.writeTo(dataOut);
+        states.writeTo(dataOut);
+        dataOut.flush();
+    }
+
+    /**
+     * Writes the states behind the widgets first, so that their offsets are known.
+     * @return offset of the state record within the states section
+     */
+    @SuppressWarnings("unchecked")
+    private static int writeState(BinaryStateFormat.Writer writer, DataOutputStream out, AppState state,
+            Map<AppState, Integer> written) throws IOException {
+        Integer writtenOffset = written.get(state);
+        if (writtenOffset != null) {
+            return writtenOffset;
+        }
+
+        List<Widget> visibleWidgets = state.getVisibleWidgets();
+        int[] nextStateOffsets = new int[visibleWidgets.size()];
+        for (int i = 0; i < nextStateOffsets.length; i++) {
+            AppState nextState = visibleWidgets.get(i).getNextState();
+            if (nextState == null || nextState.isHome()) {
+                nextStateOffsets[i] = -1;
+            } else {
+                nextStateOffsets[i] = writeState(writer, out, nextState, written);
+            }
+        }
+
+        int offset = out.size();
+        writer.writeString(out, state.getId());
+        writer.writeString(out, state.getBookmark());
+        BinaryStateFormat.writeVarLong(out, visibleWidgets.size());
+        for (int i = 0; i < nextStateOffsets.length; i++) {
+            Widget widget = visibleWidgets.get(i);
+            BinaryStateFormat.writeVarLong(out, writer.getWidgetIndex(widget));
+
+            Object matchingWidget = widget.getMetadata("matching_widget");
+            if (matchingWidget instanceof Widget) {
+                BinaryStateFormat.writeVarLong(out, writer.getWidgetIndex((Widget) matchingWidget) + 1);
+            } else {
+                BinaryStateFormat.writeVarLong(out, 0);
+            }
+            BinaryStateFormat.writeVarLong(out, nextStateOffsets[i] + 1);
+        }
+
+        Object diff = state.getMetadata(MultiUser.META_DATA_DIFF);
+        if (diff instanceof Map) {
+            Map<String, DiffType> diffMap = (Map<String, DiffType>) diff;
+            BinaryStateFormat.writeVarLong(out, diffMap.size() + 1);
+            for (Map.Entry<String, DiffType> entry : diffMap.entrySet()) {
+                writer.writeString(out, entry.getKey());
+                BinaryStateFormat.writeVarLong(out, entry.getValue().ordinal());
+            }
+        } else {
+            BinaryStateFormat.writeVarLong(out, 0);
+        }
+
+        written.put(state, offset);
+        return offset;
+    }
+
+    // ********************************************
+    // * Read                                     *
+    // ********************************************
+
+    /**
+     * Maps the snapshot file into memory. Nothing but the header is read yet.
+     */
+    public static IndexedSnapshot open(String filePath) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Indexed state model is too large to map: " + channel.size() + " bytes");
+            }
+            return new IndexedSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Reads the version of the state model without mapping the file.
+     */
+    public static long readModelVersion(String filePath) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(filePath))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(MAGIC, magic) || in.readInt() != FORMAT_VERSION) {
+                throw new IOException("Not an indexed state model file");
+            }
+            return in.readLong();
+        }
+    }
+
+    public long getModelVersion() {
+        return modelVersion;
+    }
+
+    /**
+     * @param loadListener called with the widget and the state behind it whenever a state was read on demand
+     */
+    public void setLoadListener(BiConsumer<Widget, AppState> loadListener) {
+        this.loadListener = loadListener;
+    }
+
+    /**
+     * Reads the root state. The states behind its widgets are read on demand.
+     */
+    public synchronized AppState getRootState() {
+        return readState(rootStateOffset);
+    }
+
+    /**
+     * @return number of states read so far
+     */
+    public synchronized int getLoadedStateCount() {
+        return loadedStates;
+    }
+
+    synchronized AppState readState(int offset) {
+        try {
+            ByteBufferInput in = new ByteBufferInput(buffer, statesOffset + offset);
+            AppState state = new AppState(readString(in), readString(in));
+
+            int widgetCount = BinaryStateFormat.readLength(in);
+            List<Widget> visibleWidgets = new ArrayList<>(widgetCount);
+            for (int i = 0; i < widgetCount; i++) {
+                LazyWidget widget = widgetAt(BinaryStateFormat.readLength(in));
+                int matchingWidget = BinaryStateFormat.readLength(in);
+                if (matchingWidget > 0) {
+                    widget.putMetadata("matching_widget", widgetAt(matchingWidget - 1));
+                }
+                widget.deferNextState(this, BinaryStateFormat.readLength(in) - 1);
+                visibleWidgets.add(widget);
+            }
+            state.addWidgets(visibleWidgets, WidgetVisibility.VISIBLE, null);
+
+            int diffCount = BinaryStateFormat.readLength(in);
+            if (diffCount > 0) {
+                Map<String, DiffType> diff = new HashMap<>();
+                for (int i = 1; i < diffCount; i++) {
+                    diff.put(readString(in), DIFF_TYPES[BinaryStateFormat.readLength(in)]);
+                }
+                state.putMetadata(MultiUser.META_DATA_DIFF, diff);
+            }
+            loadedStates++;
+            return state;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    void stateLoaded(LazyWidget widget, AppState nextState) {
+        BiConsumer<Widget, AppState> listener = loadListener;
+        if (listener != null) {
+            listener.accept(widget, nextState);
+        }
+    }
+
+    private LazyWidget widgetAt(int index) throws IOException {
+        LazyWidget widget = widgets[index];
+        if (widget == null) {
+            int offset = buffer.getInt(widgetIndexOffset + 4 * index);
+            widget = new LazyWidget();
+            BinaryStateFormat.readWidget(new ByteBufferInput(buffer, widgetsOffset + offset), widget, this::stringAt);
+            widgets[index] = widget;
+        }
+        return widget;
+    }
+
+    private String readString(DataInput in) throws IOException {
+        return stringAt(BinaryStateFormat.readLength(in));
+    }
+
+    /**
+     * Index 0 stands for null, the strings of the table start at 1.
+     */
+    private String stringAt(int index) {
+        if (index == 0) {
+            return null;
+        }
+        String value = strings[index];
+        if (value == null) {
+            int offset = buffer.getInt(stringIndexOffset + 4 * (index - 1));
+            ByteBufferInput in = new ByteBufferInput(buffer, stringsOffset + offset);
+            try {
+                byte[] bytes = new byte[BinaryStateFormat.readLength(in)];
+                in.readFully(bytes);
+                value = new String(bytes, StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            strings[index] = value;
+        }
+        return value;
+    }
+
+    /**
+     * Reads from a position of the mapped file without moving the position of the shared buffer.
+     */
+    static class ByteBufferInput implements DataInput {
+        private final ByteBuffer buffer;
+
+        ByteBufferInput(ByteBuffer buffer, int position) {
+            this.buffer = buffer.duplicate();
+            // Through Buffer, ByteBuffer.position(int) does not exist before Java 9.
+            ((Buffer) this.buffer).position(position);
+        }
+
+        @Override
+        public void readFully(byte[] b) {
+            buffer.get(b);
+        }
+
+        @Override
+        public void readFully(byte[] b, int off, int len) {
+            buffer.get(b, off, len);
+        }
+
+        @Override
+        public int skipBytes(int n) {
+            int skipped = Math.min(n, buffer.remaining());
+            ((Buffer) buffer).position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public boolean readBoolean() {
+            return buffer.get() != 0;
+        }
+
+        @Override
+        public byte readByte() {
+            return buffer.get();
+        }
+
+        @Override
+        public int readUnsignedByte() {
+            return buffer.get() & 0xFF;
+        }
+
+        @Override
+        public short readShort() {
+            return buffer.getShort();
+        }
+
+        @Override
+        public int readUnsignedShort() {
+            return buffer.getShort() & 0xFFFF;
+        }
+
+        @Override
+        public char readChar() {
+            return buffer.getChar();
+        }
+
+        @Override
+        public int readInt() {
+            return buffer.getInt();
+        }
+
+        @Override
+        public long readLong() {
+            return buffer.getLong();
+        }
+
+        @Override
+        public float readFloat() {
+            return buffer.getFloat();
+        }
+
+        @Override
+        public double readDouble() {
+            return buffer.getDouble();
+        }
+
+        /**
+         * Reads bytes up to the next line end like {@link java.io.DataInputStream#readLine()}, 
+         * each byte as one character.
+         * @return the line or null at the end of the buffer
+         */
+        @Override
+        public String readLine() {
+            if (!buffer.hasRemaining()) {
+                return null;
+            }
+            StringBuilder line = new StringBuilder();
+            while (buffer.hasRemaining()) {
+                char c = (char) (buffer.get() & 0xFF);
+                if (c == '\n') {
+                    break;
+                }
+                if (c == '\r') {
+                    if (buffer.hasRemaining() && buffer.get(buffer.position()) == '\n') {
+                        buffer.get();
+                    }
+                    break;
+                }
+                line.append(c);
+            }
+            return line.toString();
+        }
+
+        @Override
+        public String readUTF() throws IOException {
+            return DataInputStream.readUTF(this);
+        }
+    }
+}
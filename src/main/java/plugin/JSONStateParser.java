@@ -6,6 +6,7 @@ package plugin;
 
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -28,6 +29,9 @@ import scout.Widget.WidgetType;
 import scout.Widget.WidgetVisibility;
 
 public class JSONStateParser {
+
+    private static final List<String> PARSED_WIDGET_META_DATA = Arrays.asList(
+        "type", "title", "xpath", "name", "href", "id", "text", "tag", "class");
     
     // ********************************************
     // * Parse Scout objects to JSONObjects       *
@@ -201,12 +205,13 @@ public class JSONStateParser {
     // ********************************************
 
     public static AppState parseCompleteAppState(JSONObject jsonState) {
-        List<Widget> allWidgets = new LinkedList<>();	
         AppState appState = null;
         
         try {
-            allWidgets = parseWidgets((JSONArray)jsonState.get("all-widgets"));
-            appState = parseState((JSONObject)jsonState.get("state"), allWidgets);
+            ParseContext context = new ParseContext();
+            List<Widget> allWidgets = parseWidgets((JSONArray)jsonState.get("all-widgets"), context);
+            allWidgets.forEach(w -> context.addWidget(w));
+            appState = parseState((JSONObject)jsonState.get("state"), context);
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -215,6 +220,10 @@ public class JSONStateParser {
     }
 
     public static AppState parseState(JSONObject jsonState, List<Widget> allWidgets) {
+        return parseState(jsonState, new ParseContext(allWidgets));
+    }
+
+    public static AppState parseState(JSONObject jsonState, ParseContext context) {
         String id = (String) jsonState.get("state-id");
         String bookmark = (String) jsonState.get("bookmarks");
         JSONArray jsonWidgets = (JSONArray) jsonState.get("visible-widgets");
@@ -224,26 +233,20 @@ public class JSONStateParser {
         while(i.hasNext()) {
             JSONObject item = (JSONObject)i.next();
             String widgetID = (String)item.get("id");
-            Widget widget = allWidgets.stream()
-            .filter(w -> w.getId().equals(widgetID))
-            .findFirst()
-            .orElse(null);
+            Widget widget = context.getWidget(widgetID);
             
             JSONObject jsonMetaData = (JSONObject)item.get("meta-data");
             if (jsonMetaData != null) {
                 String matchingWidgetId = String.valueOf(jsonMetaData.get("matching_widget"));
                 if (matchingWidgetId != null && matchingWidgetId.length() > 0) {
-                    Widget matchingWidget = allWidgets.stream()
-                    .filter(w -> w.getId().equals(matchingWidgetId))
-                    .findFirst()
-                    .orElse(null);
+                    Widget matchingWidget = context.getWidget(matchingWidgetId);
                     widget.putMetadata("matching_widget", matchingWidget);
                 }
             }
             
             JSONObject nextStatJsonObject = (JSONObject)item.get("next-state");
             if (nextStatJsonObject != null) {
-                AppState nextState = parseState(nextStatJsonObject, allWidgets);
+                AppState nextState = parseState(nextStatJsonObject, context);
                 widget.setNextState(nextState);
             }
             visibleWidgets.add(widget);
@@ -252,27 +255,66 @@ public class JSONStateParser {
         AppState state = new AppState(id, bookmark);
         state.addWidgets(visibleWidgets, WidgetVisibility.VISIBLE, null);
 
+        JSONObject jsonStateMetaData = (JSONObject)jsonState.get("meta-data");
+        if (jsonStateMetaData != null && jsonStateMetaData.get(MultiUser.META_DATA_DIFF) instanceof JSONObject) {
+            state.putMetadata(MultiUser.META_DATA_DIFF, parseDiff((JSONObject)jsonStateMetaData.get(MultiUser.META_DATA_DIFF)));
+        }
+        Long deletedAt = jsonStateMetaData == null ? null : parseEpochMilli(jsonStateMetaData.get(MultiUser.DELETED_AT));
+        if (deletedAt != null) {
+            state.putMetadata(MultiUser.DELETED_AT, deletedAt);
+        }
+
         return state;
     }
 
+    protected static Map<String, DiffType> parseDiff(JSONObject jsonDiff) {
+        Map<String, DiffType> diff = new HashMap<>();
+        for (Object key : jsonDiff.keySet()) {
+            DiffType diffType = parseDiffType(jsonDiff.get(key));
+            if (diffType != null) {
+                diff.put((String) key, diffType);
+            }
+        }
+        return diff;
+    }
+
+    protected static DiffType parseDiffType(Object jsonDiffType) {
+        try {
+            return DiffType.valueOf((String) jsonDiffType);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
     public static List<Widget> parseWidgets(JSONArray jsonWidgets) {
+        return parseWidgets(jsonWidgets, new ParseContext());
+    }
+
+    /**
+     * @param context shares repeated strings between the parsed widgets, widgets are not added to it
+     */
+    public static List<Widget> parseWidgets(JSONArray jsonWidgets, ParseContext context) {
         List<Widget> widgets = new ArrayList<>();
         Iterator i = jsonWidgets.iterator();
 
         while (i.hasNext()) {
             JSONObject jsonWidget = (JSONObject) i.next();
-            Widget widget = parseWidget(jsonWidget);
+            Widget widget = parseWidget(jsonWidget, context);
             widgets.add(widget);
         }
         return widgets;
     }
 
     public static Widget parseWidget(JSONObject jsonWidget) {
+        return parseWidget(jsonWidget, new ParseContext());
+    }
+
+    public static Widget parseWidget(JSONObject jsonWidget, ParseContext context) {
         Widget widget = new Widget();
         widget.setId((String)jsonWidget.get("id"));
         widget.setText((String)jsonWidget.get("text"));
-        widget.setCreatedBy((String)jsonWidget.get("created-by"));
-        widget.setCreatedByPlugin((String)jsonWidget.get("created-by-plugin"));
+        widget.setCreatedBy(context.dedup((String)jsonWidget.get("created-by")));
+        widget.setCreatedByPlugin(context.dedup((String)jsonWidget.get("created-by-plugin")));
         widget.setComment((String)jsonWidget.get("comment"));
         widget.setWidgetVisibility(WidgetVisibility.valueOf((String)jsonWidget.get("visibility")));
         
@@ -297,7 +339,7 @@ public class JSONStateParser {
         widget.setWidgetSubtype(WidgetSubtype.valueOf(subType));
 
         widget.setReportedText((String)jsonWidget.get("reported-text"));
-        widget.setReportedBy((String)jsonWidget.get("reported-by"));
+        widget.setReportedBy(context.dedup((String)jsonWidget.get("reported-by")));
 
         JSONObject locRec = (JSONObject)jsonWidget.get("location");
         if (locRec != null) {
@@ -309,19 +351,38 @@ public class JSONStateParser {
         }
 
         JSONObject jsonMetadata = (JSONObject)jsonWidget.get("meta-data");
-        widget.putMetadata("type", (String)jsonMetadata.get("type"));
-        widget.putMetadata("title", (String)jsonMetadata.get("title"));
-        widget.putMetadata("xpath", (String)jsonMetadata.get("xpath"));
-        widget.putMetadata("name", (String)jsonMetadata.get("name"));
-        widget.putMetadata("href", (String)jsonMetadata.get("href"));
-        widget.putMetadata("id", (String)jsonMetadata.get("id"));
-        widget.putMetadata("text", (String)jsonMetadata.get("text"));
-        widget.putMetadata("tag", (String)jsonMetadata.get("tag"));
-        widget.putMetadata("class", (String)jsonMetadata.get("class"));
+        PARSED_WIDGET_META_DATA.forEach(key -> widget.putMetadata(key, context.dedup((String)jsonMetadata.get(key))));
+        widget.putMetadata(MultiUser.DELETED_AT, parseEpochMilli(jsonMetadata.get(MultiUser.DELETED_AT)));
 
         return widget;
     }
 
+    protected static boolean isParsedWidgetMetaData(String key) {
+        return PARSED_WIDGET_META_DATA.contains(key);
+    }
+
+    /**
+     * @return the constant for a parsed meta-data key, so widgets do not keep the key strings of the parser
+     */
+    protected static String getParsedWidgetMetaDataKey(String key) {
+        int index = PARSED_WIDGET_META_DATA.indexOf(key);
+        return index < 0 ? null : PARSED_WIDGET_META_DATA.get(index);
+    }
+
+    /**
+     * Meta-data values are stored as strings, so a timestamp may come as number or as string.
+     */
+    protected static Long parseEpochMilli(Object jsonMilliseconds) {
+        if (jsonMilliseconds instanceof Number) {
+            return ((Number) jsonMilliseconds).longValue();
+        }
+        try {
+            return Long.valueOf((String) jsonMilliseconds);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
     protected static Date parseDate(Object jsonMilliseconds) {
         try {
             return new Date((long) jsonMilliseconds);
@@ -329,4 +390,82 @@ public class JSONStateParser {
             return null;
         }
     }
+
+    /**
+     * State shared by all recursive calls while parsing one complete app state.
+     * Widgets are indexed by their id once, so resolving a widget reference 
+     * in the state tree is a hash lookup instead of a scan over all widgets.
+     *
+     * Meta-data values, tags, class names and author names repeat across many widgets.
+     * The context keeps one instance of each such string, so the widgets of one parse
+     * share them. The pool lives only as long as the parse.
+     */
+    public static class ParseContext {
+        private final Map<String, Widget> widgetsById;
+        private final Map<String, String> strings = new HashMap<>();
+        private int duplicateStrings = 0;
+        private long savedBytes = 0;
+
+        public ParseContext() {
+            widgetsById = new HashMap<>();
+        }
+
+        public ParseContext(List<Widget> allWidgets) {
+            widgetsById = new HashMap<>(Math.max(16, allWidgets.size() * 4 / 3 + 1));
+            allWidgets.forEach(w -> addWidget(w));
+        }
+
+        public void addWidget(Widget widget) {
+            if (widget.getId() != null) {
+                // keep the first widget for an id, like a linear search would
+                widgetsById.putIfAbsent(widget.getId(), widget);
+            }
+        }
+
+        public Widget getWidget(String widgetId) {
+            if (widgetId == null) {
+                return null;
+            }
+            return widgetsById.get(widgetId);
+        }
+
+        /**
+         * @return the first instance of an equal string seen in this parse
+         */
+        public String dedup(String value) {
+            if (value == null) {
+                return null;
+            }
+            String pooled = strings.putIfAbsent(value, value);
+            if (pooled == null) {
+                return value;
+            }
+            duplicateStrings++;
+            savedBytes += estimateStringSize(value);
+            return pooled;
+        }
+
+        /**
+         * @return number of strings that were replaced by an earlier equal string
+         */
+        public int getDuplicateStrings() {
+            return duplicateStrings;
+        }
+
+        /**
+         * @return estimated heap of the replaced strings, which can be garbage collected
+         */
+        public long getSavedBytes() {
+            return savedBytes;
+        }
+
+        /**
+         * String object plus its character array with 2 bytes per char, as on Java 8,
+         * both with 16 bytes of header and padding to 8 bytes.
+         */
+        private static long estimateStringSize(String value) {
+            long arraySize = (16 + 2L * value.length() + 7) / 8 * 8;
+            return 24 + arraySize;
+        }
+    }
 }
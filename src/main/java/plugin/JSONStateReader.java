@@ -0,0 +1,604 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import java.awt.Rectangle;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import plugin.JSONStateParser.ParseContext;
+import plugin.MultiUser.DiffType;
+import scout.AppState;
+import scout.Widget;
+import scout.Widget.WidgetStatus;
+import scout.Widget.WidgetSubtype;
+import scout.Widget.WidgetType;
+import scout.Widget.WidgetVisibility;
+
+/**
+ * Streaming reader for state model files in the format of {@link JSONStateParser}.
+ *
+ * Widgets and app states are created directly from the events of the json-simple
+ * parser, so the model is never held as a tree of JSONObjects in memory.
+ * Widget references of the state tree are resolved against the "all-widgets" array.
+ * If a file lists the state tree before the widgets, the references are resolved
+ * as soon as the widgets are read.
+ */
+public class JSONStateReader {
+
+    public static final String MODEL_VERSION = "model-version";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    public static AppState readStateModel(String filePath) throws IOException, ParseException {
+        try (Reader reader = new BufferedReader(new FileReader(filePath), BUFFER_SIZE)) {
+            return read(reader);
+        }
+    }
+
+    public static AppState readStateModel(String filePath, ParseContext context) throws IOException, ParseException {
+        try (Reader reader = new BufferedReader(new FileReader(filePath), BUFFER_SIZE)) {
+            return read(reader, context);
+        }
+    }
+
+    public static AppState read(Reader reader) throws IOException, ParseException {
+        return read(reader, new ParseContext());
+    }
+
+    /**
+     * @param context receives the widgets and shares repeated strings between them, 
+     * it can be asked afterwards how many strings were shared
+     */
+    public static AppState read(Reader reader, ParseContext context) throws IOException, ParseException {
+        StateModelHandler handler = new StateModelHandler(context);
+        new JSONParser().parse(reader, handler);
+        return handler.getAppState();
+    }
+
+    /**
+     * Reads the version of a state model file. The version is the first entry of
+     * the file, so reading stops right after it.
+     * @return the version or 0 for files without version
+     */
+    public static long readModelVersion(String filePath) throws IOException, ParseException {
+        try (Reader reader = new BufferedReader(new FileReader(filePath))) {
+            ModelVersionHandler handler = new ModelVersionHandler();
+            new JSONParser().parse(reader, handler);
+            return handler.modelVersion;
+        }
+    }
+
+    private static class ModelVersionHandler implements ContentHandler {
+        private long modelVersion = 0;
+        private int depth = 0;
+        private boolean isVersionEntry = false;
+
+        @Override
+        public void startJSON() {
+        }
+
+        @Override
+        public void endJSON() {
+        }
+
+        @Override
+        public boolean startObject() {
+            depth++;
+            return depth == 1;
+        }
+
+        @Override
+        public boolean endObject() {
+            depth--;
+            return false;
+        }
+
+        @Override
+        public boolean startObjectEntry(String key) {
+            isVersionEntry = MODEL_VERSION.equals(key);
+            return isVersionEntry;
+        }
+
+        @Override
+        public boolean endObjectEntry() {
+            return false;
+        }
+
+        @Override
+        public boolean startArray() {
+            return false;
+        }
+
+        @Override
+        public boolean endArray() {
+            return false;
+        }
+
+        @Override
+        public boolean primitive(Object value) {
+            if (isVersionEntry && value instanceof Number) {
+                modelVersion = ((Number) value).longValue();
+            }
+            return false;
+        }
+    }
+
+    private static class StateItem {
+        private String widgetId;
+        private String matchingWidgetId;
+        private AppState nextState;
+    }
+
+    private static class PendingState {
+        private final AppState state;
+        private final List<StateItem> items;
+
+        private PendingState(AppState state, List<StateItem> items) {
+            this.state = state;
+            this.items = items;
+        }
+    }
+
+    /**
+     * A frame handles the events of one JSON object or array.
+     * Nested objects and arrays get their own frame.
+     */
+    private abstract static class Frame {
+        private String key;
+
+        Frame object(String key) {
+            return new SkipFrame();
+        }
+
+        Frame array(String key) {
+            return new SkipFrame();
+        }
+
+        void value(String key, Object value) {
+        }
+
+        void end() {
+        }
+    }
+
+    private static class SkipFrame extends Frame {
+    }
+
+    private static class StateModelHandler implements ContentHandler {
+        private final Deque<Frame> frames = new ArrayDeque<>();
+        private final ParseContext context;
+        private final List<PendingState> pendingStates = new ArrayList<>();
+        private boolean allWidgetsRead = false;
+        private AppState appState = null;
+
+        StateModelHandler(ParseContext context) {
+            this.context = context;
+        }
+
+        public AppState getAppState() {
+            return appState;
+        }
+
+        @Override
+        public void startJSON() {
+        }
+
+        @Override
+        public void endJSON() {
+            allWidgetsRead = true;
+            resolvePendingStates();
+        }
+
+        @Override
+        public boolean startObject() {
+            if (frames.isEmpty()) {
+                frames.push(new RootFrame());
+                return true;
+            }
+            Frame parent = frames.peek();
+            frames.push(parent.object(parent.key));
+            return true;
+        }
+
+        @Override
+        public boolean endObject() {
+            frames.pop().end();
+            return true;
+        }
+
+        @Override
+        public boolean startArray() {
+            if (frames.isEmpty()) {
+                frames.push(new SkipFrame());
+                return true;
+            }
+            Frame parent = frames.peek();
+            frames.push(parent.array(parent.key));
+            return true;
+        }
+
+        @Override
+        public boolean endArray() {
+            frames.pop().end();
+            return true;
+        }
+
+        @Override
+        public boolean startObjectEntry(String key) {
+            frames.peek().key = key;
+            return true;
+        }
+
+        @Override
+        public boolean endObjectEntry() {
+            frames.peek().key = null;
+            return true;
+        }
+
+        @Override
+        public boolean primitive(Object value) {
+            if (!frames.isEmpty()) {
+                Frame frame = frames.peek();
+                frame.value(frame.key, value);
+            }
+            return true;
+        }
+
+        private void onStateRead(AppState state, List<StateItem> items) {
+            PendingState pendingState = new PendingState(state, items);
+            if (allWidgetsRead) {
+                resolve(pendingState);
+                return;
+            }
+            pendingStates.add(pendingState);
+        }
+
+        private void resolvePendingStates() {
+            pendingStates.forEach(s -> resolve(s));
+            pendingStates.clear();
+        }
+
+        private void resolve(PendingState pendingState) {
+            List<Widget> visibleWidgets = new ArrayList<>(pendingState.items.size());
+            for (StateItem item : pendingState.items) {
+                Widget widget = context.getWidget(item.widgetId);
+                if (widget == null) {
+                    throw new IllegalStateException("Widget with id '" + item.widgetId + "' in state with id '"
+                        + pendingState.state.getId() + "' is missing in all-widgets");
+                }
+
+                if (item.matchingWidgetId != null) {
+                    widget.putMetadata("matching_widget", context.getWidget(item.matchingWidgetId));
+                }
+                if (item.nextState != null) {
+                    widget.setNextState(item.nextState);
+                }
+                visibleWidgets.add(widget);
+            }
+            pendingState.state.addWidgets(visibleWidgets, WidgetVisibility.VISIBLE, null);
+        }
+
+        private class RootFrame extends Frame {
+            @Override
+            Frame object(String key) {
+                if ("state".equals(key)) {
+                    return new StateFrame(s -> appState = s);
+                }
+                return new SkipFrame();
+            }
+
+            @Override
+            Frame array(String key) {
+                if ("all-widgets".equals(key)) {
+                    return new AllWidgetsFrame();
+                }
+                return new SkipFrame();
+            }
+        }
+
+        private class AllWidgetsFrame extends Frame {
+            @Override
+            Frame object(String key) {
+                return new WidgetFrame();
+            }
+
+            @Override
+            void end() {
+                allWidgetsRead = true;
+                resolvePendingStates();
+            }
+        }
+
+        private class WidgetFrame extends Frame {
+            private final Widget widget = new Widget();
+
+            @Override
+            Frame object(String key) {
+                if ("meta-data".equals(key)) {
+                    return new WidgetMetaDataFrame(widget);
+                }
+                if ("location".equals(key)) {
+                    return new LocationFrame(widget);
+                }
+                return new SkipFrame();
+            }
+
+            @Override
+            void value(String key, Object value) {
+                switch (key) {
+                    case "id":
+                        widget.setId((String) value);
+                        break;
+                    case "text":
+                        widget.setText((String) value);
+                        break;
+                    case "created-by":
+                        widget.setCreatedBy(context.dedup((String) value));
+                        break;
+                    case "created-by-plugin":
+                        widget.setCreatedByPlugin(context.dedup((String) value));
+                        break;
+                    case "comment":
+                        widget.setComment((String) value);
+                        break;
+                    case "visibility":
+                        widget.setWidgetVisibility(WidgetVisibility.valueOf((String) value));
+                        break;
+                    case "status":
+                        widget.setWidgetStatus(WidgetStatus.valueOf((String) value));
+                        break;
+                    case "type":
+                        widget.setWidgetType(WidgetType.valueOf((String) value));
+                        break;
+                    case "subtype":
+                        widget.setWidgetSubtype(WidgetSubtype.valueOf((String) value));
+                        break;
+                    case "created-date-ms":
+                        widget.setCreatedDate(JSONStateParser.parseDate(value));
+                        break;
+                    case "resolved-date-ms":
+                        widget.setResolvedDate(JSONStateParser.parseDate(value));
+                        break;
+                    case "reported-date-ms":
+                        widget.setReportedDate(JSONStateParser.parseDate(value));
+                        break;
+                    case "weight":
+                        widget.setWeight(Double.parseDouble(String.valueOf(value)));
+                        break;
+                    case "reported-text":
+                        widget.setReportedText((String) value);
+                        break;
+                    case "reported-by":
+                        widget.setReportedBy(context.dedup((String) value));
+                        break;
+                    default:
+                        break;
+                }
+            }
+
+            @Override
+            void end() {
+                context.addWidget(widget);
+            }
+        }
+
+        private class WidgetMetaDataFrame extends Frame {
+            private final Widget widget;
+
+            WidgetMetaDataFrame(Widget widget) {
+                this.widget = widget;
+            }
+
+            @Override
+            void value(String key, Object value) {
+                String parsedKey = JSONStateParser.getParsedWidgetMetaDataKey(key);
+                if (parsedKey != null) {
+                    widget.putMetadata(parsedKey, context.dedup((String) value));
+                } else if (MultiUser.DELETED_AT.equals(key)) {
+                    widget.putMetadata(MultiUser.DELETED_AT, JSONStateParser.parseEpochMilli(value));
+                }
+            }
+        }
+
+        private class LocationFrame extends Frame {
+            private final Widget widget;
+            private Object x, y, width, height;
+
+            LocationFrame(Widget widget) {
+                this.widget = widget;
+            }
+
+            @Override
+            void value(String key, Object value) {
+                switch (key) {
+                    case "x":
+                        x = value;
+                        break;
+                    case "y":
+                        y = value;
+                        break;
+                    case "width":
+                        width = value;
+                        break;
+                    case "height":
+                        height = value;
+                        break;
+                    default:
+                        break;
+                }
+            }
+
+            @Override
+            void end() {
+                widget.setLocationArea(new Rectangle(
+                    Integer.parseInt(String.valueOf(x)),
+                    Integer.parseInt(String.valueOf(y)),
+                    Integer.parseInt(String.valueOf(width)),
+                    Integer.parseInt(String.valueOf(height))));
+            }
+        }
+
+        private class StateFrame extends Frame {
+            private final Consumer<AppState> onEnd;
+            private final List<StateItem> items = new ArrayList<>();
+            private Map<String, DiffType> diff = null;
+            private Long deletedAt = null;
+            private String id;
+            private String bookmark;
+
+            StateFrame(Consumer<AppState> onEnd) {
+                this.onEnd = onEnd;
+            }
+
+            @Override
+            Frame object(String key) {
+                if ("meta-data".equals(key)) {
+                    return new StateMetaDataFrame(this);
+                }
+                return new SkipFrame();
+            }
+
+            @Override
+            Frame array(String key) {
+                if ("visible-widgets".equals(key)) {
+                    return new VisibleWidgetsFrame(items);
+                }
+                return new SkipFrame();
+            }
+
+            @Override
+            void value(String key, Object value) {
+                if ("state-id".equals(key)) {
+                    id = (String) value;
+                } else if ("bookmarks".equals(key)) {
+                    bookmark = (String) value;
+                }
+            }
+
+            @Override
+            void end() {
+                AppState state = new AppState(id, bookmark);
+                onStateRead(state, items);
+                if (diff != null) {
+                    state.putMetadata(MultiUser.META_DATA_DIFF, diff);
+                }
+                if (deletedAt != null) {
+                    state.putMetadata(MultiUser.DELETED_AT, deletedAt);
+                }
+                onEnd.accept(state);
+            }
+        }
+
+        private class StateMetaDataFrame extends Frame {
+            private final StateFrame stateFrame;
+
+            StateMetaDataFrame(StateFrame stateFrame) {
+                this.stateFrame = stateFrame;
+            }
+
+            @Override
+            Frame object(String key) {
+                if (MultiUser.META_DATA_DIFF.equals(key)) {
+                    stateFrame.diff = new HashMap<>();
+                    return new DiffFrame(stateFrame.diff);
+                }
+                return new SkipFrame();
+            }
+
+            @Override
+            void value(String key, Object value) {
+                if (MultiUser.DELETED_AT.equals(key)) {
+                    stateFrame.deletedAt = JSONStateParser.parseEpochMilli(value);
+                }
+            }
+        }
+
+        private class DiffFrame extends Frame {
+            private final Map<String, DiffType> diff;
+
+            DiffFrame(Map<String, DiffType> diff) {
+                this.diff = diff;
+            }
+
+            @Override
+            void value(String key, Object value) {
+                DiffType diffType = JSONStateParser.parseDiffType(value);
+                if (diffType != null) {
+                    diff.put(key, diffType);
+                }
+            }
+        }
+
+        private class VisibleWidgetsFrame extends Frame {
+            private final List<StateItem> items;
+
+            VisibleWidgetsFrame(List<StateItem> items) {
+                this.items = items;
+            }
+
+            @Override
+            Frame object(String key) {
+                StateItem item = new StateItem();
+                items.add(item);
+                return new StateItemFrame(item);
+            }
+        }
+
+        private class StateItemFrame extends Frame {
+            private final StateItem item;
+
+            StateItemFrame(StateItem item) {
+                this.item = item;
+            }
+
+            @Override
+            Frame object(String key) {
+                if ("next-state".equals(key)) {
+                    return new StateFrame(s -> item.nextState = s);
+                }
+                if ("meta-data".equals(key)) {
+                    return new ItemMetaDataFrame(item);
+                }
+                return new SkipFrame();
+            }
+
+            @Override
+            void value(String key, Object value) {
+                if ("id".equals(key)) {
+                    item.widgetId = (String) value;
+                }
+            }
+        }
+
+        private class ItemMetaDataFrame extends Frame {
+            private final StateItem item;
+
+            ItemMetaDataFrame(StateItem item) {
+                this.item = item;
+            }
+
+            @Override
+            void value(String key, Object value) {
+                if ("matching_widget".equals(key)) {
+                    item.matchingWidgetId = String.valueOf(value);
+                }
+            }
+        }
+    }
+}
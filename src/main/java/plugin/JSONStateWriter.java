@@ -0,0 +1,377 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import org.json.simple.JSONValue;
+
+import plugin.MultiUser.DiffType;
+import scout.AppState;
+import scout.Path;
+import scout.StateController;
+import scout.Widget;
+
+/**
+ * Streaming writer for state model files.
+ *
+ * Writes the same content as {@link JSONStateParser#appStateAsJSONObject(AppState)}
+ * directly to a writer while walking the state tree, without building JSONObjects
+ * or one string of the whole model first.
+ * The widgets are written before the state tree, so {@link JSONStateReader} can
+ * resolve the widget references while reading.
+ */
+public class JSONStateWriter {
+
+    private final Writer out;
+    private final Predicate<Widget> includeWidget;
+
+    private JSONStateWriter(Writer out, Predicate<Widget> includeWidget) {
+        this.out = out;
+        this.includeWidget = includeWidget;
+    }
+
+    public static void write(Writer out, AppState state) throws IOException {
+        new JSONStateWriter(out, null).writeAppState(state, null);
+        out.flush();
+    }
+
+    /**
+     * Writes the state model with its version as first entry, 
+     * so it can be read with {@link JSONStateReader#readModelVersion(String)} 
+     * without reading the whole file.
+     */
+    public static void write(Writer out, AppState state, long modelVersion) throws IOException {
+        new JSONStateWriter(out, null).writeAppState(state, modelVersion);
+        out.flush();
+    }
+
+    /**
+     * Writes only the part of the state tree made of the included widgets.
+     * Paths and issues are left out, and diff annotations are kept for 
+     * included widgets and for widgets that were not left unchanged.
+     * @param includeWidget selects the visible widgets to write
+     */
+    public static void write(Writer out, AppState state, Predicate<Widget> includeWidget) throws IOException {
+        new JSONStateWriter(out, includeWidget).writeAppState(state, null);
+        out.flush();
+    }
+
+    private void writeAppState(AppState state, Long modelVersion) throws IOException {
+        Map<String, Widget> allUsedWidgets = new HashMap<>();
+        collectUsedWidgets(state, allUsedWidgets);
+        boolean isFiltered = includeWidget != null;
+
+        out.write('{');
+        if (modelVersion != null) {
+            writeKey(JSONStateReader.MODEL_VERSION);
+            writeValue(modelVersion);
+            out.write(',');
+        }
+        writeKey("product");
+        writeValue(StateController.getProduct());
+
+        out.write(',');
+        writeKey("last-updated-at-ms");
+        writeValue(Instant.now().toEpochMilli());
+
+        out.write(',');
+        writeKey("paths");
+        out.write('[');
+        boolean first = true;
+        for (Path path : isFiltered ? Collections.<Path>emptyList() : state.getPaths()) {
+            first = writeSeparator(first);
+            writePath(path);
+        }
+        out.write(']');
+
+        out.write(',');
+        writeKey("all-widgets");
+        out.write('[');
+        first = true;
+        for (Widget widget : allUsedWidgets.values()) {
+            first = writeSeparator(first);
+            writeWidget(widget);
+        }
+        for (Widget widget : allUsedWidgets.values()) {
+            if (widget.hasMetadata("matching_widget")) {
+                first = writeSeparator(first);
+                writeWidget((Widget)widget.getMetadata("matching_widget"));
+            }
+        }
+        out.write(']');
+
+        out.write(',');
+        writeKey("state");
+        writeStateTree(state);
+
+        out.write(',');
+        writeKey("issues");
+        out.write('[');
+        first = true;
+        for (Widget issue : isFiltered ? Collections.<Widget>emptyList() : state.getAllIssues()) {
+            first = writeSeparator(first);
+            writeValue(issue.getId());
+        }
+        out.write(']');
+
+        out.write('}');
+    }
+
+    /**
+     * Collects the widgets of the state tree in the same way as
+     * {@link JSONStateParser#stateTreeAsJSONObject(AppState, Map)} does.
+     */
+    private void collectUsedWidgets(AppState state, Map<String, Widget> allUsedWidgets) {
+        List<Widget> visibleWidgets = getWidgetsToWrite(state);
+        for (Widget widget : visibleWidgets) {
+            AppState nextState = widget.getNextState();
+            if (nextState != null && !nextState.isHome()) {
+                collectUsedWidgets(nextState, allUsedWidgets);
+            }
+        }
+        visibleWidgets.forEach(w -> allUsedWidgets.put(w.getId(), w));
+    }
+
+    private List<Widget> getWidgetsToWrite(AppState state) {
+        List<Widget> visibleWidgets = state.getVisibleWidgets();
+        if (includeWidget != null) {
+            visibleWidgets.removeIf(includeWidget.negate());
+        }
+        return visibleWidgets;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void writeStateTree(AppState state) throws IOException {
+        out.write('{');
+        writeKey("state-id");
+        writeValue(state.getId());
+
+        out.write(',');
+        writeKey("product-version");
+        writeValue(state.getProductVersions());
+
+        out.write(',');
+        writeKey("bookmarks");
+        writeValue(state.getBookmark());
+
+        out.write(',');
+        writeKey("visible-widgets");
+        out.write('[');
+        boolean first = true;
+        List<Widget> widgets = getWidgetsToWrite(state);
+        for (Widget widget : widgets) {
+            first = writeSeparator(first);
+            out.write('{');
+            writeKey("id");
+            writeValue(widget.getId());
+            out.write(',');
+            writeKey("next-state");
+            AppState nextState = widget.getNextState();
+            if (nextState == null || nextState.isHome()) {
+                out.write("null");
+            } else {
+                writeStateTree(nextState);
+            }
+            out.write('}');
+        }
+        out.write(']');
+
+        out.write(',');
+        writeKey("meta-data");
+        out.write('{');
+        first = true;
+        for (String key : state.getMetadataKeys()) {
+            if (key.equals(MultiUser.META_DATA_DIFF)) {
+                continue;
+            }
+            first = writeSeparator(first);
+            writeKey(key);
+            writeValue(String.valueOf(state.getMetadata(key)));
+        }
+        Map<String, DiffType> diff = (Map<String, DiffType>)state.getMetadata(MultiUser.META_DATA_DIFF);
+        if (diff != null) {
+            first = writeSeparator(first);
+            writeKey(MultiUser.META_DATA_DIFF);
+            out.write('{');
+            boolean firstDiff = true;
+            Set<String> writtenIds = new HashSet<>();
+            if (includeWidget != null) {
+                widgets.forEach(w -> writtenIds.add(w.getId()));
+            }
+            for (Map.Entry<String, DiffType> entry : diff.entrySet()) {
+                if (includeWidget != null && entry.getValue() == DiffType.NO_CHANGES && !writtenIds.contains(entry.getKey())) {
+                    continue;
+                }
+                firstDiff = writeSeparator(firstDiff);
+                writeKey(entry.getKey());
+                writeValue(entry.getValue().toString());
+            }
+            out.write('}');
+        }
+        out.write('}');
+
+        out.write('}');
+    }
+
+    private void writePath(Path path) throws IOException {
+        out.write('{');
+        writeKey("id");
+        writeValue(path.getId());
+        out.write(',');
+        writeKey("product-version");
+        writeValue(path.getProductVersion());
+        out.write(',');
+        writeKey("session-id");
+        writeValue(path.getSessionId());
+        out.write(',');
+        writeKey("session-duration");
+        writeValue(path.getSessionDuration());
+        out.write(',');
+        writeKey("created-at-ms");
+        writeValue(path.getCreatedDate().getTime());
+        out.write(',');
+        writeKey("tester");
+        writeValue(path.getTester());
+
+        out.write(',');
+        writeKey("widgets");
+        List<String> widgetIDs = new ArrayList<>();
+        path.getWidgets().forEach(w -> widgetIDs.add(w.getId()));
+        writeValue(widgetIDs);
+        out.write('}');
+    }
+
+    private void writeWidget(Widget widget) throws IOException {
+        out.write('{');
+        writeKey("id");
+        writeValue(widget.getId());
+        out.write(',');
+        writeKey("text");
+        writeValue(widget.getText());
+        out.write(',');
+        writeKey("weight");
+        writeValue(widget.getWeight());
+        out.write(',');
+        writeKey("type");
+        writeValue(widget.getWidgetType().name());
+        out.write(',');
+        writeKey("subtype");
+        writeValue(widget.getWidgetSubtype().toString());
+        out.write(',');
+        writeKey("status");
+        writeValue(widget.getWidgetStatus().toString());
+
+        if (widget.getCreatedDate() != null) {
+            out.write(',');
+            writeKey("created-date-ms");
+            writeValue(widget.getCreatedDate().getTime());
+        }
+        if (widget.getResolvedDate() != null) {
+            out.write(',');
+            writeKey("resolved-date-ms");
+            writeValue(widget.getResolvedDate().getTime());
+        }
+        if (widget.getReportedDate() != null) {
+            out.write(',');
+            writeKey("reported-date-ms");
+            writeValue(widget.getReportedDate().getTime());
+        }
+
+        out.write(',');
+        writeKey("created-by");
+        writeValue(widget.getCreatedBy());
+        out.write(',');
+        writeKey("created-by-plugin");
+        writeValue(widget.getCreatedByPlugin());
+        out.write(',');
+        writeKey("comment");
+        writeValue(widget.getComment());
+        out.write(',');
+        writeKey("reported-text");
+        writeValue(widget.getReportedText());
+        out.write(',');
+        writeKey("reported-by");
+        writeValue(widget.getReportedBy());
+
+        out.write(',');
+        writeKey("meta-data");
+        writeWidgetMetadata(widget);
+
+        out.write(',');
+        writeKey("visibility");
+        writeValue(widget.getWidgetVisibility().name());
+
+        out.write(',');
+        writeKey("location");
+        java.awt.Rectangle locRec = widget.getLocationArea();
+        if (locRec == null) {
+            out.write("null");
+        } else {
+            out.write('{');
+            writeKey("x");
+            writeValue(String.valueOf(locRec.x));
+            out.write(',');
+            writeKey("y");
+            writeValue(String.valueOf(locRec.y));
+            out.write(',');
+            writeKey("width");
+            writeValue(String.valueOf(locRec.width));
+            out.write(',');
+            writeKey("height");
+            writeValue(String.valueOf(locRec.height));
+            out.write('}');
+        }
+
+        out.write('}');
+    }
+
+    private void writeWidgetMetadata(Widget widget) throws IOException {
+        out.write('{');
+        boolean first = true;
+        if (widget.hasMetadata("matching_widget")) {
+            first = writeSeparator(first);
+            writeKey("matching_widget");
+            writeValue(((Widget)widget.getMetadata("matching_widget")).getId());
+        }
+
+        for (String key : widget.getMetadataKeys()) {
+            if (key.equals("matching_widget") || key.equals("neighbors")) {
+                continue;
+            }
+            first = writeSeparator(first);
+            writeKey(key);
+            writeValue(String.valueOf(widget.getMetadata(key)));
+        }
+        out.write('}');
+    }
+
+    private boolean writeSeparator(boolean first) throws IOException {
+        if (!first) {
+            out.write(',');
+        }
+        return false;
+    }
+
+    private void writeKey(String key) throws IOException {
+        out.write('"');
+        out.write(JSONValue.escape(key));
+        out.write("\":");
+    }
+
+    private void writeValue(Object value) throws IOException {
+        JSONValue.writeJSONString(value, out);
+    }
+}
@@ -0,0 +1,124 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import java.io.ObjectStreamException;
+import java.util.IdentityHashMap;
+
+import scout.AppState;
+import scout.Widget;
+
+/**
+ * Widget from an {@link IndexedSnapshot} that reads the state behind it
+ * when its next state is requested for the first time.
+ *
+ * Code that walks the whole state tree should skip widgets for which
+ * {@link #isUnloaded(Widget)} is true, unless it really needs the states behind them.
+ * The snapshot is not serialized, so serializing a widget reads the state behind it first.
+ */
+public class LazyWidget extends Widget {
+
+    private static final long serialVersionUID = 1L;
+
+    private transient IndexedSnapshot snapshot;
+    private transient int nextStateOffset;
+    private transient boolean isDeferred = false;
+    private volatile boolean loaded = true;
+
+    LazyWidget() {
+        super();
+    }
+
+    /**
+     * Defers the next state to the state record at the given offset of the snapshot.
+     * Only the first call counts. A widget shown in several states is read again with
+     * each of them, and the state behind it may have been loaded and changed meanwhile.
+     */
+    void deferNextState(IndexedSnapshot snapshot, int nextStateOffset) {
+        if (isDeferred) {
+            return;
+        }
+        isDeferred = true;
+        if (nextStateOffset < 0) {
+            return;
+        }
+        this.snapshot = snapshot;
+        this.nextStateOffset = nextStateOffset;
+        this.loaded = false;
+    }
+
+    /**
+     * @return a new widget that defers to the same state record, or a loaded widget if this one was loaded meanwhile
+     */
+    LazyWidget newDeferredCopy() {
+        LazyWidget copy = new LazyWidget();
+        IndexedSnapshot source = snapshot;
+        if (source != null) {
+            copy.deferNextState(source, nextStateOffset);
+        }
+        return copy;
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * @return true if the widget is a {@link LazyWidget} whose next state has not been read yet
+     */
+    public static boolean isUnloaded(Widget widget) {
+        return widget instanceof LazyWidget && !((LazyWidget) widget).loaded;
+    }
+
+    @Override
+    public AppState getNextState() {
+        if (!loaded) {
+            load();
+        }
+        return super.getNextState();
+    }
+
+    @Override
+    public void setNextState(AppState nextState) {
+        // The replaced state is read first, so that the session baseline knows it.
+        if (!loaded) {
+            load();
+        }
+        super.setNextState(nextState);
+    }
+
+    @Override
+    public int noActions(String product, IdentityHashMap<Object, Object> visited) {
+        // Counts the actions through the field, so the next state must be there.
+        if (!loaded) {
+            load();
+        }
+        return super.noActions(product, visited);
+    }
+
+    private Object writeReplace() throws ObjectStreamException {
+        if (!loaded) {
+            load();
+        }
+        return this;
+    }
+
+    private void load() {
+        IndexedSnapshot source = snapshot;
+        if (source == null) {
+            return;
+        }
+        synchronized (source) {
+            if (loaded) {
+                return;
+            }
+            AppState nextState = source.readState(nextStateOffset);
+            super.setNextState(nextState);
+            loaded = true;
+            snapshot = null;
+            source.stateLoaded(this, nextState);
+        }
+    }
+}
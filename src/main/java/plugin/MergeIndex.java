@@ -0,0 +1,195 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import scout.AppState;
+import scout.Widget;
+import scout.Widget.WidgetVisibility;
+
+/**
+ * Structure of a state tree for the merge: the state that owns each widget,
+ * the widget that leads to each state and the states with diff annotations.
+ *
+ * The index is built with one walk over the tree when a merge starts and kept
+ * up to date when widgets are added with {@link #addWidget(AppState, Widget)}.
+ * Marking widgets as deleted does not change the structure.
+ * The visible widgets of a state are indexed by {@link WidgetFingerprint} when
+ * the state is first searched for a widget, merging widget changes keeps their fingerprint.
+ * Widget ids that occur in more than one state are looked up in the state itself.
+ * States behind a {@link LazyWidget} that was not loaded are not indexed.
+ *
+ * The index can be used by merges of different subtrees at the same time.
+ * App states and widgets do not override equals, so the concurrent sets compare by identity.
+ */
+public class MergeIndex {
+
+    private final Map<String, Entry> widgets = new ConcurrentHashMap<>();
+    private final Map<String, Widget> parentWidgets = new ConcurrentHashMap<>();
+    private final Set<AppState> statesWithDiff = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private final Set<AppState> visited = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private final Map<AppState, Integer> subtreeSizes = new ConcurrentHashMap<>();
+    private final Map<AppState, Map<WidgetFingerprint, Widget>> sameWidgets = new ConcurrentHashMap<>();
+    private volatile boolean isTree = true;
+
+    private MergeIndex() {
+    }
+
+    public static MergeIndex build(AppState root) {
+        MergeIndex index = new MergeIndex();
+        if (root != null) {
+            index.addState(root, null);
+        }
+        return index;
+    }
+
+    /**
+     * Adds a widget to a state of the tree, together with the states behind it.
+     */
+    public void addWidget(AppState state, Widget widget) {
+        state.addWidget(widget);
+        addStateWidget(state, widget);
+
+        Map<WidgetFingerprint, Widget> stateWidgets = sameWidgets.get(state);
+        if (stateWidgets != null && widget.getWidgetVisibility() == WidgetVisibility.VISIBLE) {
+            stateWidgets.putIfAbsent(WidgetFingerprint.of(widget), widget);
+        }
+    }
+
+    /**
+     * @return the first visible widget of the state with the same fingerprint as the given widget, or null if there is none
+     */
+    public Widget getSameWidget(AppState state, Widget widget) {
+        if (widget == null) {
+            return null;
+        }
+        // A state is changed by one merge task only, so the map of a state is not used concurrently.
+        Map<WidgetFingerprint, Widget> stateWidgets = sameWidgets.computeIfAbsent(state, s -> {
+            Map<WidgetFingerprint, Widget> widgetsByFingerprint = new HashMap<>();
+            s.getVisibleWidgets().forEach(w -> widgetsByFingerprint.putIfAbsent(WidgetFingerprint.of(w), w));
+            return widgetsByFingerprint;
+        });
+        return stateWidgets.get(WidgetFingerprint.of(widget));
+    }
+
+    /**
+     * @return the widget with the given id in the given state, or null if the state has no such widget
+     */
+    public Widget getWidget(AppState state, String widgetId) {
+        Entry entry = widgetId == null ? null : widgets.get(widgetId);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.isAmbiguous) {
+            return state.getWidget(widgetId);
+        }
+        return entry.owningState == state ? entry.widget : null;
+    }
+
+    /**
+     * @return the state that shows the widget with the given id, null if unknown or not unique
+     */
+    public AppState getOwningState(String widgetId) {
+        Entry entry = widgetId == null ? null : widgets.get(widgetId);
+        return entry == null || entry.isAmbiguous ? null : entry.owningState;
+    }
+
+    /**
+     * @return the widget that leads to the state with the given id, null for the root
+     */
+    public Widget getParentWidget(String stateId) {
+        return stateId == null ? null : parentWidgets.get(stateId);
+    }
+
+    /**
+     * @return false if a state or a widget object was found in more than one place when the index was built
+     */
+    public boolean isTree() {
+        return isTree;
+    }
+
+    /**
+     * @return number of widgets in the state and the states behind it, counted once per state
+     */
+    public int getSubtreeSize(AppState state) {
+        if (state == null || state.isHome()) {
+            return 0;
+        }
+        Integer size = subtreeSizes.get(state);
+        if (size != null) {
+            return size;
+        }
+
+        int count = 0;
+        for (Widget widget : state.getAllWidgets()) {
+            count++;
+            if (!LazyWidget.isUnloaded(widget)) {
+                count += getSubtreeSize(widget.getNextState());
+            }
+        }
+        subtreeSizes.put(state, count);
+        return count;
+    }
+
+    /**
+     * Removes the diff annotations from all states of the tree.
+     */
+    public void removeDiffMetaData() {
+        statesWithDiff.forEach(s -> s.removeMetadata(MultiUser.META_DATA_DIFF));
+        statesWithDiff.clear();
+    }
+
+    private void addState(AppState state, Widget parentWidget) {
+        if (!visited.add(state)) {
+            isTree = false;
+            return;
+        }
+        if (parentWidget != null && state.getId() != null) {
+            parentWidgets.putIfAbsent(state.getId(), parentWidget);
+        }
+        if (state.getMetadata(MultiUser.META_DATA_DIFF) != null) {
+            statesWithDiff.add(state);
+        }
+        for (Widget widget : state.getAllWidgets()) {
+            addStateWidget(state, widget);
+        }
+    }
+
+    private void addStateWidget(AppState state, Widget widget) {
+        if (widget.getId() != null) {
+            Entry entry = widgets.putIfAbsent(widget.getId(), new Entry(widget, state));
+            if (entry != null && entry.owningState != state) {
+                entry.isAmbiguous = true;
+                if (entry.widget == widget) {
+                    isTree = false;
+                }
+            }
+        }
+
+        if (LazyWidget.isUnloaded(widget)) {
+            return;
+        }
+        AppState nextState = widget.getNextState();
+        if (nextState != null && !nextState.isHome()) {
+            addState(nextState, widget);
+        }
+    }
+
+    private static class Entry {
+        private final Widget widget;
+        private final AppState owningState;
+        private volatile boolean isAmbiguous = false;
+
+        private Entry(Widget widget, AppState owningState) {
+            this.widget = widget;
+            this.owningState = owningState;
+        }
+    }
+}
@@ -0,0 +1,336 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.json.simple.JSONObject;
+
+/**
+ * Timers for the phases of loading and saving the shared model and counters for the merged widgets.
+ *
+ * Timers and counters can be updated from several threads, e.g. by parallel merges
+ * and background saves. The values add up from the start of the plugin or the last reset.
+ * The metrics of one save are kept apart in a child from {@link #newChild()}, which adds
+ * its values to these metrics as well, so saves running at the same time do not mix.
+ */
+public class MergeMetrics implements MergeMetricsMXBean {
+
+    public static final String OBJECT_NAME = "plugin:type=MergeMetrics";
+
+    public enum Phase {
+        /** Reading and parsing a model file, the readers parse while they read */
+        LOAD("load"),
+        /** Copying the state tree or recording the session baseline */
+        COPY("copy"),
+        /** Annotating the differences of the session */
+        DIFF("diff"),
+        /** Merging session changes into the shared model */
+        MERGE("merge"),
+        /** Removing widgets deleted before the retention window */
+        COMPACT("compact"),
+        /** Waiting for the lock of the shared model */
+        LOCK_WAIT("lock-wait"),
+        /** Serializing and writing model and session files, including the sync to disk */
+        WRITE("write");
+
+        private final String key;
+
+        Phase(String key) {
+            this.key = key;
+        }
+
+        public String getKey() {
+            return key;
+        }
+    }
+
+    public enum Counter {
+        LOADS("loads"),
+        SAVES("saves"),
+        FAILED_SAVES("failed-saves"),
+        WIDGETS_CREATED("widgets-created"),
+        WIDGETS_DELETED("widgets-deleted"),
+        WIDGETS_MERGED("widgets-merged"),
+        TOMBSTONES_PURGED("tombstones-purged");
+
+        private final String key;
+
+        Counter(String key) {
+            this.key = key;
+        }
+
+        public String getKey() {
+            return key;
+        }
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+    private static final Counter[] COUNTERS = Counter.values();
+
+    private final LongAdder[] phaseCounts = newAdders(PHASES.length);
+    private final LongAdder[] phaseNanos = newAdders(PHASES.length);
+    private final AtomicLongArray phaseMaxNanos = new AtomicLongArray(PHASES.length);
+    private final LongAdder[] counters = newAdders(COUNTERS.length);
+    private final AtomicReference<String> lastSaveReport = new AtomicReference<>("");
+    private final MergeMetrics totals;
+
+    public MergeMetrics() {
+        this(null);
+    }
+
+    private MergeMetrics(MergeMetrics totals) {
+        this.totals = totals;
+    }
+
+    /**
+     * @return new metrics, e.g. for one save, whose values are added to these metrics as well
+     */
+    public MergeMetrics newChild() {
+        return new MergeMetrics(this);
+    }
+
+    /**
+     * Starts timing a phase, stop the timer in a finally block.
+     */
+    public Timer time(Phase phase) {
+        return new Timer(phase);
+    }
+
+    public void record(Phase phase, long nanos) {
+        int i = phase.ordinal();
+        phaseCounts[i].increment();
+        phaseNanos[i].add(nanos);
+        phaseMaxNanos.accumulateAndGet(i, nanos, Math::max);
+        if (totals != null) {
+            totals.record(phase, nanos);
+        }
+    }
+
+    public void increment(Counter counter) {
+        add(counter, 1);
+    }
+
+    public void add(Counter counter, long value) {
+        counters[counter.ordinal()].add(value);
+        if (totals != null) {
+            totals.add(counter, value);
+        }
+    }
+
+    public long get(Counter counter) {
+        return counters[counter.ordinal()].sum();
+    }
+
+    public long getCount(Phase phase) {
+        return phaseCounts[phase.ordinal()].sum();
+    }
+
+    public long getTotalNanos(Phase phase) {
+        return phaseNanos[phase.ordinal()].sum();
+    }
+
+    public long getMaxNanos(Phase phase) {
+        return phaseMaxNanos.get(phase.ordinal());
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    void setLastSaveReport(JSONObject report) {
+        lastSaveReport.set(report.toJSONString());
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server, unless metrics are already registered.
+     * @return false if the registration failed
+     */
+    public boolean register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+            return true;
+        } catch (InstanceAlreadyExistsException e) {
+            return true;
+        } catch (JMException | SecurityException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    // ********************************************
+    // * MXBean                                   *
+    // ********************************************
+
+    @Override
+    public long getLoadCount() {
+        return get(Counter.LOADS);
+    }
+
+    @Override
+    public long getSaveCount() {
+        return get(Counter.SAVES);
+    }
+
+    @Override
+    public long getFailedSaveCount() {
+        return get(Counter.FAILED_SAVES);
+    }
+
+    @Override
+    public long getWidgetsCreated() {
+        return get(Counter.WIDGETS_CREATED);
+    }
+
+    @Override
+    public long getWidgetsDeleted() {
+        return get(Counter.WIDGETS_DELETED);
+    }
+
+    @Override
+    public long getWidgetsMerged() {
+        return get(Counter.WIDGETS_MERGED);
+    }
+
+    @Override
+    public long getTombstonesPurged() {
+        return get(Counter.TOMBSTONES_PURGED);
+    }
+
+    @Override
+    public Map<String, Long> getPhaseCounts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (Phase phase : PHASES) {
+            counts.put(phase.getKey(), getCount(phase));
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Double> getPhaseTotalMillis() {
+        Map<String, Double> millis = new LinkedHashMap<>();
+        for (Phase phase : PHASES) {
+            millis.put(phase.getKey(), toMillis(getTotalNanos(phase)));
+        }
+        return millis;
+    }
+
+    @Override
+    public Map<String, Double> getPhaseMaxMillis() {
+        Map<String, Double> millis = new LinkedHashMap<>();
+        for (Phase phase : PHASES) {
+            millis.put(phase.getKey(), toMillis(getMaxNanos(phase)));
+        }
+        return millis;
+    }
+
+    @Override
+    public String getLastSaveReport() {
+        return lastSaveReport.get();
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < PHASES.length; i++) {
+            phaseCounts[i].reset();
+            phaseNanos[i].reset();
+            phaseMaxNanos.set(i, 0);
+        }
+        for (LongAdder counter : counters) {
+            counter.reset();
+        }
+        lastSaveReport.set("");
+    }
+
+    private static double toMillis(long nanos) {
+        return Math.round(nanos / 1_000.0) / 1_000.0;
+    }
+
+    private static LongAdder[] newAdders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    public final class Timer {
+        private final Phase phase;
+        private final long startNanos = System.nanoTime();
+
+        private Timer(Phase phase) {
+            this.phase = phase;
+        }
+
+        /**
+         * Records the time since the timer was started.
+         */
+        public void stop() {
+            record(phase, System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * The values of the timers and counters at one point in time.
+     */
+    public static class Snapshot {
+        private final long takenAtNanos = System.nanoTime();
+        private final long[] phaseCounts = new long[PHASES.length];
+        private final long[] phaseNanos = new long[PHASES.length];
+        private final long[] counters = new long[COUNTERS.length];
+
+        private Snapshot(MergeMetrics metrics) {
+            for (int i = 0; i < PHASES.length; i++) {
+                phaseCounts[i] = metrics.phaseCounts[i].sum();
+                phaseNanos[i] = metrics.phaseNanos[i].sum();
+            }
+            for (int i = 0; i < COUNTERS.length; i++) {
+                counters[i] = metrics.counters[i].sum();
+            }
+        }
+
+        public long getTotalNanos(Phase phase) {
+            return phaseNanos[phase.ordinal()];
+        }
+
+        public long get(Counter counter) {
+            return counters[counter.ordinal()];
+        }
+
+        /**
+         * @return what was recorded between the earlier snapshot and this one, as JSON
+         * with the elapsed time, the time of every phase that ran and all counters
+         */
+        @SuppressWarnings("unchecked")
+        public JSONObject since(Snapshot earlier) {
+            JSONObject json = new JSONObject();
+            json.put("duration-ms", toMillis(takenAtNanos - earlier.takenAtNanos));
+
+            JSONObject phases = new JSONObject();
+            for (Phase phase : PHASES) {
+                int i = phase.ordinal();
+                if (phaseCounts[i] > earlier.phaseCounts[i]) {
+                    phases.put(phase.getKey(), toMillis(phaseNanos[i] - earlier.phaseNanos[i]));
+                }
+            }
+            json.put("phases-ms", phases);
+
+            for (Counter counter : COUNTERS) {
+                int i = counter.ordinal();
+                json.put(counter.getKey(), counters[i] - earlier.counters[i]);
+            }
+            return json;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link MergeMetrics}, registered as "plugin:type=MergeMetrics".
+ * Times are in milliseconds and keyed by the name of the phase.
+ */
+public interface MergeMetricsMXBean {
+
+    long getLoadCount();
+
+    long getSaveCount();
+
+    long getFailedSaveCount();
+
+    long getWidgetsCreated();
+
+    long getWidgetsDeleted();
+
+    long getWidgetsMerged();
+
+    long getTombstonesPurged();
+
+    Map<String, Long> getPhaseCounts();
+
+    Map<String, Double> getPhaseTotalMillis();
+
+    Map<String, Double> getPhaseMaxMillis();
+
+    /**
+     * @return the report of the last save as JSON, empty if there was none
+     */
+    String getLastSaveReport();
+
+    void reset();
+}
@@ -4,57 +4,123 @@
 
 package plugin;
 
-import static plugin.JSONStateParser.appStateAsJSONObject;
-import static plugin.JSONStateParser.parseCompleteAppState;
-
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.PrintWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.Serializable;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.text.SimpleDateFormat;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.time.Instant;
-import java.util.Date;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import javax.swing.JFileChooser;
 
 import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
 
+import plugin.JSONStateParser.ParseContext;
+import plugin.MergeMetrics.Counter;
+import plugin.MergeMetrics.Phase;
 import scout.AppState;
 import scout.StateController;
 import scout.Widget;
 
 public class MultiUser {
 
-    private static final SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-    private static final SimpleDateFormat dfFiles = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss");
+    private static final DateTimeFormatter dfFiles = DateTimeFormatter.ofPattern("yyyy-MM-dd_HH-mm-ss");
+    private static final int LOG_BUFFER_SIZE = 4096;
+    private static final AsyncLogger LOG = createLogger();
     private static final String DATA_FILEPATH = "data";
     private static final String MODEL_FILENAME = "shared-state.json";
+    private static final String BINARY_MODEL_FILENAME = "shared-state.bin";
+    private static final String STORE_MODEL_FILENAME = "shared-state.store";
+    private static final String WIDGET_STORE_FOLDER = "widget-store";
+    private static final String DELTA_LOG_FILENAME = "shared-state.delta.jsonl";
+    private static final String INDEXED_SNAPSHOT_FILENAME = "shared-state.idx";
     private static final String PRODUCT_PROPERTIES_FILE = "product.properties";
+    private static final String SAVE_METRICS_FILE = "save-metrics.jsonl";
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
 
     protected static final String META_DATA_DIFF = "multi-user-diff-widgets";
+    /** On a widget when it was marked as deleted, on a state of a delta log record when its widgets were deleted. */
     protected static final String DELETED_AT = "multi-user-merge-deleted-at";
-
-    private static AppState stateFromSessionStart = null;
+    
+    protected static final String BASELINE_SNAPSHOT = "snapshot";
+    protected static final String BASELINE_FINGERPRINT = "fingerprint";
+
+    protected static final String MODEL_FORMAT_JSON = "json";
+    protected static final String MODEL_FORMAT_BINARY = "binary";
+    protected static final String MODEL_FORMAT_STORE = "store";
+
+    protected static final String SAVE_MODE_FULL = "full";
+    protected static final String SAVE_MODE_DELTA = "delta";
+
+    protected static final String MERGE_MODE_SEQUENTIAL = "sequential";
+    protected static final String MERGE_MODE_PARALLEL = "parallel";
+
+    protected static final String DIFF_MODE_SEQUENTIAL = "sequential";
+    protected static final String DIFF_MODE_PARALLEL = "parallel";
+
+    private static final long DEFAULT_TOMBSTONE_RETENTION_DAYS = 30;
+    private static final int DEFAULT_DELTA_LOG_FOLD_THRESHOLD = 20;
+    private static final int DEFAULT_SAVE_ATTEMPTS = 5;
+    private static final int DEFAULT_PARALLEL_MERGE_THRESHOLD = 2000;
+    private static final long SYNC_QUIET_MILLIS = 500;
+    private static final int SYNC_ATTEMPTS = 3;
+
+    private static volatile AppState stateFromSessionStart = null;
+    private static volatile SessionBaseline sessionBaseline = null;
+    private static AsyncSaver asyncSaver = null;
+    private static WidgetStore widgetStore = null;
+    private static final MergeMetrics METRICS = new MergeMetrics();
+    private static final ThreadLocal<MergeMetrics> SAVE_METRICS = new ThreadLocal<>();
+
+    private static final Object SYNC_LOCK = new Object();
+    private static SharedModelWatcher sharedModelWatcher = null;
+    private static RemoteChanges remoteChanges = null;
+    private static long syncedModelVersion = 0;
+    private static volatile ChangeFeed changeFeed = null;
     private static String sharedModelFolder=null;
 
     protected enum DiffType {
@@ -66,6 +132,7 @@ public class MultiUser {
     }
 
     public MultiUser(boolean skipInit) {
+        LOG.setLevel(getLogLevel());
         if (skipInit) {
             return;
         }
@@ -74,6 +141,26 @@ public class MultiUser {
         StateController.setProducts(products);
 
         sharedModelFolder = StateController.getSystemProperty("multiUserPlugin.sharedModelFolder", DATA_FILEPATH);
+        METRICS.register();
+    }
+
+    private static AsyncLogger createLogger() {
+        AsyncLogger logger = new AsyncLogger(System.out, LOG_BUFFER_SIZE, AsyncLogger.Level.INFO);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> logger.flush(1000), "multi-user-log-flush"));
+        return logger;
+    }
+
+    /**
+     * The property "multiUserPlugin.logLevel" sets the lowest level that is logged: 
+     * "debug", "info", "warn" or "error". The default "info" leaves out the messages for single widgets.
+     */
+    protected AsyncLogger.Level getLogLevel() {
+        String logLevel = StateController.getSystemProperty("multiUserPlugin.logLevel", "info");
+        try {
+            return AsyncLogger.Level.valueOf(logLevel.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return AsyncLogger.Level.INFO;
+        }
     }
 
     public void enablePlugin() {
@@ -102,45 +189,413 @@ public class MultiUser {
      * @return A state tree
      */
     public AppState loadState() {
+        awaitAsyncSave();
         stateFromSessionStart = null;
+        sessionBaseline = null;
         String product = StateController.getProduct();
         String filePath = getFilePathForProduct(product);
 
         Properties properties = loadProductProperties(product, filePath);
         StateController.setProductProperties(properties);
 
-        String sharedModelFilePath = sharedModelFolder + "/" + MODEL_FILENAME;
-        JSONObject jsonModel = loadJSONModel(sharedModelFilePath);
+        String sharedModelFilePath = getSharedModelFilePath();
+        startSync(sharedModelFilePath);
+        boolean isLazyLoad = isLazyLoad();
+        AppState state = isLazyLoad ? loadIndexedSnapshot(sharedModelFilePath) : null;
+        if (state == null) {
+            state = loadSharedModel(sharedModelFilePath);
+            if (isLazyLoad && state != null) {
+                updateIndexedSnapshot(sharedModelFilePath, state, readModelVersion(sharedModelFilePath));
+            }
+        }
         
-        if (jsonModel == null) {
+        if (state == null) {
             AppState emptyState = new AppState("0", "Home");
-            saveStateModel(sharedModelFilePath, emptyState);
+            createSharedModel(sharedModelFilePath, emptyState);
             return emptyState;
         }
 
-        AppState state = parseCompleteAppState(jsonModel);
         removeAllMarkedAsDeletedWidgets(state);
 
-        stateFromSessionStart = deepCopy(state);
+        MergeMetrics.Timer timer = metrics().time(Phase.COPY);
+        try {
+            if (isLazyLoad || BASELINE_FINGERPRINT.equals(getSessionBaselineMode())) {
+                sessionBaseline = SessionBaseline.record(state);
+            } else {
+                stateFromSessionStart = deepCopy(state);
+            }
+        } finally {
+            timer.stop();
+        }
+        metrics().increment(Counter.LOADS);
         return state;
     }
 
-    protected void removeAllMarkedAsDeletedWidgets(AppState state) {
-        Iterator<Widget> iter = state.getAllIncludingChildWidgets().iterator();
-        while(iter.hasNext()) {
-            Widget widget = iter.next();
-            if (!isMarkedAsDeleted(widget)) {
-                continue;
+    /**
+     * The property "multiUserPlugin.sessionBaseline" selects how the state at session start is kept:
+     * "snapshot" keeps a deep copy of the whole tree, "fingerprint" keeps a {@link SessionBaseline}.
+     */
+    protected String getSessionBaselineMode() {
+        return StateController.getSystemProperty("multiUserPlugin.sessionBaseline", BASELINE_SNAPSHOT);
+    }
+
+    /**
+     * The property "multiUserPlugin.lazyLoad" set to "true" loads the shared model from an
+     * {@link IndexedSnapshot}, so that only the states visited in the session are read.
+     * The session start is always kept as a {@link SessionBaseline} then.
+     */
+    protected boolean isLazyLoad() {
+        return Boolean.parseBoolean(StateController.getSystemProperty("multiUserPlugin.lazyLoad", "false"));
+    }
+
+    /**
+     * Opens the indexed snapshot of the shared model, if it is up to date.
+     * States read later on demand get the same treatment as the tree at session start:
+     * widgets marked as deleted are removed and the states are added to the session baseline.
+     * @return the root state or null if the shared model must be loaded completely
+     */
+    private AppState loadIndexedSnapshot(String sharedModelFilePath) {
+        long version = readModelVersion(sharedModelFilePath);
+        if (version <= 0 || hasUnfoldedChanges(sharedModelFilePath, version)) {
+            return null;
+        }
+
+        String snapshotFilePath = getIndexedSnapshotFilePath(sharedModelFilePath);
+        try {
+            if (IndexedSnapshot.readModelVersion(snapshotFilePath) != version) {
+                log("Indexed snapshot is outdated, load complete shared model");
+                return null;
             }
+            IndexedSnapshot snapshot = IndexedSnapshot.open(snapshotFilePath);
+            snapshot.setLoadListener((widget, nextState) -> {
+                removeMarkedAsDeletedWidgets(nextState, Collections.newSetFromMap(new IdentityHashMap<>()));
+                SessionBaseline baseline = sessionBaseline;
+                if (baseline != null) {
+                    baseline.recordLoaded(widget, nextState);
+                }
+            });
+            log("Load shared model lazily from " + snapshotFilePath);
+            return snapshot.getRootState();
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (Exception e) {
+            log("Unable to open indexed snapshot: " + e.getMessage());
+            return null;
+        }
+    }
 
-            AppState widgetState = state.findState(widget);
-            if (widgetState == null) {
+    /**
+     * Writes the indexed snapshot for the next lazy load. Failures are only logged,
+     * the shared model itself stays the source of truth.
+     */
+    private void updateIndexedSnapshot(String sharedModelFilePath, AppState sharedState, long version) {
+        if (version <= 0 || hasUnfoldedChanges(sharedModelFilePath, version)) {
+            return;
+        }
+        Path target = Paths.get(getIndexedSnapshotFilePath(sharedModelFilePath));
+        Path temp = null;
+        try {
+            temp = Files.createTempFile(target.toAbsolutePath().getParent(), "shared-state", ".tmp");
+            try (FileOutputStream out = new FileOutputStream(temp.toFile())) {
+                IndexedSnapshot.write(out, sharedState, version);
+                out.getChannel().force(true);
+            }
+            moveAtomically(temp, target);
+        } catch (Exception e) {
+            log("Unable to write indexed snapshot: " + e.getMessage());
+            deleteQuietly(temp);
+        }
+    }
+
+    private String getIndexedSnapshotFilePath(String sharedModelFilePath) {
+        return Paths.get(sharedModelFilePath).resolveSibling(INDEXED_SNAPSHOT_FILENAME).toString();
+    }
+
+    /**
+     * The property "multiUserPlugin.sync" set to "true" pulls the changes of other testers
+     * into the session while it runs, see {@link #changeState()}.
+     * Not available with lazy loading, since most of the session tree is not loaded then.
+     */
+    protected boolean isSync() {
+        return Boolean.parseBoolean(StateController.getSystemProperty("multiUserPlugin.sync", "false")) && !isLazyLoad();
+    }
+
+    /**
+     * Starts watching the folder of the shared model, or stops if sync is off.
+     */
+    private void startSync(String sharedModelFilePath) {
+        synchronized (SYNC_LOCK) {
+            DeltaLog deltaLog = getDeltaLog(sharedModelFilePath);
+            remoteChanges = null;
+            syncedModelVersion = readModelVersion(sharedModelFilePath);
+            changeFeed = new ChangeFeed(deltaLog, deltaLog.length());
+
+            Path folder = Paths.get(sharedModelFilePath).toAbsolutePath().getParent();
+            if (sharedModelWatcher != null && (!isSync() || !sharedModelWatcher.getFolder().equals(folder))) {
+                stopSync();
+            }
+            if (!isSync() || sharedModelWatcher != null) {
+                return;
+            }
+
+            Set<String> fileNames = new HashSet<>(Arrays.asList(MODEL_FILENAME, BINARY_MODEL_FILENAME, DELTA_LOG_FILENAME));
+            try {
+                sharedModelWatcher = new SharedModelWatcher(folder, fileNames, SYNC_QUIET_MILLIS, 
+                    () -> pullRemoteChanges(sharedModelFilePath));
+                sharedModelWatcher.start();
+                log("Sync session with shared model in " + folder);
+            } catch (IOException e) {
+                log("Unable to watch shared model folder: " + e.getMessage());
+            }
+        }
+    }
+
+    private static void stopSync() {
+        try {
+            sharedModelWatcher.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        sharedModelWatcher = null;
+    }
+
+    /**
+     * @return the feed of change records of the current session, 
+     * which also keeps the latency until remote changes are visible in the session
+     */
+    public ChangeFeed getChangeFeed() {
+        return changeFeed;
+    }
+
+    /**
+     * Prepares the changes of the shared model after it changed. If only records were appended 
+     * to the delta log, just these records are read, otherwise the complete shared model is loaded.
+     * Runs on the thread of the watcher, the session tree itself is changed later in {@link #changeState()}.
+     */
+    private void pullRemoteChanges(String sharedModelFilePath) {
+        ChangeFeed feed;
+        long syncedVersion;
+        synchronized (SYNC_LOCK) {
+            feed = changeFeed;
+            syncedVersion = syncedModelVersion;
+        }
+        long version = readModelVersion(sharedModelFilePath);
+        if (version == syncedVersion && !feed.hasNewRecords()) {
+            return;
+        }
+
+        if (version == syncedVersion && stateFromSessionStart != null) {
+            try {
+                List<AppState> records = feed.readNewRecords();
+                if (records != null) {
+                    if (records.isEmpty() || pullChangeRecords(feed, records)) {
+                        return;
+                    }
+                }
+            } catch (IOException | ParseException e) {
+                log("Unable to read change records: " + e.getMessage());
+            }
+        }
+        pullSharedModel(sharedModelFilePath, version, feed);
+    }
+
+    /**
+     * Applies new records of the delta log to a copy of the session start, or of the session
+     * start that pending changes lead to, and adds the records to the pending changes.
+     * @return false if the session start kept changing meanwhile
+     */
+    private boolean pullChangeRecords(ChangeFeed feed, List<AppState> records) {
+        long writtenAtMillis = feed.getLastWriteMillis();
+        for (int attempt = 1; attempt <= SYNC_ATTEMPTS; attempt++) {
+            RemoteChanges pending;
+            AppState sessionStart;
+            synchronized (SYNC_LOCK) {
+                pending = remoteChanges;
+                sessionStart = pending != null ? pending.rebasedSessionStart : stateFromSessionStart;
+            }
+            if (sessionStart == null) {
+                return false;
+            }
+
+            AppState rebasedSessionStart = deepCopy(sessionStart);
+            MergeIndex index = MergeIndex.build(rebasedSessionStart);
+            for (AppState record : records) {
+                // The record itself is merged into the session tree later.
+                applyStateChanges(rebasedSessionStart, AppStateCloner.copy(record), index);
+            }
+            removeAllMarkedAsDeletedWidgets(rebasedSessionStart);
+
+            synchronized (SYNC_LOCK) {
+                if (changeFeed != feed || remoteChanges != pending || pending == null && stateFromSessionStart != sessionStart) {
+                    continue;
+                }
+                remoteChanges = pending == null 
+                    ? new RemoteChanges(records, sessionStart, null, writtenAtMillis)
+                    : pending.followedBy(records, writtenAtMillis);
+                remoteChanges.rebasedSessionStart = rebasedSessionStart;
+            }
+            log("Pulled " + records.size() + " change records, apply at next state change");
+            return true;
+        }
+        return false;
+    }
+
+    private void pullSharedModel(String sharedModelFilePath, long version, ChangeFeed feed) {
+        DeltaLog deltaLog = getDeltaLog(sharedModelFilePath);
+        long deltaLogLength = deltaLog.length();
+        long writtenAtMillis = Math.max(new File(sharedModelFilePath).lastModified(), deltaLog.lastModified());
+        AppState sharedState = loadSharedModel(sharedModelFilePath);
+        if (sharedState == null) {
+            return;
+        }
+
+        for (int attempt = 1; attempt <= SYNC_ATTEMPTS; attempt++) {
+            AppState sessionStart = stateFromSessionStart;
+            SessionBaseline baseline = sessionBaseline;
+            if (sessionStart == null && baseline == null) {
+                return;
+            }
+            RemoteChanges changes = diffRemoteChanges(sharedState, sessionStart, baseline);
+            changes.writtenAtMillis = writtenAtMillis;
+
+            synchronized (SYNC_LOCK) {
+                if (changeFeed != feed || stateFromSessionStart != sessionStart || sessionBaseline != baseline) {
+                    continue;
+                }
+                // Replaces pending changes, the shared model contains them
+                syncedModelVersion = version;
+                feed.skipTo(deltaLogLength);
+                remoteChanges = changes;
+            }
+            log("Pulled shared model version " + version + ", apply at next state change");
+            return;
+        }
+    }
+
+    /**
+     * Annotates the changes of the shared model since the session start, 
+     * which are the changes saved by other testers and by earlier saves of this session.
+     * @param sharedState current shared model, is annotated
+     */
+    protected RemoteChanges diffRemoteChanges(AppState sharedState, AppState sessionStart, SessionBaseline baseline) {
+        removeAllMarkedAsDeletedWidgets(sharedState);
+
+        RemoteChanges changes = new RemoteChanges(Collections.singletonList(sharedState), sessionStart, baseline, 
+            System.currentTimeMillis());
+        if (baseline != null) {
+            changes.rebasedBaseline = SessionBaseline.record(sharedState);
+            annotateDiffsAgainstBaseline(baseline, sharedState);
+        } else {
+            changes.rebasedSessionStart = deepCopy(sharedState);
+            annotateDiffsInStates(sessionStart, sharedState);
+        }
+        return changes;
+    }
+
+    /**
+     * Merges the changes of the shared model into the session tree and makes the shared model 
+     * the new session start, so that the next save only merges the own changes made since then.
+     */
+    protected void applyRemoteChanges(AppState sessionState, RemoteChanges changes) {
+        long startTime = System.nanoTime();
+
+        MergeIndex sessionIndex = MergeIndex.build(sessionState);
+        for (AppState change : changes.changes) {
+            applyStateChanges(sessionState, change, sessionIndex);
+        }
+        removeAllMarkedAsDeletedWidgets(sessionState);
+        stateFromSessionStart = changes.rebasedSessionStart;
+        sessionBaseline = changes.rebasedBaseline;
+
+        log("Applied changes of other testers in " + (System.nanoTime() - startTime) / 1_000_000 + " ms");
+    }
+
+    /**
+     * Called by Scout on its own thread when the current state changed.
+     * Applies the changes of the shared model that the sync pulled in the background,
+     * unless they were diffed against an outdated session start.
+     */
+    public void changeState() {
+        AppState sessionState = StateController.getStateTree();
+        synchronized (SYNC_LOCK) {
+            RemoteChanges changes = remoteChanges;
+            remoteChanges = null;
+            if (changes == null || sessionState == null 
+                || stateFromSessionStart != changes.sessionStart || sessionBaseline != changes.baseline) {
+                return;
+            }
+            applyRemoteChanges(sessionState, changes);
+            changeFeed.recordVisible(changes.writtenAtMillis);
+            log("Remote changes visible " + changeFeed.getLastLatencyMillis() + " ms after they were written");
+        }
+    }
+
+    /**
+     * Annotated changes to merge into the session in order, either the shared model annotated 
+     * with its changes since a session start or records of the delta log, and the session start
+     * that replaces the old one once the changes are applied.
+     */
+    protected static class RemoteChanges {
+        private final List<AppState> changes;
+        private final AppState sessionStart;
+        private final SessionBaseline baseline;
+        private long writtenAtMillis;
+        private AppState rebasedSessionStart = null;
+        private SessionBaseline rebasedBaseline = null;
+
+        private RemoteChanges(List<AppState> changes, AppState sessionStart, SessionBaseline baseline, long writtenAtMillis) {
+            this.changes = changes;
+            this.sessionStart = sessionStart;
+            this.baseline = baseline;
+            this.writtenAtMillis = writtenAtMillis;
+        }
+
+        /**
+         * @return these changes followed by the given ones, written at the time of the first changes
+         */
+        private RemoteChanges followedBy(List<AppState> nextChanges, long nextWrittenAtMillis) {
+            List<AppState> allChanges = new ArrayList<>(changes);
+            allChanges.addAll(nextChanges);
+            return new RemoteChanges(allChanges, sessionStart, baseline, Math.min(writtenAtMillis, nextWrittenAtMillis));
+        }
+    }
+
+    /**
+     * Removes all widgets that are marked as deleted in one depth-first pass over the state tree.
+     * The states behind a removed widget are not visited, they are no longer reachable.
+     * States that were not loaded yet are skipped, they are cleaned up when they are loaded.
+     * @param state root of the state tree
+     * @return number of removed widgets
+     */
+    protected int removeAllMarkedAsDeletedWidgets(AppState state) {
+        long startTime = System.nanoTime();
+
+        int removed = removeMarkedAsDeletedWidgets(state, Collections.newSetFromMap(new IdentityHashMap<>()));
+
+        long durationMs = (System.nanoTime() - startTime) / 1_000_000;
+        log("Removed " + removed + " as deleted marked widgets in " + durationMs + " ms");
+        return removed;
+    }
+
+    private int removeMarkedAsDeletedWidgets(AppState state, Set<AppState> visited) {
+        if (!visited.add(state)) {
+            return 0;
+        }
+
+        int removed = 0;
+        for (Widget widget : state.getVisibleWidgets()) {
+            if (isMarkedAsDeleted(widget)) {
+                state.removeWidget(widget);
+                removed++;
                 continue;
             }
 
-            log("Remove as deleted marked widget with id " + widget.getId() + " from state with id " + widgetState.getId());
-            widgetState.removeWidget(widget);
+            AppState nextState = LazyWidget.isUnloaded(widget) ? null : widget.getNextState();
+            if (nextState != null && !nextState.isHome()) {
+                removed += removeMarkedAsDeletedWidgets(nextState, visited);
+            }
         }
+        return removed;
     }
 
     private String getFilePathForProduct(String product) {
@@ -164,60 +619,784 @@ public class MultiUser {
         }
     }
 
-    private JSONObject loadJSONModel(String filePath) {
-        JSONParser jsonParser = new JSONParser();
-        JSONObject jsonState = null;
+    /**
+     * The property "multiUserPlugin.modelFormat" selects the file format of the shared model:
+     * "json" for shared-state.json, "binary" for a {@link BinaryStateFormat} snapshot in shared-state.bin
+     * or "store" for a snapshot in shared-state.store that references the widgets in a {@link WidgetStore}.
+     * With "store", the session files are written as such snapshots as well.
+     */
+    protected String getSharedModelFilePath() {
+        String modelFormat = StateController.getSystemProperty("multiUserPlugin.modelFormat", MODEL_FORMAT_JSON);
+        if (MODEL_FORMAT_BINARY.equals(modelFormat)) {
+            return sharedModelFolder + "/" + BINARY_MODEL_FILENAME;
+        }
+        if (MODEL_FORMAT_STORE.equals(modelFormat)) {
+            return sharedModelFolder + "/" + STORE_MODEL_FILENAME;
+        }
+        return sharedModelFolder + "/" + MODEL_FILENAME;
+    }
+
+    private boolean isBinaryModelFile(String filePath) {
+        return filePath.endsWith(".bin");
+    }
+
+    private boolean isStoreModelFile(String filePath) {
+        return filePath.endsWith(".store");
+    }
+
+    /**
+     * The widget store lives next to the shared model, so it is shared by all products and testers.
+     * It is kept for the following saves, so that only widgets appended by others are indexed again.
+     */
+    private WidgetStore getWidgetStore() {
+        return getWidgetStore(Paths.get(getSharedModelFilePath()).resolveSibling(WIDGET_STORE_FOLDER).toAbsolutePath());
+    }
+
+    private static synchronized WidgetStore getWidgetStore(Path folder) {
+        if (widgetStore == null || !widgetStore.getFolder().equals(folder)) {
+            widgetStore = new WidgetStore(folder);
+        }
+        return widgetStore;
+    }
+
+    /**
+     * Loads the shared model and replays the session changes from the delta log that were not folded into it yet.
+     * @return the shared model or null if it can not be read
+     */
+    private AppState loadSharedModel(String sharedModelFilePath) {
+        long version = readModelVersion(sharedModelFilePath);
+        if (version < 0) {
+            return null;
+        }
+        AppState sharedState = loadStateModel(sharedModelFilePath);
+        if (sharedState == null && new File(sharedModelFilePath).exists()) {
+            log("Unable to read shared model " + sharedModelFilePath);
+            return null;
+        }
+        if (sharedState == null && (isBinaryModelFile(sharedModelFilePath) || isStoreModelFile(sharedModelFilePath))) {
+            String jsonModelFilePath = Paths.get(sharedModelFilePath).resolveSibling(MODEL_FILENAME).toString();
+            if (new File(jsonModelFilePath).exists()) {
+                log("Import shared model from " + jsonModelFilePath);
+                sharedState = loadStateModel(jsonModelFilePath);
+                if (sharedState == null) {
+                    return null;
+                }
+            }
+        }
+
+        List<DeltaLog> deltaLogs = getDeltaLog(sharedModelFilePath).getUnfoldedLogs(version);
+        if (deltaLogs.isEmpty()) {
+            return sharedState;
+        }
+        if (sharedState == null) {
+            sharedState = new AppState("0", "Home");
+        }
+
+        MergeMetrics.Timer timer = metrics().time(Phase.MERGE);
+        try {
+            MergeIndex sharedIndex = MergeIndex.build(sharedState);
+            int recordCount = 0;
+            for (DeltaLog deltaLog : deltaLogs) {
+                List<AppState> records = readDeltaLog(deltaLog);
+                if (records == null) {
+                    return null;
+                }
+                for (AppState record : records) {
+                    applyStateChanges(sharedState, record, sharedIndex);
+                }
+                recordCount += records.size();
+            }
+            log("Replayed " + recordCount + " session changes from delta log");
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            timer.stop();
+        }
+        return sharedState;
+    }
+
+    private DeltaLog getDeltaLog(String sharedModelFilePath) {
+        return new DeltaLog(Paths.get(sharedModelFilePath).resolveSibling(DELTA_LOG_FILENAME).toString());
+    }
+
+    /**
+     * @return true if the delta log has records that the shared model of the given version does not contain
+     */
+    /**
+     * The log is left as it is if a record can not be read, so the shared model is neither 
+     * loaded nor written until the log is repaired and no session changes get lost.
+     * @return the records of the log or null if a record other than the last one can not be read
+     */
+    private List<AppState> readDeltaLog(DeltaLog deltaLog) throws IOException {
+        try {
+            return deltaLog.readRecords();
+        } catch (ParseException e) {
+            log("Delta log " + deltaLog.getFilePath() + " has an unreadable record, the shared model is not changed: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the given state as the shared model if there is neither a model nor a delta log yet.
+     * A model or log that exists but can not be read is left unchanged, so that no changes are lost.
+     * @return true if the model was written
+     */
+    private boolean createSharedModel(String sharedModelFilePath, AppState emptyState) {
+        return withSharedModelLock(sharedModelFilePath, () -> {
+            String jsonModelFilePath = Paths.get(sharedModelFilePath).resolveSibling(MODEL_FILENAME).toString();
+            if (new File(sharedModelFilePath).exists() || new File(jsonModelFilePath).exists() 
+                    || hasUnfoldedChanges(sharedModelFilePath, 0)) {
+                log("Shared model can not be read, it is left unchanged and the session starts with an empty state");
+                return false;
+            }
+            return saveStateModel(sharedModelFilePath, emptyState);
+        });
+    }
+
+    private boolean hasUnfoldedChanges(String sharedModelFilePath, long version) {
+        return !getDeltaLog(sharedModelFilePath).getUnfoldedLogs(version).isEmpty();
+    }
+
+    private AppState loadStateModel(String filePath) {
+        MergeMetrics.Timer timer = metrics().time(Phase.LOAD);
+        try {
+            if (isBinaryModelFile(filePath)) {
+                return BinaryStateFormat.readStateModel(filePath);
+            }
+            if (isStoreModelFile(filePath)) {
+                return getWidgetStore().readSnapshot(filePath);
+            }
+            ParseContext context = new ParseContext();
+            AppState state = JSONStateReader.readStateModel(filePath, context);
+            log("Shared " + context.getDuplicateStrings() + " repeated strings while parsing, saved about " 
+                + context.getSavedBytes() / 1024 + " KB");
+            return state;
+        } catch(FileNotFoundException nfe) {
+            log("State model file not found at location '"+ filePath+"'. Start with empty model.");
+            return null;
+        } catch(Exception e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            timer.stop();
+        }
+    }
+
+    /**
+     * Save the state tree for the current product.
+     * With "multiUserPlugin.asyncSave", only a copy of the state tree is taken here 
+     * and the save runs in the background, see {@link #saveStateAsync()}.
+     * @return true if done, or if the save was started in the background
+     */
+    public Boolean saveState() {
+        if (isAsyncSave()) {
+            saveStateAsync();
+            return true;
+        }
+
+        String product=StateController.getProduct();
+        
+        String productFilePath = getFilePathForProduct(product);
+        
+        String sharedModelFilePath = getSharedModelFilePath();
+        
+        AppState sessionState=StateController.getStateTree();
+        return saveSession(productFilePath, sharedModelFilePath, sessionState, 
+            sessionBaseline, stateFromSessionStart, StateController.getProductProperties());
+    }
+
+    /**
+     * Copies the state tree for the current product and saves the copy on a background thread.
+     * Saves that are started while another one still waits are coalesced into the newest one.
+     * @return completes with true when the session is saved, 
+     * with false or exceptionally if the save failed
+     */
+    public CompletableFuture<Boolean> saveStateAsync() {
+        String product = StateController.getProduct();
+        String productFilePath = getFilePathForProduct(product);
+        String sharedModelFilePath = getSharedModelFilePath();
+        SessionBaseline baseline = sessionBaseline;
+        AppState sessionStart = stateFromSessionStart;
+        Properties productProperties = new Properties();
+        if (StateController.getProductProperties() != null) {
+            productProperties.putAll(StateController.getProductProperties());
+        }
+        AppState sessionState;
+        MergeMetrics.Timer timer = metrics().time(Phase.COPY);
+        try {
+            sessionState = AppStateCloner.copy(StateController.getStateTree());
+        } finally {
+            timer.stop();
+        }
+
+        CompletableFuture<Boolean> save = getAsyncSaver().submit(() -> 
+            saveSession(productFilePath, sharedModelFilePath, sessionState, baseline, sessionStart, productProperties));
+        save.whenComplete((isSaved, e) -> {
+            if (e != null) {
+                log("Background save failed: " + e);
+            } else if (!isSaved) {
+                log("Background save failed");
+            }
+        });
+        return save;
+    }
+
+    /**
+     * @return the latest background save, completed if there was none
+     */
+    public CompletableFuture<Boolean> getLastAsyncSave() {
+        return getAsyncSaver().getLastSave();
+    }
+
+    /**
+     * The property "multiUserPlugin.asyncSave" set to "true" saves sessions in the background.
+     */
+    protected boolean isAsyncSave() {
+        return Boolean.parseBoolean(StateController.getSystemProperty("multiUserPlugin.asyncSave", "false"));
+    }
+
+    /**
+     * Waits for the latest background save, so that a new session starts from the saved model.
+     */
+    private static void awaitAsyncSave() {
+        AsyncSaver saver;
+        synchronized (MultiUser.class) {
+            saver = asyncSaver;
+        }
+        if (saver == null) {
+            return;
+        }
+        try {
+            saver.getLastSave().join();
+        } catch (CompletionException e) {
+            // Logged when the save completed
+        }
+    }
+
+    private static synchronized AsyncSaver getAsyncSaver() {
+        if (asyncSaver == null) {
+            asyncSaver = new AsyncSaver();
+        }
+        return asyncSaver;
+    }
+
+    /**
+     * Saves the session with metrics of its own, so that the report of the save 
+     * does not count what the sync or another save does at the same time.
+     */
+    private boolean saveSession(String productFilePath, String sharedModelFilePath, AppState sessionState, 
+            SessionBaseline baseline, AppState sessionStart, Properties productProperties) {
+        MergeMetrics saveMetrics = METRICS.newChild();
+        MergeMetrics.Snapshot before = saveMetrics.snapshot();
+        boolean[] isSaved = { false };
+        try {
+            runWithMetrics(saveMetrics, () -> isSaved[0] = 
+                doSaveSession(productFilePath, sharedModelFilePath, sessionState, baseline, sessionStart, productProperties));
+            return isSaved[0];
+        } finally {
+            saveMetrics.increment(isSaved[0] ? Counter.SAVES : Counter.FAILED_SAVES);
+            reportSave(productFilePath, saveMetrics.snapshot().since(before), isSaved[0]);
+        }
+    }
+
+    /**
+     * @return the metrics of the save running on the current thread, or the metrics of the plugin
+     */
+    private static MergeMetrics metrics() {
+        MergeMetrics metrics = SAVE_METRICS.get();
+        return metrics == null ? METRICS : metrics;
+    }
+
+    /**
+     * Runs the action with the given metrics as the metrics of the current thread.
+     * Tasks that continue a save on other threads must be run with the metrics of the save.
+     */
+    static void runWithMetrics(MergeMetrics metrics, Runnable action) {
+        MergeMetrics outer = SAVE_METRICS.get();
+        SAVE_METRICS.set(metrics);
+        try {
+            action.run();
+        } finally {
+            if (outer == null) {
+                SAVE_METRICS.remove();
+            } else {
+                SAVE_METRICS.set(outer);
+            }
+        }
+    }
+
+    private boolean doSaveSession(String productFilePath, String sharedModelFilePath, AppState sessionState, 
+            SessionBaseline baseline, AppState sessionStart, Properties productProperties) {
+        createFolderIfNotExist(productFilePath);
+
+        MergeMetrics.Timer timer = metrics().time(Phase.DIFF);
+        try {
+            if (baseline != null) {
+                annotateDiffsAgainstBaseline(baseline, sessionState);
+            } else {
+                annotateDiffsInStates(sessionStart, sessionState);   
+            }
+        } finally {
+            timer.stop();
+        }
+
+        boolean isSaved = SAVE_MODE_DELTA.equals(getSaveMode())
+            ? saveSessionChanges(sharedModelFilePath, sessionState)
+            : saveMergedModel(sharedModelFilePath, productFilePath, sessionState);
+        if (!isSaved) {
+            return false;
+        }
+
+        String propertiesFilePath = productFilePath + "/" + PRODUCT_PROPERTIES_FILE;
+        saveProductProperties(propertiesFilePath, productProperties);
+        
+        // Update products
+        StateController.setProducts(getFolders(DATA_FILEPATH));
+        
+        return true;
+    }
+
+    /**
+     * Keeps the timers and counters of the save as last save report. With the property 
+     * "multiUserPlugin.metricsReport" set to "true", the report is also appended as a line
+     * of JSON to save-metrics.jsonl in the product folder.
+     */
+    @SuppressWarnings("unchecked")
+    private void reportSave(String productFilePath, JSONObject report, boolean isSaved) {
+        report.put("saved-at-ms", Instant.now().toEpochMilli());
+        report.put("product", StateController.getProduct());
+        report.put("save-mode", getSaveMode());
+        report.put("saved", isSaved);
+        METRICS.setLastSaveReport(report);
+
+        if (!Boolean.parseBoolean(StateController.getSystemProperty("multiUserPlugin.metricsReport", "false"))) {
+            return;
+        }
+        Path reportFile = Paths.get(productFilePath, SAVE_METRICS_FILE);
+        try {
+            Files.write(reportFile, Collections.singletonList(report.toJSONString()), StandardCharsets.UTF_8, 
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            log("Unable to write save metrics to " + reportFile + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return timers and counters of loads and saves, also registered as MBean {@value MergeMetrics#OBJECT_NAME}
+     */
+    public MergeMetrics getMergeMetrics() {
+        return METRICS;
+    }
+
+    /**
+     * The property "multiUserPlugin.saveMode" selects how sessions are saved: 
+     * "full" merges the session into the shared model and writes it together with a session file,
+     * "delta" appends the session changes to the delta log next to the shared model.
+     */
+    protected String getSaveMode() {
+        return StateController.getSystemProperty("multiUserPlugin.saveMode", SAVE_MODE_FULL);
+    }
+
+    private boolean saveMergedModel(String sharedModelFilePath, String productFilePath, AppState sessionState) {
+        if (!mergeIntoSharedModel(sharedModelFilePath, sessionState)) {
+            return false;
+        }
+        
+        String sessionName = "session-state-" + dfFiles.format(LocalDateTime.now());
+        if (isSessionArchive()) {
+            return archiveSession(productFilePath, sessionName + ".json", sessionState);
+        }
+        if (isStoreModelFile(sharedModelFilePath)) {
+            return saveStateModel(productFilePath + "/" + sessionName + ".store", sessionState);
+        }
+        return saveStateModel(productFilePath + "/" + sessionName + ".json", sessionState);
+    }
+
+    /**
+     * The property "multiUserPlugin.sessionArchive" set to "true" keeps the session files of a product
+     * in a {@link SessionArchive} instead of single files. Session files from before are moved into it.
+     * The properties "multiUserPlugin.sessionRetentionCount" and "multiUserPlugin.sessionRetentionDays" 
+     * limit how many sessions and for how long they are kept, 0 keeps all.
+     */
+    protected boolean isSessionArchive() {
+        return Boolean.parseBoolean(StateController.getSystemProperty("multiUserPlugin.sessionArchive", "false"));
+    }
+
+    private boolean archiveSession(String productFilePath, String sessionName, AppState sessionState) {
+        SessionArchive archive = new SessionArchive(Paths.get(productFilePath));
+        try (SharedModelLock lock = archive.lock()) {
+            metrics().record(Phase.LOCK_WAIT, TimeUnit.MILLISECONDS.toNanos(lock.getWaitedMillis()));
+            MergeMetrics.Timer timer = metrics().time(Phase.WRITE);
+            try {
+                int newChunks = archive.archive(sessionName, sessionState);
+                importSessionFiles(archive, Paths.get(productFilePath));
+
+                int removed = archive.prune(getSessionRetention("multiUserPlugin.sessionRetentionCount"), 
+                    getSessionRetention("multiUserPlugin.sessionRetentionDays"));
+                log("Archived " + sessionName + " with " + newChunks + " new chunks, removed " + removed 
+                    + " old sessions, archive has " + archive.getStoredBytes() / 1024 + " KB");
+                return true;
+            } finally {
+                timer.stop();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * @return names of the sessions in the archive of the current product, oldest first
+     */
+    public List<String> getArchivedSessions() {
+        try {
+            return new SessionArchive(Paths.get(getFilePathForProduct(StateController.getProduct()))).listSessions();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Rebuilds a session of the current product from the archive.
+     * @return the session state or null if it can not be rebuilt
+     */
+    public AppState loadArchivedSession(String sessionName) {
+        try {
+            return new SessionArchive(Paths.get(getFilePathForProduct(StateController.getProduct()))).rebuildState(sessionName);
+        } catch (IOException | ParseException e) {
+            log("Unable to rebuild archived session " + sessionName + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void importSessionFiles(SessionArchive archive, Path productFolder) throws IOException {
+        List<Path> sessionFiles;
+        try (Stream<Path> files = Files.list(productFolder)) {
+            sessionFiles = files
+                .filter(path -> path.getFileName().toString().matches("session-state-.*\\.json"))
+                .collect(Collectors.toList());
+        }
+        int imported = 0;
+        for (Path sessionFile : sessionFiles) {
+            if (archive.importFile(sessionFile)) {
+                imported++;
+            }
+        }
+        if (imported > 0) {
+            log("Moved " + imported + " session files into the archive");
+        }
+    }
+
+    private int getSessionRetention(String property) {
+        try {
+            return Integer.parseInt(StateController.getSystemProperty(property, "0").trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Merges the annotated session state into the shared model.
+     * @return true if done
+     */
+    protected boolean mergeIntoSharedModel(String sharedModelFilePath, AppState sessionState) {
+        return updateSharedModel(sharedModelFilePath, sharedState -> applyStateChanges(sharedState, sessionState));
+    }
+
+    /**
+     * Appends the changes of the session to the delta log and folds the log into
+     * the shared model once it holds "multiUserPlugin.deltaLogFoldThreshold" records.
+     */
+    private boolean saveSessionChanges(String sharedModelFilePath, AppState sessionState) {
+        DeltaLog deltaLog = getDeltaLog(sharedModelFilePath);
+        boolean isAppended = withSharedModelLock(sharedModelFilePath, () -> {
+            MergeMetrics.Timer timer = metrics().time(Phase.WRITE);
+            try {
+                if (!deltaLog.append(sessionState)) {
+                    log("Session has no changes for the delta log");
+                }
+                return true;
+            } catch (Exception e) {
+                e.printStackTrace();
+                return false;
+            } finally {
+                timer.stop();
+            }
+        });
+        if (!isAppended) {
+            return false;
+        }
+
+        try {
+            if (deltaLog.countRecords() < getDeltaLogFoldThreshold()) {
+                return true;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        return doFoldDeltaLog(sharedModelFilePath);
+    }
+
+    /**
+     * Merges all session changes of the delta log into the shared model and removes the log.
+     * @return true if done
+     */
+    public boolean foldDeltaLog() {
+        return doFoldDeltaLog(getSharedModelFilePath());
+    }
+
+    private boolean doFoldDeltaLog(String sharedModelFilePath) {
+        if (!hasUnfoldedChanges(sharedModelFilePath, readModelVersion(sharedModelFilePath))) {
+            return true;
+        }
+
+        if (!updateSharedModel(sharedModelFilePath, sharedState -> {})) {
+            return false;
+        }
+        log("Folded delta log into shared model");
+        return true;
+    }
+
+    /**
+     * Changes the shared model with optimistic concurrency control.
+     * 
+     * The model is loaded and changed without holding the lock. The lock is only taken to 
+     * check that neither the version of the model nor the delta log changed in the meantime
+     * and to write the model with the next version. On a conflict the update starts over 
+     * with the model written by the other tester, so only the own changes are merged again.
+     * After "multiUserPlugin.saveAttempts" conflicts, the whole update runs while holding the lock.
+     * The delta log is folded into the model with every update. With lazy loading, 
+     * the indexed snapshot is written after the lock is released.
+     * @param update changes the shared model in place
+     * @return true if done, false also if the version of the shared model can not be read
+     */
+    private boolean updateSharedModel(String sharedModelFilePath, Consumer<AppState> update) {
+        DeltaLog deltaLog = getDeltaLog(sharedModelFilePath);
+        int saveAttempts = getSaveAttempts();
+
+        for (int attempt = 1; attempt <= saveAttempts; attempt++) {
+            long version = readModelVersion(sharedModelFilePath);
+            if (version < 0) {
+                log("Unable to read the version of the shared model");
+                return false;
+            }
+            long deltaLogLength = deltaLog.length();
+            AppState sharedState = loadSharedModel(sharedModelFilePath);
+            if (sharedState == null) {
+                return false;
+            }
+            MergeMetrics.Timer timer = metrics().time(Phase.MERGE);
+            try {
+                update.accept(sharedState);
+            } finally {
+                timer.stop();
+            }
+            compactTombstones(sharedState);
+
+            Boolean isSaved = null;
+            try (SharedModelLock lock = SharedModelLock.acquire(sharedModelFilePath)) {
+                metrics().record(Phase.LOCK_WAIT, TimeUnit.MILLISECONDS.toNanos(lock.getWaitedMillis()));
+                if (readModelVersion(sharedModelFilePath) == version && deltaLog.length() == deltaLogLength) {
+                    isSaved = writeSharedModel(sharedModelFilePath, sharedState, version + 1);
+                    log("Held shared model lock for " + lock.getHeldMillis() + " ms, waited " + lock.getWaitedMillis() + " ms");
+                }
+            } catch (IOException e) {
+                log("Unable to lock shared model: " + e.getMessage());
+                e.printStackTrace();
+                return false;
+            }
+            if (isSaved != null) {
+                if (isSaved && isLazyLoad()) {
+                    updateIndexedSnapshot(sharedModelFilePath, sharedState, version + 1);
+                }
+                return isSaved;
+            }
+
+            log("Shared model was changed by another tester, merge again (attempt " + attempt + " of " + saveAttempts + ")");
+            if (!waitBeforeNextAttempt(attempt)) {
+                break;
+            }
+        }
+
+        return withSharedModelLock(sharedModelFilePath, () -> {
+            long version = readModelVersion(sharedModelFilePath);
+            AppState sharedState = version < 0 ? null : loadSharedModel(sharedModelFilePath);
+            if (sharedState == null) {
+                return false;
+            }
+            MergeMetrics.Timer timer = metrics().time(Phase.MERGE);
+            try {
+                update.accept(sharedState);
+            } finally {
+                timer.stop();
+            }
+            compactTombstones(sharedState);
+            return writeSharedModel(sharedModelFilePath, sharedState, version + 1);
+        });
+    }
+
+    /**
+     * Writes the shared model that contains the records of the delta log, while holding the lock.
+     * The log is moved aside before the model is written and deleted afterwards. If the model 
+     * is not written, the moved records are still replayed; once it is, they are skipped, 
+     * so a crash or a failed delete does not replay them twice.
+     * @return true if the model was written
+     */
+    private boolean writeSharedModel(String sharedModelFilePath, AppState sharedState, long version) {
+        DeltaLog deltaLog = getDeltaLog(sharedModelFilePath);
+        try {
+            deltaLog.moveToFold(version);
+        } catch (IOException e) {
+            log("Unable to move delta log aside: " + e.getMessage());
+            return false;
+        }
+        if (!saveStateModel(sharedModelFilePath, sharedState, version)) {
+            return false;
+        }
+        if (!deltaLog.deleteFolded(version)) {
+            log("Unable to delete folded delta log, it is skipped from now on");
+        }
+        return true;
+    }
+
+    /**
+     * Waits a random time that grows with the attempts, so that conflicting testers do not retry in lockstep.
+     * @return false if interrupted
+     */
+    private boolean waitBeforeNextAttempt(int attempt) {
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(1, 10L * attempt + 1));
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * @return the version of the shared model, 0 if there is none yet or -1 if it can not be read
+     */
+    private long readModelVersion(String sharedModelFilePath) {
+        try {
+            if (isBinaryModelFile(sharedModelFilePath)) {
+                return BinaryStateFormat.readModelVersion(sharedModelFilePath);
+            }
+            if (isStoreModelFile(sharedModelFilePath)) {
+                return WidgetStore.readModelVersion(sharedModelFilePath);
+            }
+            return JSONStateReader.readModelVersion(sharedModelFilePath);
+        } catch (FileNotFoundException e) {
+            return 0;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return -1;
+        }
+    }
+
+    private int getSaveAttempts() {
+        String saveAttempts = StateController.getSystemProperty("multiUserPlugin.saveAttempts", 
+            String.valueOf(DEFAULT_SAVE_ATTEMPTS));
+        try {
+            return Integer.parseInt(saveAttempts.trim());
+        } catch (NumberFormatException e) {
+            return DEFAULT_SAVE_ATTEMPTS;
+        }
+    }
+
+    /**
+     * Runs a read-modify-write of the shared model while no other tester can change it.
+     * @return the result of the action or false if the lock could not be acquired
+     */
+    private boolean withSharedModelLock(String sharedModelFilePath, BooleanSupplier action) {
+        try (SharedModelLock lock = SharedModelLock.acquire(sharedModelFilePath)) {
+            metrics().record(Phase.LOCK_WAIT, TimeUnit.MILLISECONDS.toNanos(lock.getWaitedMillis()));
+            boolean result = action.getAsBoolean();
+            log("Held shared model lock for " + lock.getHeldMillis() + " ms, waited " + lock.getWaitedMillis() + " ms");
+            return result;
+        } catch (IOException e) {
+            log("Unable to lock shared model: " + e.getMessage());
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private int getDeltaLogFoldThreshold() {
+        String threshold = StateController.getSystemProperty("multiUserPlugin.deltaLogFoldThreshold", 
+            String.valueOf(DEFAULT_DELTA_LOG_FOLD_THRESHOLD));
         try {
-            FileReader reader = new FileReader(filePath);			
-            jsonState = (JSONObject) jsonParser.parse(reader);
-            reader.close();
-        } catch(FileNotFoundException nfe) {
-            log("State model file not found at location '"+ filePath+"'. Start with empty model.");
-            return null;
-        } catch(Exception e) {
-            e.printStackTrace();
-            return null;
+            return Integer.parseInt(threshold.trim());
+        } catch (NumberFormatException e) {
+            return DEFAULT_DELTA_LOG_FOLD_THRESHOLD;
         }
-
-        return jsonState;
     }
 
     /**
-     * Save the state tree for the current product.
-     * @return true if done
+     * Removes the widgets from the shared model that were marked as deleted
+     * before the retention window and writes the model if anything was removed.
+     * The delta log is folded into the written model like with every other update.
+     * @return the removed widgets or null if the shared model could not be loaded or is not compacted
      */
-    public Boolean saveState() {
-        String product=StateController.getProduct();
-        
-        String productFilePath = getFilePathForProduct(product);
-        
-        createFolderIfNotExist(productFilePath);
-        
-        String sharedModelFilePath= sharedModelFolder + "/" + MODEL_FILENAME;
-        
-        AppState sessionState=StateController.getStateTree();
-        annotateDiffsInStates(stateFromSessionStart, sessionState);   
+    public TombstoneCompactor.Result compactSharedModel() {
+        String sharedModelFilePath = getSharedModelFilePath();
+        TombstoneCompactor.Result[] result = new TombstoneCompactor.Result[1];
+        withSharedModelLock(sharedModelFilePath, () -> {
+            long version = readModelVersion(sharedModelFilePath);
+            AppState sharedState = version < 0 ? null : loadSharedModel(sharedModelFilePath);
+            if (sharedState == null) {
+                return false;
+            }
 
-        JSONObject jsonSharedModel = loadJSONModel(sharedModelFilePath);
-        AppState currentSharedState = parseCompleteAppState(jsonSharedModel);
-        AppState mergedSharedModel = mergeStateChanges(currentSharedState, sessionState);
+            long bytesBefore = getFileSize(sharedModelFilePath);
+            result[0] = compactTombstones(sharedState);
+            if (result[0] != null && result[0].getTombstonesRemoved() > 0 && writeSharedModel(sharedModelFilePath, sharedState, version + 1)) {
+                log("Reclaimed " + (bytesBefore - getFileSize(sharedModelFilePath)) + " bytes in shared model");
+            }
+            return true;
+        });
+        return result[0];
+    }
 
-        if(!saveStateModel(sharedModelFilePath, mergedSharedModel)) {
-            return false;
+    /**
+     * The property "multiUserPlugin.tombstoneRetentionDays" sets how long widgets marked as deleted 
+     * are kept in the shared model. A negative value keeps them forever.
+     * @return the removed widgets or null if they are kept forever
+     */
+    protected TombstoneCompactor.Result compactTombstones(AppState sharedState) {
+        long retentionDays = getTombstoneRetentionDays();
+        if (retentionDays < 0) {
+            return null;
         }
-        
-        String sessionModelFilePath = productFilePath + "/" + "session-state-" + dfFiles.format(new Date()) + ".json";
-        if(!saveStateModel(sessionModelFilePath, sessionState)) {
-            return false;
+
+        TombstoneCompactor.Result result;
+        MergeMetrics.Timer timer = metrics().time(Phase.COMPACT);
+        try {
+            result = new TombstoneCompactor(retentionDays).compact(sharedState, Instant.now().toEpochMilli());
+        } finally {
+            timer.stop();
+        }
+        metrics().add(Counter.TOMBSTONES_PURGED, result.getTombstonesRemoved());
+        if (result.getTombstonesRemoved() > 0) {
+            log("Removed " + result.getTombstonesRemoved() + " widgets deleted more than " + retentionDays 
+                + " days ago, " + result.getWidgetsReclaimed() + " widgets reclaimed");
+        }
+        return result;
+    }
+
+    private long getTombstoneRetentionDays() {
+        String retentionDays = StateController.getSystemProperty("multiUserPlugin.tombstoneRetentionDays", 
+            String.valueOf(DEFAULT_TOMBSTONE_RETENTION_DAYS));
+        try {
+            return Long.parseLong(retentionDays.trim());
+        } catch (NumberFormatException e) {
+            return DEFAULT_TOMBSTONE_RETENTION_DAYS;
         }
+    }
 
-        String propertiesFilePath = productFilePath + "/" + PRODUCT_PROPERTIES_FILE;
-        saveProductProperties(propertiesFilePath);
-        
-        // Update products
-        StateController.setProducts(getFolders(DATA_FILEPATH));
-        
-        return true;
+    private long getFileSize(String filePath) {
+        return new File(filePath).length();
     }
 
     protected void createFolderIfNotExist(String filePath) {
@@ -226,9 +1405,13 @@ public class MultiUser {
     }
 
     protected boolean saveProductProperties(String filePath) {
+        return saveProductProperties(filePath, StateController.getProductProperties());
+    }
+
+    private boolean saveProductProperties(String filePath, Properties productProperties) {
         try {
             FileWriter fileWriter = new FileWriter(filePath);
-            StateController.getProductProperties().store(fileWriter, null);
+            productProperties.store(fileWriter, null);
             fileWriter.close();
         } catch (Exception e) {
             e.printStackTrace();
@@ -238,33 +1421,77 @@ public class MultiUser {
         return true;
     }
 
+    /**
+     * Writes the model into a temporary file next to the target, forces it to disk and 
+     * renames it atomically, so readers see either the old or the new model, never a part of it.
+     */
     private boolean saveStateModel(String filePath, AppState appState) {
-        String jsonState = "";
-        try {
-            jsonState = appStateAsJSONObject(appState).toJSONString();
-            
-        } catch (Exception e) {
-            log("Error while parsing app state as JSON object: " + e.getMessage());
-            e.printStackTrace();
-            return false;
-        }
-        
+        return saveStateModel(filePath, appState, null);
+    }
+
+    private boolean saveStateModel(String filePath, AppState appState, Long modelVersion) {
+        Path targetFile = Paths.get(filePath).toAbsolutePath();
+        Path tempFile = null;
+        MergeMetrics.Timer timer = metrics().time(Phase.WRITE);
         try {
-            FileWriter fileWriter = new FileWriter(filePath);
-            PrintWriter printWriter = new PrintWriter(fileWriter);
-            printWriter.print(jsonState);
-            printWriter.close();
-            fileWriter.close();
+            tempFile = Files.createTempFile(targetFile.getParent(), targetFile.getFileName().toString(), ".tmp");
+            if (isBinaryModelFile(filePath)) {
+                try (FileOutputStream out = new FileOutputStream(tempFile.toFile())) {
+                    BinaryStateFormat.write(out, appState, modelVersion == null ? 0 : modelVersion);
+                    out.getChannel().force(true);
+                }
+            } else if (isStoreModelFile(filePath)) {
+                WidgetStore store = getWidgetStore();
+                try (FileOutputStream out = new FileOutputStream(tempFile.toFile())) {
+                    store.writeSnapshot(out, appState, modelVersion == null ? 0 : modelVersion);
+                    out.getChannel().force(true);
+                }
+                log("Added " + store.getLastWrittenCount() + " widgets (" + store.getLastWrittenBytes() / 1024 
+                    + " KB) to the widget store, reused " + store.getLastReusedCount());
+            } else {
+                try (FileOutputStream out = new FileOutputStream(tempFile.toFile());
+                    Writer writer = new BufferedWriter(new OutputStreamWriter(out), WRITE_BUFFER_SIZE)) {
+                    if (modelVersion == null) {
+                        JSONStateWriter.write(writer, appState);
+                    } else {
+                        JSONStateWriter.write(writer, appState, modelVersion);
+                    }
+                    out.getChannel().force(true);
+                }
+            }
+            moveAtomically(tempFile, targetFile);
         } catch (Exception e) {
             log("Unable to save state model as file: " + e.getMessage());
             e.printStackTrace();
+            deleteQuietly(tempFile);
             return false;
+        } finally {
+            timer.stop();
         }
 
         log("Save state model file: " + filePath);
         return true;	
     }
 
+    private void moveAtomically(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private void deleteQuietly(Path file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log("Unable to delete temporary file: " + file);
+        }
+    }
+
     private List<String> getFolders(String dirPath)	{
         try {
             return Files.list(Paths.get(dirPath))
@@ -277,6 +1504,10 @@ public class MultiUser {
         } 
     }
     
+    /**
+     * The merge and the diff compare widgets by {@link WidgetFingerprint}, which gives the same result.
+     * Not used by the plugin itself anymore, kept for subclasses.
+     */
     protected boolean isSameWidget(Widget widget, Widget other) {
         if (widget == null || other == null) {
             return false;
@@ -321,7 +1552,7 @@ public class MultiUser {
     }
     
     protected void mergeWidgetChanges(Widget widget, Widget changed) {
-        log("Merge changes from widgets with ID '"+widget.getId()+"' into '"+changed.getId()+"'" );
+        LOG.debug("Merge changes from widgets with ID '{}' into '{}'", widget.getId(), changed.getId());
         changed.getMetadataKeys().forEach(key -> widget.putMetadata(key, changed.getMetadata(key)));
 
         widget.setWidgetType(changed.getWidgetType());
@@ -345,30 +1576,77 @@ public class MultiUser {
         if (before == null && after == null) {
             return;
         }
-        
-        List<Widget> remainingBeforeWidgets = new LinkedList<>();
-        List<Widget> afterWidgets = new LinkedList<>();
+        annotateDiffs(new DiffPair(before, null, after));
+    }
 
-        if (before != null) {
-            remainingBeforeWidgets = new LinkedList<>(before.getVisibleWidgets()); 
+    /**
+     * Add the same annotations as {@link #annotateDiffsInStates(AppState, AppState)}, 
+     * but compare against the record of the session start instead of a copy of the tree.
+     * @param baseline record of the state tree from session start
+     * @param after changed app state that shall be annotated
+     */
+    protected void annotateDiffsAgainstBaseline(SessionBaseline baseline, AppState after) {
+        if (after == null) {
+            return;
         }
+        annotateDiffs(new DiffPair(null, baseline == null ? null : baseline.getRoot(), after));
+    }
 
-        if (after != null) {
-            afterWidgets = new LinkedList<>(after.getVisibleWidgets());
+    private void annotateDiffs(DiffPair pair) {
+        if (isParallelDiff()) {
+            Set<AppState> visited = Collections.newSetFromMap(new ConcurrentHashMap<>());
+            AtomicBoolean isTree = new AtomicBoolean(true);
+            ForkJoinPool.commonPool().invoke(new SubtreeDiff(pair, visited, isTree));
+            if (isTree.get()) {
+                return;
+            }
+            // A state reached through two widgets is annotated by the last visit, so only the sequential order gives the same result.
+            log("[Diff] Session tree reuses states, annotate sequentially");
+        }
+        annotateDiffsSequentially(pair);
+    }
+
+    private void annotateDiffsSequentially(DiffPair pair) {
+        List<DiffPair> nextPairs = new ArrayList<>();
+        annotateDiffsInState(pair, nextPairs);
+        for (DiffPair nextPair : nextPairs) {
+            annotateDiffsSequentially(nextPair);
+        }
+    }
+
+    /**
+     * Annotates one state of the session tree and adds the next states that must be compared to nextPairs.
+     */
+    private void annotateDiffsInState(DiffPair pair, List<DiffPair> nextPairs) {
+        if (pair.beforeRecord != null) {
+            annotateDiffsAgainstRecord(pair.beforeRecord, pair.after, nextPairs);
+        } else {
+            annotateDiffsAgainstCopy(pair.before, pair.after, nextPairs);
+        }
+    }
+
+    private void annotateDiffsAgainstCopy(AppState before, AppState after, List<DiffPair> nextPairs) {
+        Map<WidgetFingerprint, Deque<Widget>> remainingBeforeWidgets = new HashMap<>();
+        List<Widget> afterWidgets = after.getVisibleWidgets();
+
+        if (before != null) {
+            for (Widget beforeWidget : before.getVisibleWidgets()) {
+                remainingBeforeWidgets.computeIfAbsent(WidgetFingerprint.of(beforeWidget), k -> new ArrayDeque<>()).add(beforeWidget);
+            }
         }
 
         Map<String, DiffType> widgetDiff = new HashMap<>();
 
         for (Widget afterWidget : afterWidgets) {                
-            int foundIndex = indexOfSameWidget(afterWidget, remainingBeforeWidgets);
-            boolean isPresent = foundIndex >= 0;
+            Deque<Widget> sameWidgets = remainingBeforeWidgets.get(WidgetFingerprint.of(afterWidget));
+            Widget foundWidget = sameWidgets == null ? null : sameWidgets.pollFirst();
+            boolean isPresent = foundWidget != null;
 
             DiffType diffType = DiffType.CREATED;
             AppState nextStateFromWidgetBefore = null;
             if (isPresent) {
                 diffType = DiffType.NO_CHANGES;
-                nextStateFromWidgetBefore = remainingBeforeWidgets.get(foundIndex).getNextState();
-                remainingBeforeWidgets.remove(foundIndex); 
+                nextStateFromWidgetBefore = foundWidget.getNextState();
             }
             
             widgetDiff.put(afterWidget.getId(), diffType);
@@ -377,17 +1655,150 @@ public class MultiUser {
                 nextStateFromWidgetBefore = null;
             }
             AppState nextStateFromWidgetAfter = afterWidget.getNextState();
-            if (nextStateFromWidgetAfter != null && nextStateFromWidgetAfter.isHome()) {
-                nextStateFromWidgetAfter = null;
+            if (nextStateFromWidgetAfter != null && !nextStateFromWidgetAfter.isHome()) {
+                nextPairs.add(new DiffPair(nextStateFromWidgetBefore, null, nextStateFromWidgetAfter));
             }
-            annotateDiffsInStates(nextStateFromWidgetBefore, nextStateFromWidgetAfter);
         }
 
-        remainingBeforeWidgets.forEach(deletedWidget -> widgetDiff.put(deletedWidget.getId(), DiffType.DELETED));
+        remainingBeforeWidgets.values().forEach(deletedWidgets -> 
+            deletedWidgets.forEach(deletedWidget -> widgetDiff.put(deletedWidget.getId(), DiffType.DELETED)));
         
         after.putMetadata(META_DATA_DIFF, widgetDiff);
     }
 
+    private void annotateDiffsAgainstRecord(SessionBaseline.StateRecord before, AppState after, List<DiffPair> nextPairs) {
+        List<Widget> afterWidgets = after.getVisibleWidgets();
+        List<SessionBaseline.WidgetRecord> beforeWidgets = before.getWidgets();
+        Map<String, DiffType> widgetDiff = new HashMap<>();
+
+        if (before.isUnchanged(afterWidgets)) {
+            for (int i = 0; i < afterWidgets.size(); i++) {
+                Widget afterWidget = afterWidgets.get(i);
+                widgetDiff.put(afterWidget.getId(), DiffType.NO_CHANGES);
+                addNextPair(nextPairs, beforeWidgets.get(i).getNextState(), afterWidget);
+            }
+            after.putMetadata(META_DATA_DIFF, widgetDiff);
+            return;
+        }
+
+        Map<WidgetFingerprint, Deque<SessionBaseline.WidgetRecord>> remainingBeforeWidgets = new HashMap<>();
+        for (SessionBaseline.WidgetRecord beforeWidget : beforeWidgets) {
+            remainingBeforeWidgets.computeIfAbsent(beforeWidget.getFingerprint(), k -> new ArrayDeque<>()).add(beforeWidget);
+        }
+
+        for (Widget afterWidget : afterWidgets) {
+            Deque<SessionBaseline.WidgetRecord> sameWidgets = remainingBeforeWidgets.get(WidgetFingerprint.of(afterWidget));
+            SessionBaseline.WidgetRecord found = sameWidgets == null ? null : sameWidgets.pollFirst();
+
+            if (found == null) {
+                widgetDiff.put(afterWidget.getId(), DiffType.CREATED);
+                addNextPair(nextPairs, null, afterWidget);
+                continue;
+            }
+            widgetDiff.put(afterWidget.getId(), DiffType.NO_CHANGES);
+            addNextPair(nextPairs, found.getNextState(), afterWidget);
+        }
+
+        remainingBeforeWidgets.values().forEach(deletedWidgets -> 
+            deletedWidgets.forEach(deletedWidget -> widgetDiff.put(deletedWidget.getWidgetId(), DiffType.DELETED)));
+
+        after.putMetadata(META_DATA_DIFF, widgetDiff);
+    }
+
+    private void addNextPair(List<DiffPair> nextPairs, SessionBaseline.StateRecord before, Widget afterWidget) {
+        AppState after = nextStateOrNull(afterWidget);
+        if (after != null) {
+            nextPairs.add(new DiffPair(null, before, after));
+        }
+    }
+
+    /**
+     * The property "multiUserPlugin.diffMode" set to "parallel" annotates the subtrees of the 
+     * session tree in parallel, the default "sequential" annotates on the saving thread.
+     * With a single core the diff stays sequential, since the tasks would only add overhead.
+     */
+    protected boolean isParallelDiff() {
+        return ForkJoinPool.getCommonPoolParallelism() > 1
+            && DIFF_MODE_PARALLEL.equals(StateController.getSystemProperty("multiUserPlugin.diffMode", DIFF_MODE_SEQUENTIAL));
+    }
+
+    /**
+     * A state of the session tree and what it is compared with, either a state 
+     * from the copy of the session start or a record of the session baseline.
+     * Without both, all widgets of the state are created.
+     */
+    private static class DiffPair {
+        private final AppState before;
+        private final SessionBaseline.StateRecord beforeRecord;
+        private final AppState after;
+
+        private DiffPair(AppState before, SessionBaseline.StateRecord beforeRecord, AppState after) {
+            this.before = before;
+            this.beforeRecord = beforeRecord;
+            this.after = after;
+        }
+    }
+
+    /**
+     * Annotates a state like the sequential diff and the states behind its widgets in
+     * tasks of their own. Idle workers steal the tasks of unfinished subtrees.
+     * 
+     * The annotations of different states are independent as long as no state is reached
+     * twice, which is tracked in visited.
+     */
+    private class SubtreeDiff extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        /** Forked tasks that no worker has taken yet, above which subtrees are annotated inline. */
+        private static final int MAX_SURPLUS_TASKS = 3;
+
+        private final DiffPair pair;
+        private final Set<AppState> visited;
+        private final AtomicBoolean isTree;
+
+        private SubtreeDiff(DiffPair pair, Set<AppState> visited, AtomicBoolean isTree) {
+            this.pair = pair;
+            this.visited = visited;
+            this.isTree = isTree;
+        }
+
+        @Override
+        protected void compute() {
+            if (!visited.add(pair.after)) {
+                isTree.set(false);
+                return;
+            }
+            List<DiffPair> nextPairs = new ArrayList<>();
+            annotateDiffsInState(pair, nextPairs);
+
+            List<SubtreeDiff> forked = new ArrayList<>();
+            for (DiffPair nextPair : nextPairs) {
+                SubtreeDiff task = new SubtreeDiff(nextPair, visited, isTree);
+                if (getSurplusQueuedTaskCount() < MAX_SURPLUS_TASKS) {
+                    task.fork();
+                    forked.add(task);
+                } else {
+                    task.compute();
+                }
+            }
+            for (int i = forked.size() - 1; i >= 0; i--) {
+                forked.get(i).join();
+            }
+        }
+    }
+
+    private AppState nextStateOrNull(Widget widget) {
+        if (LazyWidget.isUnloaded(widget)) {
+            // Not visited in the session, so there is nothing to annotate.
+            return null;
+        }
+        AppState nextState = widget.getNextState();
+        if (nextState != null && nextState.isHome()) {
+            return null;
+        }
+        return nextState;
+    }
+
     /**
      * Merges changes of the session app state into the app state from the shared model. 
      * The method {@link #annotateDiffsInStates(AppState, AppState)} must be called on 
@@ -400,89 +1811,293 @@ public class MultiUser {
     protected AppState mergeStateChanges(AppState sharedState, AppState sessionState) {
         AppState result = deepCopy(sharedState);
 
-        doMergeStateChangesIntoShared(result, sessionState);
-        
-        result.getVisibleStates().forEach( s -> s.removeMetadata(META_DATA_DIFF));
+        applyStateChanges(result, sessionState);
  
         return result;
     }
 
-    private void doMergeStateChangesIntoShared(AppState sharedState, AppState sessionState) {
-        if (sharedState == null && sessionState == null) {
-            return;
-        }
-
-        if (sessionState == null) {
-            return;
-        }
+    /**
+     * Merges changes of the session app state directly into the given shared state.
+     * @see #mergeStateChanges(AppState, AppState)
+     */
+    protected void applyStateChanges(AppState sharedState, AppState sessionState) {
+        applyStateChanges(sharedState, sessionState, MergeIndex.build(sharedState));
+    }
 
-        if (sharedState == null) {
-            log("Unable to merge session state into NULL shared state. Caused by state with id: " + sessionState.getId());
-            return;
+    /**
+     * Merges changes of the session app state directly into the given shared state.
+     * Shared widgets are looked up in a {@link MergeIndex}, session widgets by id within their state.
+     * @param sharedIndex index of the shared state, it is kept up to date, so it can be used for the next merge
+     */
+    protected void applyStateChanges(AppState sharedState, AppState sessionState, MergeIndex sharedIndex) {
+        if (isParallelMerge() && sharedIndex.isTree()) {
+            ForkJoinPool.commonPool().invoke(new SubtreeMerge(sharedState, sessionState, sharedIndex, getParallelMergeThreshold()));
+        } else {
+            doMergeStateChangesIntoShared(sharedState, sessionState, sharedIndex);
         }
         
-        sessionState.getMetadataKeys().stream()
-            .filter(key -> sharedState.getMetadata(key) == null)
-            .filter(key -> !key.equalsIgnoreCase(META_DATA_DIFF))
-            .forEach(key -> sharedState.putMetadata(key, sessionState.getMetadata(key)));
-        
-        Map<String, DiffType> diffMap = getDiffMetaDataFromState(sessionState);
+        sharedIndex.removeDiffMetaData();
+    }
+
+    private void doMergeStateChangesIntoShared(AppState sharedState, AppState sessionState, MergeIndex sharedIndex) {
+        Map<String, DiffType> diffMap = prepareStateMerge(sharedState, sessionState);
         if (diffMap.isEmpty()) {
-            log("Session state with id " + sessionState.getId() + " doesn't have any diff annotations to proceed with merge.");
             return;
         }
+
+        Map<String, Widget> sessionWidgets = getWidgetsById(sessionState);
+        long deletedAt = getDeletedAt(sessionState);
         for (Entry<String, DiffType> diffItem : diffMap.entrySet()) {
             String widgetId = diffItem.getKey();
 
             switch (diffItem.getValue()) {
                 case DELETED:
-                    handleMergeDeletion(sharedState.getWidget(widgetId));    
+                    handleMergeDeletion(sharedIndex.getWidget(sharedState, widgetId), deletedAt);    
                     break;
                 case CREATED:
-                    handleMergeCreation(sharedState, sessionState, widgetId);
+                    handleMergeCreation(sharedState, sessionWidgets.get(widgetId), sharedIndex);
                     break;
                 case NO_CHANGES:
-                    handleMergeNoChange(sharedState, sessionState, widgetId);
+                    handleMergeNoChange(sharedIndex.getWidget(sharedState, widgetId), sessionWidgets.get(widgetId), sharedIndex);
                     break;
                 default:
-                    log("[Merge] DiffType '" +diffItem.getValue()+ "' does not have a merging strategy");
+                    LOG.debug("[Merge] DiffType '{}' does not have a merging strategy", diffItem.getValue());
                     break;
             }
                              
         }
     }
 
+    /**
+     * Copies the meta-data of the session state that the shared state does not have yet.
+     * @return the diff annotations to merge, empty if there is nothing to merge
+     */
+    private Map<String, DiffType> prepareStateMerge(AppState sharedState, AppState sessionState) {
+        if (sessionState == null) {
+            return Collections.emptyMap();
+        }
+
+        if (sharedState == null) {
+            LOG.debug("Unable to merge session state into NULL shared state. Caused by state with id: {}", sessionState.getId());
+            return Collections.emptyMap();
+        }
+        
+        sessionState.getMetadataKeys().stream()
+            .filter(key -> sharedState.getMetadata(key) == null)
+            .filter(key -> !key.equalsIgnoreCase(META_DATA_DIFF) && !key.equals(DELETED_AT))
+            .forEach(key -> sharedState.putMetadata(key, sessionState.getMetadata(key)));
+        
+        Map<String, DiffType> diffMap = getDiffMetaDataFromState(sessionState);
+        if (diffMap.isEmpty()) {
+            LOG.debug("Session state with id {} doesn't have any diff annotations to proceed with merge.", sessionState.getId());
+        }
+        return diffMap;
+    }
+
+    private Map<String, Widget> getWidgetsById(AppState state) {
+        Map<String, Widget> widgets = new HashMap<>();
+        state.getAllWidgets().forEach(w -> widgets.putIfAbsent(w.getId(), w));
+        return widgets;
+    }
+
+    /**
+     * The property "multiUserPlugin.mergeMode" set to "parallel" merges large subtrees in parallel,
+     * the default "sequential" merges on the saving thread.
+     */
+    protected boolean isParallelMerge() {
+        return MERGE_MODE_PARALLEL.equals(StateController.getSystemProperty("multiUserPlugin.mergeMode", MERGE_MODE_SEQUENTIAL));
+    }
+
+    /**
+     * The property "multiUserPlugin.parallelMergeThreshold" is the number of widgets
+     * a shared subtree must have to be merged in a task of its own.
+     */
+    protected int getParallelMergeThreshold() {
+        String threshold = StateController.getSystemProperty("multiUserPlugin.parallelMergeThreshold", 
+            String.valueOf(DEFAULT_PARALLEL_MERGE_THRESHOLD));
+        try {
+            return Integer.parseInt(threshold.trim());
+        } catch (NumberFormatException e) {
+            return DEFAULT_PARALLEL_MERGE_THRESHOLD;
+        }
+    }
+
+    /**
+     * Merges a pair of states like {@link #doMergeStateChangesIntoShared(AppState, AppState, MergeIndex)},
+     * but merges the subtrees behind the widgets in parallel if they are large enough.
+     * 
+     * Changes of the state itself, which are adding and matching created widgets, are made
+     * in the order of the diff annotations before any subtree is merged. The steps for the
+     * subtree behind one shared widget are collected in order and run by one task. Subtrees 
+     * of different widgets share no states, so the result is the same as of the sequential merge.
+     * The tasks count into the metrics of the thread that started the merge.
+     */
+    private class SubtreeMerge extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final AppState sharedState;
+        private final AppState sessionState;
+        private final MergeIndex sharedIndex;
+        private final int threshold;
+        private final MergeMetrics metrics = metrics();
+
+        private SubtreeMerge(AppState sharedState, AppState sessionState, MergeIndex sharedIndex, int threshold) {
+            this.sharedState = sharedState;
+            this.sessionState = sessionState;
+            this.sharedIndex = sharedIndex;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected void compute() {
+            runWithMetrics(metrics, this::merge);
+        }
+
+        private void merge() {
+            Map<String, DiffType> diffMap = prepareStateMerge(sharedState, sessionState);
+            if (diffMap.isEmpty()) {
+                return;
+            }
+
+            Map<String, Widget> sessionWidgets = getWidgetsById(sessionState);
+            long deletedAt = getDeletedAt(sessionState);
+            Map<Object, List<Runnable>> subtreeSteps = new LinkedHashMap<>();
+            for (Entry<String, DiffType> diffItem : diffMap.entrySet()) {
+                String widgetId = diffItem.getKey();
+
+                switch (diffItem.getValue()) {
+                    case DELETED: {
+                        Widget widget = sharedIndex.getWidget(sharedState, widgetId);
+                        if (widget != null) {
+                            getSteps(subtreeSteps, widget).add(() -> handleMergeDeletion(widget, deletedAt));
+                        }
+                        break;
+                    }
+                    case CREATED: {
+                        Widget createdWidget = sessionWidgets.get(widgetId);
+                        Widget widgetFromShared = mergeCreatedWidget(sharedState, createdWidget, sharedIndex);
+                        if (widgetFromShared != null) {
+                            getSteps(subtreeSteps, widgetFromShared).add(
+                                () -> mergeSubtree(widgetFromShared.getNextState(), createdWidget.getNextState()));
+                        }
+                        break;
+                    }
+                    case NO_CHANGES: {
+                        Widget originalWidget = sharedIndex.getWidget(sharedState, widgetId);
+                        Widget otherWidget = sessionWidgets.get(widgetId);
+                        if (originalWidget == null || otherWidget == null) {
+                            handleMergeNoChange(originalWidget, otherWidget, sharedIndex);
+                        } else if (!LazyWidget.isUnloaded(otherWidget)) {
+                            getSteps(subtreeSteps, originalWidget).add(
+                                () -> mergeSubtree(originalWidget.getNextState(), otherWidget.getNextState()));
+                        }
+                        break;
+                    }
+                    default:
+                        LOG.debug("[Merge] DiffType '{}' does not have a merging strategy", diffItem.getValue());
+                        break;
+                }
+            }
+
+            List<RecursiveAction> forked = new ArrayList<>();
+            List<List<Runnable>> inline = new ArrayList<>();
+            for (Entry<Object, List<Runnable>> subtree : subtreeSteps.entrySet()) {
+                List<Runnable> steps = subtree.getValue();
+                if (subtree.getKey() instanceof AppState && sharedIndex.getSubtreeSize((AppState) subtree.getKey()) >= threshold) {
+                    RecursiveAction task = new RecursiveAction() {
+                        private static final long serialVersionUID = 1L;
+
+                        @Override
+                        protected void compute() {
+                            runWithMetrics(metrics, () -> steps.forEach(Runnable::run));
+                        }
+                    };
+                    task.fork();
+                    forked.add(task);
+                } else {
+                    inline.add(steps);
+                }
+            }
+            inline.forEach(steps -> steps.forEach(Runnable::run));
+            for (int i = forked.size() - 1; i >= 0; i--) {
+                forked.get(i).join();
+            }
+        }
+
+        /**
+         * The steps are grouped by the shared subtree they change, the next state of the widget.
+         */
+        private List<Runnable> getSteps(Map<Object, List<Runnable>> subtreeSteps, Widget sharedWidget) {
+            AppState nextState = sharedWidget.getNextState();
+            Object subtree = nextState == null || nextState.isHome() ? sharedWidget : nextState;
+            return subtreeSteps.computeIfAbsent(subtree, k -> new ArrayList<>());
+        }
+
+        private void mergeSubtree(AppState sharedNextState, AppState sessionNextState) {
+            if (sharedIndex.getSubtreeSize(sharedNextState) >= threshold) {
+                new SubtreeMerge(sharedNextState, sessionNextState, sharedIndex, threshold).merge();
+            } else {
+                doMergeStateChangesIntoShared(sharedNextState, sessionNextState, sharedIndex);
+            }
+        }
+    }
+
     protected void handleMergeDeletion(Widget widget) {
-        markAsDeleted(widget);
+        handleMergeDeletion(widget, Instant.now().toEpochMilli());
+    }
+
+    /**
+     * Marks the widget and all widgets behind it as deleted at the given time.
+     */
+    protected void handleMergeDeletion(Widget widget, long deletedAt) {
+        if (widget == null) {
+            return;
+        }
+        markAsDeleted(widget, deletedAt);
+        metrics().increment(Counter.WIDGETS_DELETED);
 
         AppState nextState = widget.getNextState();
         if (nextState == null) {
             return;
         }
 
-        nextState.getAllIncludingChildWidgets().forEach(w -> markAsDeleted(w));
+        List<Widget> childWidgets = nextState.getAllIncludingChildWidgets();
+        childWidgets.forEach(w -> markAsDeleted(w, deletedAt));
+        metrics().add(Counter.WIDGETS_DELETED, childWidgets.size());
     }
 
-    protected void handleMergeCreation(AppState sharedState, AppState sessionState, String widgetId) {
-        Widget createdWidget = sessionState.getWidget(widgetId);
-        int foundIndex = indexOfSameWidget(createdWidget, sharedState.getVisibleWidgets());
-        boolean isPresentInSharedState = foundIndex >= 0;
+    protected void handleMergeCreation(AppState sharedState, Widget createdWidget, MergeIndex sharedIndex) {
+        Widget widgetFromShared = mergeCreatedWidget(sharedState, createdWidget, sharedIndex);
+        if (widgetFromShared != null) {
+            doMergeStateChangesIntoShared(widgetFromShared.getNextState(), createdWidget.getNextState(), sharedIndex);
+        }
+    }
+
+    /**
+     * Merges a created widget into the same widget of the shared state, or adds a copy of it to the shared state.
+     * The copy keeps the session tree unchanged, so it can be merged again if the save has to be retried.
+     * @return the shared widget it was merged into, null if it was added
+     */
+    private Widget mergeCreatedWidget(AppState sharedState, Widget createdWidget, MergeIndex sharedIndex) {
+        Widget widgetFromShared = sharedIndex.getSameWidget(sharedState, createdWidget);
         
-        if (isPresentInSharedState) {
-            Widget widgetFromShared  = sharedState.getVisibleWidgets().get(foundIndex);
-            Widget widgetFromSession = sessionState.getWidget(widgetId);
-            mergeWidgetChanges(widgetFromShared, widgetFromSession);
-            
-            doMergeStateChangesIntoShared(widgetFromShared.getNextState(), widgetFromSession.getNextState());
-            return;
+        if (widgetFromShared != null) {
+            mergeWidgetChanges(widgetFromShared, createdWidget);
+            metrics().increment(Counter.WIDGETS_MERGED);
+            return widgetFromShared;
         }
 
-        sharedState.addWidget(createdWidget);
+        if (createdWidget != null) {
+            sharedIndex.addWidget(sharedState, AppStateCloner.copy(createdWidget));
+            metrics().increment(Counter.WIDGETS_CREATED);
+        }
+        return null;
     }
 
-    protected void handleMergeNoChange(AppState sharedState, AppState sessionState, String widgetId) {
-        Widget originalWidget = sharedState.getWidget(widgetId);
-        Widget otherWidget = sessionState.getWidget(widgetId);
+    protected void handleMergeNoChange(Widget originalWidget, Widget otherWidget, MergeIndex sharedIndex) {
+        if (LazyWidget.isUnloaded(otherWidget)) {
+            return;
+        }
          
         AppState nextStateFromShared = null;
         AppState nextStateFromSession = null;
@@ -494,11 +2109,11 @@ public class MultiUser {
             nextStateFromSession = otherWidget.getNextState();
         }
 
-        doMergeStateChangesIntoShared(nextStateFromShared, nextStateFromSession);
+        doMergeStateChangesIntoShared(nextStateFromShared, nextStateFromSession, sharedIndex);
     }
 
     protected void handleMergeChange(AppState sharedState, AppState sessionState, String widgetId) {
-        log("handleMergeChange() is not implemented yet");
+        LOG.debug("handleMergeChange() is not implemented yet, widget {}", widgetId);
     }
 
     @SuppressWarnings("unchecked")
@@ -507,31 +2122,57 @@ public class MultiUser {
             Map<String, DiffType> diff = (Map<String, DiffType>)state.getMetadata(META_DATA_DIFF);
             return Optional.ofNullable(diff).orElseGet(() -> new HashMap<String, DiffType>());
         } catch (ClassCastException e) {
-            log("Unable to cast meta-data object as Map<String, DiffType> in state with id " + state.getId());
+            LOG.warn("Unable to cast meta-data object as Map<String, DiffType> in state with id " + state.getId());
             return new HashMap<>();
         } 
     }
 
+    /**
+     * Linear search for a widget with the same {@link WidgetFingerprint}. The merge looks
+     * widgets up with {@link MergeIndex#getSameWidget(AppState, Widget)} instead, kept for subclasses.
+     */
     protected int indexOfSameWidget(Widget widget, List<Widget> list ) {
-       for (int i = 0; i < list.size(); i++) {
-            if (isSameWidget(widget, list.get(i))) {
+        if (widget == null) {
+            return -1;
+        }
+
+        WidgetFingerprint fingerprint = WidgetFingerprint.of(widget);
+        for (int i = 0; i < list.size(); i++) {
+            if (fingerprint.matches(list.get(i))) {
                 return i;
             }   
-       }
+        }
         
         return -1;
     }
 
+    /**
+     * Only used by {@link #isSameWidget(Widget, Widget)}, {@link WidgetFingerprint} compares the meta-data itself.
+     */
     protected boolean hasEqualMetaData(String key, Widget widget, Widget other) {
         return String.valueOf(widget.getMetadata(key)).equals(String.valueOf(other.getMetadata(key)));
     }
 
     protected void markAsDeleted(Widget widget) {
+        markAsDeleted(widget, Instant.now().toEpochMilli());
+    }
+
+    protected void markAsDeleted(Widget widget, long deletedAt) {
         if (widget == null) {
             return;
         }
 
-        widget.putMetadata(DELETED_AT, Instant.now().toEpochMilli());
+        widget.putMetadata(DELETED_AT, deletedAt);
+    }
+
+    /**
+     * A record of the delta log keeps the time its widgets were deleted, so that replaying 
+     * it does not restart the retention window. Sessions that are merged right away are not stamped.
+     * @return the time the widgets deleted in the session state were deleted, now if not recorded
+     */
+    private static long getDeletedAt(AppState sessionState) {
+        Object deletedAt = sessionState.getMetadata(DELETED_AT);
+        return deletedAt instanceof Long ? (Long) deletedAt : Instant.now().toEpochMilli();
     }
 
     protected boolean isMarkedAsDeleted(Widget widget) {
@@ -544,23 +2185,33 @@ public class MultiUser {
     }
 
     private void log(String message) {
-        String now = df.format(new Date());
-        System.out.printf("[%s] %s \n", now, message);
+        LOG.info(message);
     }
 
+    /**
+     * Creates a deep copy of an object. App states, widgets and paths are copied 
+     * field by field with {@link AppStateCloner}, other objects by Java serialization.
+     */
     @SuppressWarnings("unchecked")
     protected <T extends Serializable> T deepCopy(T original) {
         try {
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            ObjectOutputStream out = new ObjectOutputStream(bos);
-            out.writeObject(original);
-            
-            ByteArrayInputStream bis = new ByteArrayInputStream(bos.toByteArray());
-            ObjectInputStream in = new ObjectInputStream(bis);
-            return (T) in.readObject();
+            if (original instanceof AppState) {
+                return (T) AppStateCloner.copy((AppState) original);
+            }
+            if (original instanceof Widget) {
+                return (T) AppStateCloner.copy((Widget) original);
+            }
+            if (original instanceof scout.Path) {
+                return (T) AppStateCloner.copy((scout.Path) original);
+            }
+            return deepCopyBySerialization(original);
         } catch (Exception e) {
             log("Unable to create a deep copy of an object: " + e.getMessage());
             return null;
         }
     }
+
+    protected <T extends Serializable> T deepCopyBySerialization(T original) {
+        return AppStateCloner.copyBySerialization(original);
+    }
 }
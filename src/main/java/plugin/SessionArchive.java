@@ -0,0 +1,373 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.json.simple.parser.ParseException;
+
+import scout.AppState;
+
+/**
+ * Archive of the session state files of a product in the folder "session-archive".
+ *
+ * A session file is cut into chunks at positions that depend on its content, not on
+ * its offsets, so that files which differ in a few widgets still share most chunks.
+ * Every chunk is stored once, compressed with gzip and named by its SHA-256 hash.
+ * A manifest per session lists its chunks and the hash of the whole file, from which
+ * the file is rebuilt and verified on demand.
+ *
+ * Chunks that no manifest refers to any more are removed when sessions are pruned.
+ * Only one process should write to the archive of a product at a time,
+ * see {@link #lock()} for testers that share the product folder.
+ */
+public class SessionArchive {
+
+    public static final String FOLDER_NAME = "session-archive";
+
+    private static final String CHUNKS_FOLDER_NAME = "chunks";
+    private static final String MANIFEST_EXTENSION = ".manifest";
+    private static final String CHUNK_EXTENSION = ".gz";
+    private static final String MANIFEST_HEADER = "session-archive 1";
+
+    private static final int MIN_CHUNK_SIZE = 2 * 1024;
+    private static final int MAX_CHUNK_SIZE = 64 * 1024;
+    /** 13 bits give a boundary every 8 KB on average after the minimum size. */
+    private static final long CHUNK_BOUNDARY_MASK = 0x1FFFL << 51;
+    private static final long[] GEAR = createGearTable();
+
+    private final Path folder;
+    private final Path chunksFolder;
+
+    /**
+     * @param productFolder folder of the product that contains the archive
+     */
+    public SessionArchive(Path productFolder) {
+        this.folder = productFolder.resolve(FOLDER_NAME);
+        this.chunksFolder = folder.resolve(CHUNKS_FOLDER_NAME);
+    }
+
+    public Path getFolder() {
+        return folder;
+    }
+
+    /**
+     * Blocks until no other tester writes to the archive. Without the lock, pruning
+     * could remove the chunks of a session that another tester has not listed yet.
+     */
+    public SharedModelLock lock() throws IOException {
+        return SharedModelLock.acquire(folder.toString());
+    }
+
+    /**
+     * Adds a session file to the archive.
+     * @param sessionName file name of the session, e.g. "session-state-2021-05-17_10-00-00.json"
+     * @param content complete content of the session file
+     * @return number of chunks that were not in the archive yet
+     */
+    public int archive(String sessionName, byte[] content) throws IOException {
+        Files.createDirectories(chunksFolder);
+
+        StringBuilder manifest = new StringBuilder();
+        manifest.append(MANIFEST_HEADER).append('\n');
+        manifest.append("size ").append(content.length).append('\n');
+        manifest.append("sha256 ").append(sha256(content, 0, content.length)).append('\n');
+
+        int newChunks = 0;
+        int start = 0;
+        while (start < content.length) {
+            int end = findChunkEnd(content, start);
+            String hash = sha256(content, start, end - start);
+            if (writeChunk(hash, content, start, end - start)) {
+                newChunks++;
+            }
+            manifest.append(hash).append(' ').append(end - start).append('\n');
+            start = end;
+        }
+
+        writeAtomically(getManifestPath(sessionName), manifest.toString().getBytes(StandardCharsets.UTF_8));
+        return newChunks;
+    }
+
+    /**
+     * Adds a session state to the archive in the format of the state model files.
+     * @return number of chunks that were not in the archive yet
+     */
+    public int archive(String sessionName, AppState sessionState) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(content, StandardCharsets.UTF_8))) {
+            JSONStateWriter.write(writer, sessionState);
+        }
+        return archive(sessionName, content.toByteArray());
+    }
+
+    /**
+     * Moves a session file into the archive. The file is only removed after
+     * the archived copy was rebuilt and found to be the same.
+     * @return false if the file is gone, because another tester already imported it
+     */
+    public boolean importFile(Path sessionFile) throws IOException {
+        String sessionName = sessionFile.getFileName().toString();
+        byte[] content;
+        try {
+            content = Files.readAllBytes(sessionFile);
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+        archive(sessionName, content);
+        if (!Arrays.equals(content, rebuild(sessionName))) {
+            throw new IOException("Archived session differs from " + sessionFile);
+        }
+        return Files.deleteIfExists(sessionFile);
+    }
+
+    /**
+     * @return names of the archived sessions, oldest first for names with a timestamp
+     */
+    public List<String> listSessions() throws IOException {
+        if (!Files.isDirectory(folder)) {
+            return Collections.emptyList();
+        }
+        try (Stream<Path> files = Files.list(folder)) {
+            return files
+                .map(path -> path.getFileName().toString())
+                .filter(name -> name.endsWith(MANIFEST_EXTENSION))
+                .map(name -> name.substring(0, name.length() - MANIFEST_EXTENSION.length()))
+                .sorted()
+                .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * @return the content of the session file as it was archived
+     */
+    public byte[] rebuild(String sessionName) throws IOException {
+        List<String> lines = Files.readAllLines(getManifestPath(sessionName), StandardCharsets.UTF_8);
+        if (lines.size() < 3 || !MANIFEST_HEADER.equals(lines.get(0))) {
+            throw new IOException("Invalid manifest of session " + sessionName);
+        }
+        int size = Integer.parseInt(lines.get(1).substring("size ".length()));
+        String hash = lines.get(2).substring("sha256 ".length());
+
+        ByteArrayOutputStream content = new ByteArrayOutputStream(size);
+        for (String chunk : lines.subList(3, lines.size())) {
+            String[] hashAndLength = chunk.split(" ");
+            byte[] data = readChunk(hashAndLength[0]);
+            if (data.length != Integer.parseInt(hashAndLength[1])) {
+                throw new IOException("Chunk " + hashAndLength[0] + " of session " + sessionName + " has wrong size");
+            }
+            content.write(data);
+        }
+
+        byte[] result = content.toByteArray();
+        if (result.length != size || !hash.equals(sha256(result, 0, result.length))) {
+            throw new IOException("Rebuilt session " + sessionName + " does not match its hash");
+        }
+        return result;
+    }
+
+    /**
+     * @return the archived session state
+     */
+    public AppState rebuildState(String sessionName) throws IOException, ParseException {
+        return JSONStateReader.read(new StringReader(new String(rebuild(sessionName), StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Writes the session file as it was archived.
+     */
+    public void restore(String sessionName, Path targetFile) throws IOException {
+        Files.write(targetFile, rebuild(sessionName));
+    }
+
+    /**
+     * Removes the oldest sessions and the chunks that only they used.
+     * @param keepSessions number of newest sessions to keep, 0 for all
+     * @param keepDays days to keep a session after it was archived, 0 for no limit
+     * @return number of removed sessions
+     */
+    public int prune(int keepSessions, long keepDays) throws IOException {
+        List<String> sessions = listSessions();
+        long oldestMillis = keepDays > 0 ? System.currentTimeMillis() - TimeUnit.DAYS.toMillis(keepDays) : Long.MIN_VALUE;
+
+        int removed = 0;
+        for (int i = 0; i < sessions.size(); i++) {
+            Path manifest = getManifestPath(sessions.get(i));
+            boolean isTooMany = keepSessions > 0 && i < sessions.size() - keepSessions;
+            if (isTooMany || Files.getLastModifiedTime(manifest).toMillis() < oldestMillis) {
+                Files.delete(manifest);
+                removed++;
+            }
+        }
+
+        if (removed > 0) {
+            removeUnusedChunks();
+        }
+        return removed;
+    }
+
+    /**
+     * @return number of bytes that the chunks take on disk
+     */
+    public long getStoredBytes() throws IOException {
+        if (!Files.isDirectory(chunksFolder)) {
+            return 0;
+        }
+        try (Stream<Path> files = Files.walk(chunksFolder)) {
+            long size = 0;
+            for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                size += Files.size(file);
+            }
+            return size;
+        }
+    }
+
+    private void removeUnusedChunks() throws IOException {
+        Set<String> usedChunks = new HashSet<>();
+        for (String session : listSessions()) {
+            List<String> lines = Files.readAllLines(getManifestPath(session), StandardCharsets.UTF_8);
+            for (String chunk : lines.subList(Math.min(3, lines.size()), lines.size())) {
+                usedChunks.add(chunk.split(" ")[0]);
+            }
+        }
+
+        try (DirectoryStream<Path> subfolders = Files.newDirectoryStream(chunksFolder)) {
+            for (Path subfolder : subfolders) {
+                try (DirectoryStream<Path> chunks = Files.newDirectoryStream(subfolder, "*" + CHUNK_EXTENSION)) {
+                    for (Path chunk : chunks) {
+                        String name = chunk.getFileName().toString();
+                        if (!usedChunks.contains(name.substring(0, name.length() - CHUNK_EXTENSION.length()))) {
+                            Files.delete(chunk);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the end of the chunk that starts at the given position with a gear rolling hash,
+     * which depends only on the last 64 bytes.
+     */
+    static int findChunkEnd(byte[] content, int start) {
+        int minEnd = Math.min(content.length, start + MIN_CHUNK_SIZE);
+        int maxEnd = Math.min(content.length, start + MAX_CHUNK_SIZE);
+        long hash = 0;
+        for (int i = minEnd; i < maxEnd; i++) {
+            hash = (hash << 1) + GEAR[content[i] & 0xFF];
+            if ((hash & CHUNK_BOUNDARY_MASK) == 0) {
+                return i + 1;
+            }
+        }
+        return maxEnd;
+    }
+
+    /**
+     * @return false if the chunk was already stored
+     */
+    private boolean writeChunk(String hash, byte[] content, int offset, int length) throws IOException {
+        Path chunk = getChunkPath(hash);
+        if (Files.exists(chunk)) {
+            return false;
+        }
+        Files.createDirectories(chunk.getParent());
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2);
+        try (OutputStream out = new GZIPOutputStream(compressed)) {
+            out.write(content, offset, length);
+        }
+        writeAtomically(chunk, compressed.toByteArray());
+        return true;
+    }
+
+    private byte[] readChunk(String hash) throws IOException {
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(getChunkPath(hash)))) {
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                data.write(buffer, 0, read);
+            }
+            return data.toByteArray();
+        } catch (NoSuchFileException e) {
+            throw new IOException("Chunk " + hash + " is missing in the archive", e);
+        }
+    }
+
+    private Path getManifestPath(String sessionName) {
+        return folder.resolve(sessionName + MANIFEST_EXTENSION);
+    }
+
+    private Path getChunkPath(String hash) {
+        return chunksFolder.resolve(hash.substring(0, 2)).resolve(hash + CHUNK_EXTENSION);
+    }
+
+    private static void writeAtomically(Path target, byte[] content) throws IOException {
+        Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            Files.write(temp, content);
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static String sha256(byte[] content, int offset, int length) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(content, offset, length);
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The table must never change, otherwise new sessions no longer share chunks with archived ones.
+     */
+    private static long[] createGearTable() {
+        Random random = new Random(0x5E55_10A5L);
+        long[] gear = new long[256];
+        for (int i = 0; i < gear.length; i++) {
+            gear[i] = random.nextLong();
+        }
+        return gear;
+    }
+}
@@ -0,0 +1,157 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import scout.AppState;
+import scout.Widget;
+
+/**
+ * Compact record of the state tree at session start.
+ *
+ * Instead of a deep copy of the whole tree, every state keeps the widgets
+ * it showed at session start together with their {@link WidgetFingerprint}.
+ * This is all that the diff at save time needs to know about the start of
+ * the session.
+ *
+ * The baseline is reference-only, nothing is copied when the session changes
+ * a state. That is enough, because the diff only reads what is recorded here:
+ * the widget ids, the fingerprints and which state every widget led to are
+ * taken when a state is recorded, so editing the tree in place later does not
+ * change them. The recorded widget objects only serve as a fast path, a state
+ * counts as unchanged only if it shows the same objects with the same fingerprints.
+ * Like {@link MultiUser#annotateDiffsInStates(AppState, AppState)} with a deep copy,
+ * changes of a widget outside its fingerprint are not diffed.
+ *
+ * States behind a {@link LazyWidget} that was not loaded yet are recorded
+ * with {@link #recordLoaded(Widget, AppState)} once they are read.
+ */
+public class SessionBaseline {
+
+    private final Map<AppState, StateRecord> recorded = new IdentityHashMap<>();
+    private final Map<Widget, WidgetRecord> pending = new IdentityHashMap<>();
+    private StateRecord root;
+
+    private SessionBaseline() {
+    }
+
+    public static SessionBaseline record(AppState state) {
+        SessionBaseline baseline = new SessionBaseline();
+        baseline.root = baseline.recordState(state);
+        return baseline;
+    }
+
+    public StateRecord getRoot() {
+        return root;
+    }
+
+    /**
+     * Records the state behind a lazily loaded widget, as it was read from the shared model.
+     */
+    public synchronized void recordLoaded(Widget widget, AppState nextState) {
+        WidgetRecord widgetRecord = pending.remove(widget);
+        if (widgetRecord != null && nextState != null && !nextState.isHome()) {
+            widgetRecord.nextState = recordState(nextState);
+        }
+    }
+
+    private StateRecord recordState(AppState state) {
+        StateRecord record = recorded.get(state);
+        if (record != null) {
+            return record;
+        }
+
+        List<Widget> visibleWidgets = state.getVisibleWidgets();
+        record = new StateRecord(state.getId(), visibleWidgets.size());
+        recorded.put(state, record);
+
+        for (Widget widget : visibleWidgets) {
+            WidgetRecord widgetRecord = new WidgetRecord(widget);
+            if (LazyWidget.isUnloaded(widget)) {
+                pending.put(widget, widgetRecord);
+            } else {
+                AppState nextState = widget.getNextState();
+                if (nextState != null && !nextState.isHome()) {
+                    widgetRecord.nextState = recordState(nextState);
+                }
+            }
+            record.widgets.add(widgetRecord);
+        }
+
+        return record;
+    }
+
+    /**
+     * The visible widgets of one state at session start.
+     */
+    public static class StateRecord {
+        private final String stateId;
+        private final List<WidgetRecord> widgets;
+
+        private StateRecord(String stateId, int widgetCount) {
+            this.stateId = stateId;
+            this.widgets = new ArrayList<>(widgetCount);
+        }
+
+        public String getStateId() {
+            return stateId;
+        }
+
+        public List<WidgetRecord> getWidgets() {
+            return Collections.unmodifiableList(widgets);
+        }
+
+        /**
+         * @return true if the state still shows the same widget objects, in the
+         * same order and with the same fingerprints as at session start.
+         */
+        public boolean isUnchanged(List<Widget> visibleWidgets) {
+            if (visibleWidgets.size() != widgets.size()) {
+                return false;
+            }
+            for (int i = 0; i < widgets.size(); i++) {
+                WidgetRecord record = widgets.get(i);
+                Widget widget = visibleWidgets.get(i);
+                if (record.widget != widget || !record.fingerprint.equals(WidgetFingerprint.of(widget))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A widget as seen at session start.
+     */
+    public static class WidgetRecord {
+        private final Widget widget;
+        private final String widgetId;
+        private final WidgetFingerprint fingerprint;
+        private StateRecord nextState;
+
+        private WidgetRecord(Widget widget) {
+            this.widget = widget;
+            this.widgetId = widget.getId();
+            this.fingerprint = WidgetFingerprint.of(widget);
+        }
+
+        public String getWidgetId() {
+            return widgetId;
+        }
+
+        public WidgetFingerprint getFingerprint() {
+            return fingerprint;
+        }
+
+        public StateRecord getNextState() {
+            return nextState;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Exclusive lock for changes of the shared model.
+ *
+ * Testers on other machines are kept out by an advisory lock on a lock file
+ * next to the shared model. File locks are held by the whole JVM, so threads
+ * of this JVM are serialized by an additional in-process lock.
+ * Readers do not take the lock, the model file is only ever replaced as a whole.
+ */
+public class SharedModelLock implements AutoCloseable {
+
+    private static final ReentrantLock PROCESS_LOCK = new ReentrantLock();
+
+    private final FileChannel channel;
+    private final FileLock fileLock;
+    private final long acquiredAtNanos;
+    private final long waitedNanos;
+
+    private SharedModelLock(FileChannel channel, FileLock fileLock, long waitedNanos) {
+        this.channel = channel;
+        this.fileLock = fileLock;
+        this.waitedNanos = waitedNanos;
+        this.acquiredAtNanos = System.nanoTime();
+    }
+
+    /**
+     * Blocks until the lock for the given shared model file is acquired.
+     */
+    public static SharedModelLock acquire(String sharedModelFilePath) throws IOException {
+        long startNanos = System.nanoTime();
+        PROCESS_LOCK.lock();
+        FileChannel channel = null;
+        try {
+            Path lockFile = Paths.get(sharedModelFilePath + ".lock");
+            channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            FileLock fileLock = channel.lock();
+            return new SharedModelLock(channel, fileLock, System.nanoTime() - startNanos);
+        } catch (IOException | RuntimeException e) {
+            if (channel != null) {
+                channel.close();
+            }
+            PROCESS_LOCK.unlock();
+            throw e;
+        }
+    }
+
+    public long getWaitedMillis() {
+        return waitedNanos / 1_000_000;
+    }
+
+    public long getHeldMillis() {
+        return (System.nanoTime() - acquiredAtNanos) / 1_000_000;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            fileLock.release();
+            channel.close();
+        } finally {
+            PROCESS_LOCK.unlock();
+        }
+    }
+}
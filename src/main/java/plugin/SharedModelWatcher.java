@@ -0,0 +1,103 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the shared model folder and calls a listener on its own thread
+ * when one of the watched files was created or modified.
+ *
+ * Writers replace the shared model by renaming a temporary file and append to the
+ * delta log in several writes, so events that follow each other within the quiet
+ * period are reported with a single call.
+ */
+public class SharedModelWatcher implements Closeable {
+
+    private final Path folder;
+    private final Set<String> fileNames;
+    private final long quietMillis;
+    private final Runnable listener;
+    private final WatchService watchService;
+    private final Thread thread;
+
+    /**
+     * @param folder folder of the shared model
+     * @param fileNames names of the files in the folder that are watched
+     * @param quietMillis time without further events before the listener is called
+     * @param listener called on the thread of the watcher
+     */
+    public SharedModelWatcher(Path folder, Set<String> fileNames, long quietMillis, Runnable listener) throws IOException {
+        this.folder = folder.toAbsolutePath();
+        this.fileNames = fileNames;
+        this.quietMillis = quietMillis;
+        this.listener = listener;
+
+        watchService = FileSystems.getDefault().newWatchService();
+        this.folder.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        thread = new Thread(this::watch, "multi-user-sync");
+        thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    public Path getFolder() {
+        return folder;
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean isChanged = isWatchedFileChanged(key);
+
+                // Collect the events of the same write
+                while ((key = watchService.poll(quietMillis, TimeUnit.MILLISECONDS)) != null) {
+                    isChanged |= isWatchedFileChanged(key);
+                }
+
+                if (isChanged) {
+                    try {
+                        listener.run();
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            // Watcher closed
+        }
+    }
+
+    private boolean isWatchedFileChanged(WatchKey key) {
+        boolean isChanged = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            Object context = event.context();
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW
+                || context instanceof Path && fileNames.contains(((Path) context).getFileName().toString())) {
+                isChanged = true;
+            }
+        }
+        key.reset();
+        return isChanged;
+    }
+}
@@ -0,0 +1,132 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import scout.AppState;
+import scout.Widget;
+
+/**
+ * Removes widgets from the shared model that were marked as deleted
+ * longer ago than the retention window.
+ *
+ * Marked widgets stay in the shared model for a while, so that clients
+ * that still know them from an older session start merge them as deleted
+ * instead of creating them again. After the retention window they are
+ * removed for good, together with the states only reachable through them.
+ * The widget list of the model file is derived from the state tree when
+ * it is written, so it does not keep any of the removed widgets either.
+ */
+public class TombstoneCompactor {
+
+    private final long retentionMs;
+
+    public TombstoneCompactor(long retentionDays) {
+        this.retentionMs = TimeUnit.DAYS.toMillis(retentionDays);
+    }
+
+    /**
+     * @param state root of the state tree, changed in place
+     * @param nowMs current time in epoch milliseconds
+     * @return the removed widgets
+     */
+    public Result compact(AppState state, long nowMs) {
+        long deletedBefore = nowMs - retentionMs;
+
+        int widgetsBefore = countReachableWidgets(state);
+        int tombstones = removeExpired(state, deletedBefore, newIdentitySet());
+        int widgetsAfter = tombstones == 0 ? widgetsBefore : countReachableWidgets(state);
+
+        return new Result(tombstones, widgetsBefore - widgetsAfter);
+    }
+
+    private int removeExpired(AppState state, long deletedBefore, Set<Object> visited) {
+        if (!visited.add(state)) {
+            return 0;
+        }
+
+        int removed = 0;
+        for (Widget widget : state.getVisibleWidgets()) {
+            if (isExpired(widget, deletedBefore)) {
+                state.removeWidget(widget);
+                removed++;
+                continue;
+            }
+
+            AppState nextState = widget.getNextState();
+            if (nextState != null && !nextState.isHome()) {
+                removed += removeExpired(nextState, deletedBefore, visited);
+            }
+        }
+        return removed;
+    }
+
+    private static boolean isExpired(Widget widget, long deletedBefore) {
+        Object deletedAt = widget.getMetadata(MultiUser.DELETED_AT);
+        if (!(deletedAt instanceof Long)) {
+            return false;
+        }
+        long epochMilli = (Long) deletedAt;
+        return epochMilli > 0 && epochMilli <= deletedBefore;
+    }
+
+    private static int countReachableWidgets(AppState state) {
+        Set<Object> visited = newIdentitySet();
+        return countReachableWidgets(state, visited);
+    }
+
+    private static int countReachableWidgets(AppState state, Set<Object> visited) {
+        if (!visited.add(state)) {
+            return 0;
+        }
+
+        int count = 0;
+        for (Widget widget : state.getVisibleWidgets()) {
+            if (visited.add(widget)) {
+                count++;
+            }
+            AppState nextState = widget.getNextState();
+            if (nextState != null && !nextState.isHome()) {
+                count += countReachableWidgets(nextState, visited);
+            }
+        }
+        return count;
+    }
+
+    private static Set<Object> newIdentitySet() {
+        return Collections.newSetFromMap(new IdentityHashMap<>());
+    }
+
+    /**
+     * Outcome of one compaction.
+     */
+    public static class Result {
+        private final int tombstonesRemoved;
+        private final int widgetsReclaimed;
+
+        private Result(int tombstonesRemoved, int widgetsReclaimed) {
+            this.tombstonesRemoved = tombstonesRemoved;
+            this.widgetsReclaimed = widgetsReclaimed;
+        }
+
+        /**
+         * @return number of widgets marked as deleted that were removed
+         */
+        public int getTombstonesRemoved() {
+            return tombstonesRemoved;
+        }
+
+        /**
+         * @return number of widgets no longer reachable, including the removed ones
+         */
+        public int getWidgetsReclaimed() {
+            return widgetsReclaimed;
+        }
+    }
+}
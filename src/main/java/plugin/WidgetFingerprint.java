@@ -0,0 +1,89 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import java.util.Objects;
+
+import scout.Widget;
+import scout.Widget.WidgetSubtype;
+import scout.Widget.WidgetVisibility;
+
+/**
+ * The identity of a widget across sessions and testers: subtype, visibility
+ * and the meta-data href, xpath, text, tag and class.
+ * Two widgets with equal fingerprints are the same widget in the sense of
+ * {@link MultiUser#isSameWidget(Widget, Widget)}.
+ *
+ * The values are taken when the fingerprint is created and the hash is
+ * computed once, so fingerprints can be used as keys in hash based collections.
+ */
+public final class WidgetFingerprint {
+
+    private final WidgetSubtype subtype;
+    private final WidgetVisibility visibility;
+    private final String href;
+    private final String xpath;
+    private final String text;
+    private final String tag;
+    private final String cssClass;
+    private final int hash;
+
+    private WidgetFingerprint(Widget widget) {
+        subtype = widget.getWidgetSubtype();
+        visibility = widget.getWidgetVisibility();
+        href = metadataAsString(widget, "href");
+        xpath = metadataAsString(widget, "xpath");
+        text = metadataAsString(widget, "text");
+        tag = metadataAsString(widget, "tag");
+        cssClass = metadataAsString(widget, "class");
+        hash = Objects.hash(subtype, visibility, href, xpath, text, tag, cssClass);
+    }
+
+    public static WidgetFingerprint of(Widget widget) {
+        return new WidgetFingerprint(widget);
+    }
+
+    /**
+     * @return true if the widget has the same fingerprint, without creating one for it
+     */
+    public boolean matches(Widget widget) {
+        return widget != null
+            && subtype == widget.getWidgetSubtype()
+            && visibility == widget.getWidgetVisibility()
+            && href.equals(metadataAsString(widget, "href"))
+            && xpath.equals(metadataAsString(widget, "xpath"))
+            && text.equals(metadataAsString(widget, "text"))
+            && tag.equals(metadataAsString(widget, "tag"))
+            && cssClass.equals(metadataAsString(widget, "class"));
+    }
+
+    private static String metadataAsString(Widget widget, String key) {
+        return String.valueOf(widget.getMetadata(key));
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof WidgetFingerprint)) {
+            return false;
+        }
+        WidgetFingerprint other = (WidgetFingerprint) obj;
+        return hash == other.hash
+            && subtype == other.subtype
+            && visibility == other.visibility
+            && href.equals(other.href)
+            && xpath.equals(other.xpath)
+            && text.equals(other.text)
+            && tag.equals(other.tag)
+            && cssClass.equals(other.cssClass);
+    }
+}
@@ -0,0 +1,389 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import scout.AppState;
+import scout.Widget;
+
+/**
+ * Content-addressed store of widgets, shared by the shared model and the session snapshots of all products.
+ *
+ * Every widget is kept once in an append-only pack file, under the SHA-256 of its binary
+ * encoding, see {@link BinaryStateFormat#encodeWidget(Widget)}. The encoding includes the id,
+ * the meta-data and the location, so a widget that changed in any of them gets a new key.
+ * Snapshots written with {@link #writeSnapshot(OutputStream, AppState, long)} hold the state
+ * tree and the keys of its widgets only, and a save appends just the widgets that are not in the store yet.
+ *
+ * Pack layout: magic, format version, then records of key, payload length and payload.
+ * Appends hold a lock on the pack file, so testers on other machines can share the store.
+ * Records are never changed once written, so readers do not take the lock and
+ * stop at a record that is not complete yet.
+ */
+public class WidgetStore {
+
+    private static final byte[] PACK_MAGIC = {'M', 'U', 'W', 'P'};
+    private static final byte[] SNAPSHOT_MAGIC = {'M', 'U', 'W', 'S'};
+    private static final int FORMAT_VERSION = 1;
+    private static final String PACK_FILENAME = "widgets.pack";
+    private static final int KEY_LENGTH = 32;
+    private static final int PACK_HEADER_LENGTH = PACK_MAGIC.length + Integer.BYTES;
+    private static final int RECORD_HEADER_LENGTH = KEY_LENGTH + Integer.BYTES;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** File locks are held by the whole JVM, so appends of all stores in this JVM are serialized here. */
+    private static final Object APPEND_LOCK = new Object();
+
+    private final Path folder;
+    private final Path packFile;
+    private final Map<ByteBuffer, Entry> index = new HashMap<>();
+    private long indexedLength = 0;
+
+    private int lastWrittenCount = 0;
+    private int lastReusedCount = 0;
+    private long lastWrittenBytes = 0;
+
+    public WidgetStore(Path folder) {
+        this.folder = folder.toAbsolutePath();
+        this.packFile = this.folder.resolve(PACK_FILENAME);
+    }
+
+    public Path getFolder() {
+        return folder;
+    }
+
+    // ********************************************
+    // * Snapshots                                *
+    // ********************************************
+
+    /**
+     * Writes the state tree with references to its widgets and adds the widgets that are new to the store.
+     * The new widgets are on disk before the snapshot is written.
+     */
+    public void writeSnapshot(OutputStream out, AppState state, long modelVersion) throws IOException {
+        BinaryStateFormat.Writer writer = new BinaryStateFormat.Writer();
+        writer.collectWidgets(state);
+        List<ByteBuffer> keys = putAll(writer.getWidgets());
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream(BUFFER_SIZE);
+        DataOutputStream bodyOut = new DataOutputStream(body);
+        writer.writeState(bodyOut, state);
+        bodyOut.flush();
+
+        DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+        dataOut.write(SNAPSHOT_MAGIC);
+        BinaryStateFormat.writeVarLong(dataOut, FORMAT_VERSION);
+        BinaryStateFormat.writeVarLong(dataOut, modelVersion);
+        writer.writeStringTable(dataOut);
+        BinaryStateFormat.writeVarLong(dataOut, keys.size());
+        for (ByteBuffer key : keys) {
+            dataOut.write(key.array());
+        }
+        body.writeTo(dataOut);
+        dataOut.flush();
+    }
+
+    public AppState readSnapshot(String filePath) throws IOException {
+        try (InputStream in = new FileInputStream(filePath)) {
+            return readSnapshot(in);
+        }
+    }
+
+    public AppState readSnapshot(InputStream in) throws IOException {
+        DataInputStream dataIn = new DataInputStream(new BufferedInputStream(in, BUFFER_SIZE));
+        readSnapshotHeader(dataIn);
+        BinaryStateFormat.Reader reader = new BinaryStateFormat.Reader(dataIn);
+        reader.readStringTable();
+
+        int widgetCount = BinaryStateFormat.readLength(dataIn);
+        List<ByteBuffer> keys = new ArrayList<>(widgetCount);
+        for (int i = 0; i < widgetCount; i++) {
+            byte[] key = new byte[KEY_LENGTH];
+            dataIn.readFully(key);
+            keys.add(ByteBuffer.wrap(key));
+        }
+        return reader.readState(getAll(keys));
+    }
+
+    /**
+     * Reads the version of the state model without reading the rest of the snapshot.
+     */
+    public static long readModelVersion(String filePath) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(filePath))) {
+            return readSnapshotHeader(in);
+        }
+    }
+
+    /**
+     * @return the model version
+     */
+    private static long readSnapshotHeader(DataInputStream in) throws IOException {
+        byte[] magic = new byte[SNAPSHOT_MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(SNAPSHOT_MAGIC, magic)) {
+            throw new IOException("Not a widget store snapshot");
+        }
+        long formatVersion = BinaryStateFormat.readVarLong(in);
+        if (formatVersion != FORMAT_VERSION) {
+            throw new IOException("Unsupported widget store snapshot version " + formatVersion);
+        }
+        return BinaryStateFormat.readVarLong(in);
+    }
+
+    // ********************************************
+    // * Widgets                                  *
+    // ********************************************
+
+    /**
+     * Adds the widgets that are not in the store yet.
+     * @return the keys of the widgets, in the same order
+     */
+    public synchronized List<ByteBuffer> putAll(List<Widget> widgets) throws IOException {
+        MessageDigest digest = newDigest();
+        List<ByteBuffer> keys = new ArrayList<>(widgets.size());
+        Map<ByteBuffer, byte[]> newWidgets = new LinkedHashMap<>();
+        for (Widget widget : widgets) {
+            byte[] encoded = BinaryStateFormat.encodeWidget(widget);
+            ByteBuffer key = ByteBuffer.wrap(digest.digest(encoded));
+            keys.add(key);
+            if (!index.containsKey(key)) {
+                newWidgets.put(key, encoded);
+            }
+        }
+
+        lastWrittenCount = 0;
+        lastWrittenBytes = 0;
+        if (!newWidgets.isEmpty()) {
+            append(newWidgets);
+        }
+        lastReusedCount = widgets.size() - lastWrittenCount;
+        return keys;
+    }
+
+    /**
+     * @return the widgets with the given keys, in the same order
+     * @throws IOException if a widget is not in the store
+     */
+    public synchronized Widget[] getAll(List<ByteBuffer> keys) throws IOException {
+        Entry[] entries = new Entry[keys.size()];
+        boolean isRefreshed = false;
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = index.get(keys.get(i));
+            if (entries[i] == null && !isRefreshed) {
+                refreshIndex();
+                isRefreshed = true;
+                entries[i] = index.get(keys.get(i));
+            }
+            if (entries[i] == null) {
+                throw new IOException("Widget " + toHex(keys.get(i)) + " is missing in the widget store " + packFile);
+            }
+        }
+
+        // Read in the order of the pack file, so it is read front to back
+        Integer[] order = new Integer[entries.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingLong(i -> entries[i].offset));
+
+        Widget[] widgets = new Widget[entries.length];
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(packFile), BUFFER_SIZE))) {
+            long position = 0;
+            Entry previous = null;
+            byte[] encoded = null;
+            for (int i : order) {
+                Entry entry = entries[i];
+                if (entry != previous) {
+                    skipFully(in, entry.offset - position);
+                    encoded = new byte[entry.length];
+                    in.readFully(encoded);
+                    position = entry.offset + entry.length;
+                    previous = entry;
+                }
+                widgets[i] = BinaryStateFormat.decodeWidget(encoded);
+            }
+        }
+        return widgets;
+    }
+
+    /**
+     * @return number of widgets that were in the store when the last snapshot was written
+     */
+    public synchronized int getLastReusedCount() {
+        return lastReusedCount;
+    }
+
+    /**
+     * @return number of widgets that were added to the store when the last snapshot was written
+     */
+    public synchronized int getLastWrittenCount() {
+        return lastWrittenCount;
+    }
+
+    public synchronized long getLastWrittenBytes() {
+        return lastWrittenBytes;
+    }
+
+    private void append(Map<ByteBuffer, byte[]> newWidgets) throws IOException {
+        Files.createDirectories(folder);
+        synchronized (APPEND_LOCK) {
+            try (FileChannel channel = FileChannel.open(packFile,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                // Released when the channel is closed
+                channel.lock();
+                // Another tester may have added some of the widgets meanwhile, and a record
+                // left incomplete by a writer that failed is overwritten
+                long length = scan(channel);
+                if (length < channel.size()) {
+                    channel.truncate(length);
+                }
+                newWidgets.keySet().removeIf(index::containsKey);
+
+                ByteArrayOutputStream records = new ByteArrayOutputStream(BUFFER_SIZE);
+                DataOutputStream recordsOut = new DataOutputStream(records);
+                if (length == 0) {
+                    recordsOut.write(PACK_MAGIC);
+                    recordsOut.writeInt(FORMAT_VERSION);
+                }
+                Map<ByteBuffer, Entry> newEntries = new HashMap<>();
+                for (Map.Entry<ByteBuffer, byte[]> widget : newWidgets.entrySet()) {
+                    recordsOut.write(widget.getKey().array());
+                    recordsOut.writeInt(widget.getValue().length);
+                    newEntries.put(widget.getKey(), new Entry(length + recordsOut.size(), widget.getValue().length));
+                    recordsOut.write(widget.getValue());
+                }
+                recordsOut.flush();
+
+                ByteBuffer buffer = ByteBuffer.wrap(records.toByteArray());
+                long position = length;
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+                channel.force(true);
+
+                index.putAll(newEntries);
+                indexedLength = position;
+                lastWrittenCount = newEntries.size();
+                lastWrittenBytes = records.size();
+            }
+        }
+    }
+
+    /**
+     * Adds the records that other testers appended since the last scan to the index.
+     */
+    private void refreshIndex() throws IOException {
+        if (!Files.exists(packFile)) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(packFile, StandardOpenOption.READ)) {
+            scan(channel);
+        }
+    }
+
+    /**
+     * Indexes the complete records after the indexed part of the pack file.
+     * @return the length of the complete part, 0 if the pack is empty
+     */
+    private long scan(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size < indexedLength) {
+            // The pack was replaced, e.g. restored from a backup
+            index.clear();
+            indexedLength = 0;
+        }
+        if (size < PACK_HEADER_LENGTH) {
+            return 0;
+        }
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(0)), BUFFER_SIZE));
+        if (indexedLength == 0) {
+            byte[] magic = new byte[PACK_MAGIC.length];
+            in.readFully(magic);
+            int formatVersion = in.readInt();
+            if (!Arrays.equals(PACK_MAGIC, magic) || formatVersion != FORMAT_VERSION) {
+                throw new IOException("Not a widget store pack of version " + FORMAT_VERSION + ": " + packFile);
+            }
+            indexedLength = PACK_HEADER_LENGTH;
+        } else {
+            skipFully(in, indexedLength);
+        }
+
+        long position = indexedLength;
+        while (position + RECORD_HEADER_LENGTH <= size) {
+            byte[] key = new byte[KEY_LENGTH];
+            in.readFully(key);
+            int length = in.readInt();
+            if (length < 0 || position + RECORD_HEADER_LENGTH + length > size) {
+                break;
+            }
+            skipFully(in, length);
+            index.putIfAbsent(ByteBuffer.wrap(key), new Entry(position + RECORD_HEADER_LENGTH, length));
+            position += RECORD_HEADER_LENGTH + length;
+        }
+        indexedLength = position;
+        return position;
+    }
+
+    private static void skipFully(DataInputStream in, long count) throws IOException {
+        while (count > 0) {
+            int skipped = in.skipBytes((int) Math.min(count, Integer.MAX_VALUE));
+            if (skipped <= 0) {
+                throw new IOException("Unexpected end of widget store pack");
+            }
+            count -= skipped;
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(ByteBuffer key) {
+        StringBuilder hex = new StringBuilder(KEY_LENGTH * 2);
+        for (byte b : key.array()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static class Entry {
+        private final long offset;
+        private final int length;
+
+        private Entry(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
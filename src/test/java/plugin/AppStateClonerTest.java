@@ -0,0 +1,166 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static plugin.StateTreeAssert.assertSameTree;
+import static plugin.StateTreeAssert.assertSameWidget;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import plugin.MultiUser.DiffType;
+import scout.AppState;
+import scout.Path;
+import scout.PathStep;
+import scout.Widget;
+
+public class AppStateClonerTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void testCopy_ScenarioTree() throws Exception {
+        String filePath = AppStateClonerTest.class.getClassLoader().getResource("scenario_20/state_user2.json").getPath();
+        AppState state = JSONStateReader.readStateModel(filePath);
+
+        AppState copy = AppStateCloner.copy(state);
+
+        assertNotSame(state, copy);
+        assertSameTree(state, copy);
+        assertNotSame(state.getWidget("btnToMac"), copy.getWidget("btnToMac"));
+    }
+
+    @Test
+    public void testCopy_Widget() {
+        Widget widget = StateTreeGenerator.createWidget(1);
+        widget.setComment("looks strange");
+        widget.setReportedText("Label is missing");
+        widget.setReportedDate(new Date(1623332467000L));
+        widget.setWeight(0.5);
+
+        Widget copy = AppStateCloner.copy(widget);
+
+        assertSameWidget(widget, copy);
+        assertEquals(widget.getTimestamp(), copy.getTimestamp());
+        assertEquals(0, widget.compareTo(copy));
+        assertNotSame(widget.getLocationArea(), copy.getLocationArea());
+        assertNotSame(widget.getCreatedDate(), copy.getCreatedDate());
+    }
+
+    @Test
+    public void testCopy_SharedNextStateAndCycle() {
+        AppState home = new AppState("0", "Home");
+        AppState shared = new AppState("1", "shared");
+        Widget w1 = StateTreeGenerator.createWidget(1);
+        Widget w2 = StateTreeGenerator.createWidget(2);
+        w1.setNextState(shared);
+        w2.setNextState(shared);
+        home.addWidget(w1);
+        home.addWidget(w2);
+
+        AppState loop = new AppState("2", "loop");
+        Widget w3 = StateTreeGenerator.createWidget(3);
+        w3.setNextState(loop);
+        shared.addWidget(w3);
+        Widget back = StateTreeGenerator.createWidget(4);
+        back.setNextState(shared);
+        loop.addWidget(back);
+
+        AppState copy = AppStateCloner.copy(home);
+
+        AppState sharedCopy = copy.getWidget("w1").getNextState();
+        assertNotSame(shared, sharedCopy);
+        assertSame(sharedCopy, copy.getWidget("w2").getNextState());
+        AppState loopCopy = sharedCopy.getWidget("w3").getNextState();
+        assertSame(sharedCopy, loopCopy.getWidget("w4").getNextState());
+    }
+
+    @Test
+    public void testCopy_MetaData() {
+        AppState state = new AppState("0", "Home");
+        Widget widget = StateTreeGenerator.createWidget(1);
+        Widget matching = StateTreeGenerator.createWidget(2);
+        widget.putMetadata("matching_widget", matching);
+        widget.putMetadata(MultiUser.DELETED_AT, 1624998389127L);
+        state.addWidget(widget);
+        state.addWidget(matching);
+        Map<String, DiffType> diff = new HashMap<>();
+        diff.put("w1", DiffType.CREATED);
+        state.putMetadata(MultiUser.META_DATA_DIFF, diff);
+
+        AppState copy = AppStateCloner.copy(state);
+
+        assertSame(copy.getWidget("w2"), copy.getWidget("w1").getMetadata("matching_widget"));
+        assertEquals(1624998389127L, copy.getWidget("w1").getMetadata(MultiUser.DELETED_AT));
+        Object copiedDiff = copy.getMetadata(MultiUser.META_DATA_DIFF);
+        assertEquals(diff, copiedDiff);
+        assertNotSame(diff, copiedDiff);
+    }
+
+    @Test
+    public void testCopy_Path() {
+        Widget widget = StateTreeGenerator.createWidget(1);
+        AppState state = new AppState("0", "Home");
+        state.addWidget(widget);
+        Path path = new Path("900");
+        path.setTester("Andreas");
+        path.setCreatedDate(new Date(1623332401000L));
+        path.setSessionDuration(90000L);
+        path.addPathStep(new PathStep(widget));
+        state.addPath(path);
+
+        AppState copy = AppStateCloner.copy(state);
+
+        Path pathCopy = copy.getPaths().get(0);
+        assertNotSame(path, pathCopy);
+        assertEquals("900", pathCopy.getId());
+        assertEquals("Andreas", pathCopy.getTester());
+        assertEquals(path.getCreatedDate(), pathCopy.getCreatedDate());
+        assertEquals(90000L, pathCopy.getSessionDuration());
+        assertSame(copy.getWidget("w1"), pathCopy.getWidgets().get(0));
+    }
+
+    @Test
+    public void testCopy_LazyWidgetsStayUnloaded() throws Exception {
+        AppState state = StateTreeGenerator.generate(100, 5);
+        File file = tempFolder.newFile();
+        try (OutputStream out = new FileOutputStream(file)) {
+            IndexedSnapshot.write(out, state, 1);
+        }
+        IndexedSnapshot snapshot = IndexedSnapshot.open(file.getPath());
+        AppState root = snapshot.getRootState();
+
+        AppState copy = AppStateCloner.copy(root);
+
+        assertEquals(1, snapshot.getLoadedStateCount());
+        Widget copiedWidget = copy.getWidget("w0");
+        assertTrue(LazyWidget.isUnloaded(copiedWidget));
+        assertSameTree(state.getWidget("w0").getNextState(), copiedWidget.getNextState());
+        assertTrue(LazyWidget.isUnloaded(root.getWidget("w0")));
+        assertFalse(LazyWidget.isUnloaded(copiedWidget));
+    }
+
+    @Test
+    public void testCopy_Null() {
+        assertNull(AppStateCloner.copy((AppState) null));
+        assertNotNull(AppStateCloner.copy(new AppState("0")));
+    }
+}
@@ -0,0 +1,96 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import plugin.AsyncLogger.Level;
+
+public class AsyncLoggerTest {
+
+    private static final String PREFIX = "\\[\\d{4}-\\d{2}-\\d{2} \\d{2}:\\d{2}:\\d{2}\\] ";
+
+    @Test
+    public void testLog_LevelsAndPatterns() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        AsyncLogger logger = new AsyncLogger(new PrintStream(bytes, true), 16, Level.INFO);
+
+        logger.debug("Merge widget {}", "w1");
+        logger.info("Saved {} as is");
+        logger.warn("Slow save");
+        logger.setLevel(Level.DEBUG);
+        logger.debug("Merge widget {} into {}", "w1", "w2");
+        logger.debug("Merge widget {} into {}", "w3");
+        assertTrue(logger.flush(5000));
+        logger.close();
+
+        List<String> lines = getLines(bytes);
+        assertEquals(4, lines.size());
+        assertTrue(lines.get(0), lines.get(0).matches(PREFIX + "Saved \\{\\} as is"));
+        assertTrue(lines.get(1), lines.get(1).matches(PREFIX + "WARN Slow save"));
+        assertTrue(lines.get(2), lines.get(2).matches(PREFIX + "DEBUG Merge widget w1 into w2"));
+        assertTrue(lines.get(3), lines.get(3).matches(PREFIX + "DEBUG Merge widget w3 into \\{\\}"));
+    }
+
+    @Test
+    public void testLog_DropsOldestWhenFull() throws Exception {
+        CountDownLatch isPrinting = new CountDownLatch(1);
+        CountDownLatch mayPrint = new CountDownLatch(1);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream blockingOut = new OutputStream() {
+            @Override
+            public void write(int b) {
+                isPrinting.countDown();
+                await(mayPrint);
+                bytes.write(b);
+            }
+        };
+        AsyncLogger logger = new AsyncLogger(new PrintStream(blockingOut, true), 4, Level.INFO);
+
+        logger.info("first");
+        assertTrue(isPrinting.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 10; i++) {
+            logger.info("message " + i);
+        }
+        mayPrint.countDown();
+        assertTrue(logger.flush(5000));
+        logger.close();
+
+        assertEquals(6, logger.getDroppedCount());
+        List<String> lines = getLines(bytes);
+        assertEquals(6, lines.size());
+        assertTrue(lines.get(0).endsWith("first"));
+        assertTrue(lines.get(1).endsWith("WARN Dropped 6 log messages"));
+        assertTrue(lines.get(2).endsWith("message 6"));
+        assertTrue(lines.get(5).endsWith("message 9"));
+    }
+
+    private static List<String> getLines(ByteArrayOutputStream bytes) {
+        return Arrays.stream(new String(bytes.toByteArray(), StandardCharsets.UTF_8).split("\\R"))
+            .filter(line -> !line.isEmpty())
+            .collect(Collectors.toList());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class AsyncSaverTest {
+
+    private final AsyncSaver saver = new AsyncSaver();
+
+    @After
+    public void tearDown() {
+        saver.shutdown();
+    }
+
+    @Test
+    public void testSubmit_CoalescesWaitingSaves() throws Exception {
+        CountDownLatch isRunning = new CountDownLatch(1);
+        CountDownLatch mayFinish = new CountDownLatch(1);
+        List<Integer> saved = Collections.synchronizedList(new ArrayList<>());
+
+        CompletableFuture<Boolean> first = saver.submit(() -> {
+            isRunning.countDown();
+            await(mayFinish);
+            saved.add(1);
+            return true;
+        });
+        assertTrue(isRunning.await(5, TimeUnit.SECONDS));
+        CompletableFuture<Boolean> second = saver.submit(() -> saved.add(2));
+        CompletableFuture<Boolean> third = saver.submit(() -> saved.add(3));
+        assertFalse(saver.isIdle());
+        mayFinish.countDown();
+
+        assertTrue(first.get(5, TimeUnit.SECONDS));
+        assertTrue(third.get(5, TimeUnit.SECONDS));
+        assertSame(second, third);
+        assertSame(third, saver.getLastSave());
+        assertEquals(1, saver.getCoalescedCount());
+        assertEquals(2, saved.size());
+        assertEquals(3, (int) saved.get(1));
+        assertTrue(saver.isIdle());
+    }
+
+    @Test
+    public void testSubmit_Failure() throws Exception {
+        assertFalse(saver.submit(() -> false).get(5, TimeUnit.SECONDS));
+
+        CompletableFuture<Boolean> failed = saver.submit(() -> {
+            throw new IllegalStateException("disk full");
+        });
+        try {
+            failed.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+
+        assertTrue(saver.submit(() -> true).get(5, TimeUnit.SECONDS));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import static org.junit.Assert.assertEquals;
+import static plugin.StateTreeAssert.assertSameTree;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import plugin.MultiUser.DiffType;
+import scout.AppState;
+import scout.Widget;
+
+public class BinaryStateFormatTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void testWrite_ReadBack() throws Exception {
+        String[] files = {
+            "scenario_10/state.json",
+            "scenario_10/state_other.json",
+            "scenario_20/state_initial.json",
+            "scenario_20/state_user1.json",
+            "scenario_20/state_user2.json",
+        };
+
+        for (String file : files) {
+            AppState state = JSONStateReader.readStateModel(getResourcePath(file));
+
+            AppState result = readBack(state);
+
+            assertSameTree(state, result);
+        }
+    }
+
+    @Test
+    public void testWrite_ReadBackGenerated() throws Exception {
+        AppState state = StateTreeGenerator.generate(1000, 10);
+        Widget widget = state.getVisibleWidgets().get(0);
+        widget.putMetadata(MultiUser.DELETED_AT, 1621234567890L);
+        widget.putMetadata("matching_widget", StateTreeGenerator.createWidget(5000));
+        Map<String, DiffType> diff = new HashMap<>();
+        diff.put(widget.getId(), DiffType.CREATED);
+        state.putMetadata(MultiUser.META_DATA_DIFF, diff);
+
+        AppState result = readBack(state);
+
+        assertSameTree(state, result);
+        assertEquals(diff, result.getMetadata(MultiUser.META_DATA_DIFF));
+    }
+
+    @Test
+    public void testReadModelVersion() throws Exception {
+        File file = tempFolder.newFile("shared-state.bin");
+        try (OutputStream out = new FileOutputStream(file)) {
+            BinaryStateFormat.write(out, new AppState("0", "Home"), 4711);
+        }
+
+        assertEquals(4711, BinaryStateFormat.readModelVersion(file.getPath()));
+    }
+
+    @Test
+    public void testVarLong() throws Exception {
+        long[] values = { 0, 1, -1, 63, -64, 64, 127, 128, 300, Integer.MAX_VALUE, Long.MAX_VALUE, Long.MIN_VALUE };
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (long value : values) {
+            BinaryStateFormat.writeVarLong(out, value);
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        for (long value : values) {
+            assertEquals(value, BinaryStateFormat.readVarLong(in));
+        }
+    }
+
+    private static AppState readBack(AppState state) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryStateFormat.write(out, state, 1);
+        return BinaryStateFormat.read(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    private static String getResourcePath(String resource) {
+        return BinaryStateFormatTest.class.getClassLoader().getResource(resource).getPath();
+    }
+}
@@ -0,0 +1,85 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import plugin.MultiUser.DiffType;
+import scout.AppState;
+
+public class ChangeFeedTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void testReadNewRecords() throws Exception {
+        DeltaLog deltaLog = new DeltaLog(tempFolder.getRoot().getPath() + "/delta.jsonl");
+        deltaLog.append(createRecord(1));
+        ChangeFeed feed = new ChangeFeed(deltaLog, deltaLog.length());
+        assertFalse(feed.hasNewRecords());
+
+        deltaLog.append(createRecord(2));
+        deltaLog.append(createRecord(3));
+        assertTrue(feed.hasNewRecords());
+        List<AppState> records = feed.readNewRecords();
+
+        assertEquals(2, records.size());
+        assertEquals("w2", records.get(0).getVisibleWidgets().get(0).getId());
+        assertEquals("w3", records.get(1).getVisibleWidgets().get(0).getId());
+        assertEquals(deltaLog.lastModified(), feed.getLastWriteMillis());
+        assertFalse(feed.hasNewRecords());
+        assertTrue(feed.readNewRecords().isEmpty());
+    }
+
+    @Test
+    public void testReadNewRecords_FoldedLog() throws Exception {
+        DeltaLog deltaLog = new DeltaLog(tempFolder.getRoot().getPath() + "/delta.jsonl");
+        deltaLog.append(createRecord(1));
+        ChangeFeed feed = new ChangeFeed(deltaLog, deltaLog.length());
+
+        deltaLog.delete();
+
+        assertTrue(feed.hasNewRecords());
+        assertNull(feed.readNewRecords());
+        feed.skipTo(0);
+        deltaLog.append(createRecord(2));
+        assertEquals(1, feed.readNewRecords().size());
+    }
+
+    @Test
+    public void testRecordVisible() {
+        ChangeFeed feed = new ChangeFeed(new DeltaLog(tempFolder.getRoot().getPath() + "/delta.jsonl"), 0);
+        long now = System.currentTimeMillis();
+
+        feed.recordVisible(now - 100_000);
+        feed.recordVisible(now + 100_000);
+
+        assertEquals(2, feed.getDeliveredCount());
+        assertEquals(0, feed.getLastLatencyMillis());
+        assertTrue(feed.getMaxLatencyMillis() >= 100_000);
+        assertEquals(feed.getMaxLatencyMillis() / 2, feed.getAverageLatencyMillis());
+    }
+
+    private static AppState createRecord(int widgetNumber) {
+        AppState home = new AppState("0", "Home");
+        home.addWidget(StateTreeGenerator.createWidget(widgetNumber));
+        Map<String, DiffType> diff = new HashMap<>();
+        diff.put("w" + widgetNumber, DiffType.CREATED);
+        home.putMetadata(MultiUser.META_DATA_DIFF, diff);
+        return home;
+    }
+}
@@ -0,0 +1,65 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import scout.AppState;
+
+/**
+ * Compares the structural {@link AppStateCloner} with the copy by Java serialization
+ * that {@link MultiUser#deepCopy(java.io.Serializable)} used before.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DeepCopyBenchmark {
+
+    @Param({ "1000", "10000", "100000" })
+    public int widgets;
+
+    @Param({ "10" })
+    public int fanOut;
+
+    private AppState state;
+
+    @Setup
+    public void setup() {
+        state = StateTreeGenerator.generate(widgets, fanOut);
+    }
+
+    @Benchmark
+    public AppState structuralCopy() {
+        return AppStateCloner.copy(state);
+    }
+
+    @Benchmark
+    public AppState serializationCopy() {
+        return AppStateCloner.copyBySerialization(state);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+            .include(DeepCopyBenchmark.class.getSimpleName())
+            .build()).run();
+    }
+}
@@ -0,0 +1,168 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.FileWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import plugin.MultiUser.DiffType;
+import scout.AppState;
+import scout.Widget;
+
+public class DeltaLogTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void testAppend_WithoutChanges() throws Exception {
+        AppState home = new AppState("0", "Home");
+        home.addWidget(StateTreeGenerator.createWidget(1));
+        annotate(home, "w1", DiffType.NO_CHANGES);
+
+        DeltaLog deltaLog = new DeltaLog(tempFolder.getRoot().getPath() + "/delta.jsonl");
+
+        assertFalse(deltaLog.append(home));
+        assertFalse(deltaLog.exists());
+    }
+
+    @Test
+    public void testAppend_KeepsPathToChanges() throws Exception {
+        AppState home = new AppState("0", "Home");
+        AppState next = new AppState("1", "next");
+        Widget w1 = StateTreeGenerator.createWidget(1);
+        Widget w2 = StateTreeGenerator.createWidget(2);
+        w1.setNextState(next);
+        home.addWidget(w1);
+        home.addWidget(w2);
+        next.addWidget(StateTreeGenerator.createWidget(3));
+        annotate(home, "w1", DiffType.NO_CHANGES);
+        annotate(home, "w2", DiffType.NO_CHANGES);
+        annotate(next, "w3", DiffType.CREATED);
+        annotate(next, "w4", DiffType.DELETED);
+
+        DeltaLog deltaLog = new DeltaLog(tempFolder.getRoot().getPath() + "/delta.jsonl");
+        assertTrue(deltaLog.append(home));
+        assertTrue(deltaLog.append(home));
+
+        List<AppState> records = deltaLog.readRecords();
+        assertEquals(2, records.size());
+        assertEquals(2, deltaLog.countRecords());
+
+        AppState record = records.get(0);
+        assertEquals(1, record.getVisibleWidgets().size());
+        assertNull(record.getWidget("w2"));
+        Map<String, DiffType> nextDiff = getDiff(record.getWidget("w1").getNextState());
+        assertEquals(DiffType.CREATED, nextDiff.get("w3"));
+        assertEquals(DiffType.DELETED, nextDiff.get("w4"));
+        assertEquals(1, getDiff(record).size());
+    }
+
+    @Test
+    public void testReadRecords_IncompleteLastRecord() throws Exception {
+        AppState home = new AppState("0", "Home");
+        home.addWidget(StateTreeGenerator.createWidget(1));
+        annotate(home, "w1", DiffType.CREATED);
+
+        DeltaLog deltaLog = new DeltaLog(tempFolder.getRoot().getPath() + "/delta.jsonl");
+        deltaLog.append(home);
+        try (Writer writer = new FileWriter(deltaLog.getFilePath(), true)) {
+            writer.write("{\"product\":\"\",\"all-widgets\":[{\"id\":");
+        }
+
+        List<AppState> records = deltaLog.readRecords();
+
+        assertEquals(1, records.size());
+        assertNotNull(records.get(0).getWidget("w1"));
+    }
+
+    @Test
+    public void testReadRecords_FromOffset() throws Exception {
+        AppState home = new AppState("0", "Home");
+        home.addWidget(StateTreeGenerator.createWidget(1));
+        annotate(home, "w1", DiffType.CREATED);
+        DeltaLog deltaLog = new DeltaLog(tempFolder.getRoot().getPath() + "/delta.jsonl");
+        deltaLog.append(home);
+        deltaLog.append(home);
+
+        List<AppState> records = new ArrayList<>();
+        long offset = deltaLog.readRecords(0, records);
+        assertEquals(2, records.size());
+        assertEquals(deltaLog.length(), offset);
+
+        home.addWidget(StateTreeGenerator.createWidget(2));
+        annotate(home, "w2", DiffType.CREATED);
+        deltaLog.append(home);
+        try (Writer writer = new FileWriter(deltaLog.getFilePath(), true)) {
+            writer.write("{\"product\":\"\",\"all-widgets\":[{\"id\":");
+        }
+        records.clear();
+        long nextOffset = deltaLog.readRecords(offset, records);
+
+        assertEquals(1, records.size());
+        assertNotNull(records.get(0).getWidget("w2"));
+        assertTrue(nextOffset < deltaLog.length());
+        records.clear();
+        assertEquals(nextOffset, deltaLog.readRecords(nextOffset, records));
+        assertTrue(records.isEmpty());
+    }
+
+    @Test
+    public void testMoveToFold_SkippedOnceModelHasVersion() throws Exception {
+        AppState home = new AppState("0", "Home");
+        home.addWidget(StateTreeGenerator.createWidget(1));
+        annotate(home, "w1", DiffType.CREATED);
+        DeltaLog deltaLog = new DeltaLog(tempFolder.getRoot().getPath() + "/delta.jsonl");
+        deltaLog.append(home);
+
+        assertTrue(deltaLog.moveToFold(5));
+        assertFalse(deltaLog.exists());
+        deltaLog.append(home);
+        assertTrue(deltaLog.moveToFold(5));
+        deltaLog.append(home);
+
+        List<DeltaLog> unfolded = deltaLog.getUnfoldedLogs(4);
+        assertEquals(3, unfolded.size());
+        assertTrue(unfolded.get(0).getFilePath().endsWith("delta.jsonl.5.fold"));
+        assertTrue(unfolded.get(1).getFilePath().endsWith("delta.jsonl.5-1.fold"));
+        assertEquals(deltaLog.getFilePath(), unfolded.get(2).getFilePath());
+        assertEquals(1, deltaLog.getUnfoldedLogs(5).size());
+
+        assertTrue(deltaLog.deleteFolded(5));
+        assertEquals(1, deltaLog.getUnfoldedLogs(4).size());
+        assertTrue(deltaLog.exists());
+        assertTrue(deltaLog.moveToFold(6));
+        assertFalse(deltaLog.moveToFold(6));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void annotate(AppState state, String widgetId, DiffType diffType) {
+        Map<String, DiffType> diff = (Map<String, DiffType>) state.getMetadata(MultiUser.META_DATA_DIFF);
+        if (diff == null) {
+            diff = new HashMap<>();
+            state.putMetadata(MultiUser.META_DATA_DIFF, diff);
+        }
+        diff.put(widgetId, diffType);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, DiffType> getDiff(AppState state) {
+        return (Map<String, DiffType>) state.getMetadata(MultiUser.META_DATA_DIFF);
+    }
+}
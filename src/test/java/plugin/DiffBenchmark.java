@@ -0,0 +1,88 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import scout.AppState;
+
+/**
+ * Compares the sequential diff annotation with the parallel one on deep (small fan-out)
+ * and wide (large fan-out) trees. The speedup depends on the number of cores,
+ * which is printed during setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DiffBenchmark {
+
+    @Param({ "10000", "100000" })
+    public int widgets;
+
+    @Param({ "2", "10", "100" })
+    public int fanOut;
+
+    private AppState before;
+    private AppState after;
+    private MultiUser sequentialDiff;
+    private MultiUser parallelDiff;
+
+    @Setup
+    public void setup() {
+        before = StateTreeGenerator.generate(widgets, fanOut);
+        after = StateTreeGenerator.generate(widgets, fanOut);
+        sequentialDiff = new MultiUser(true) {
+            @Override
+            protected boolean isParallelDiff() {
+                return false;
+            }
+        };
+        parallelDiff = new MultiUser(true) {
+            @Override
+            protected boolean isParallelDiff() {
+                return true;
+            }
+        };
+
+        System.out.printf("%n%d cores, parallelism of the common pool %d%n",
+            Runtime.getRuntime().availableProcessors(), ForkJoinPool.getCommonPoolParallelism());
+    }
+
+    @Benchmark
+    public AppState sequential() {
+        sequentialDiff.annotateDiffsInStates(before, after);
+        return after;
+    }
+
+    @Benchmark
+    public AppState parallel() {
+        parallelDiff.annotateDiffsInStates(before, after);
+        return after;
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+            .include(DiffBenchmark.class.getSimpleName())
+            .build()).run();
+    }
+}
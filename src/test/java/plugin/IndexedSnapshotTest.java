@@ -0,0 +1,159 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static plugin.StateTreeAssert.assertSameTree;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import plugin.MultiUser.DiffType;
+import scout.AppState;
+import scout.Widget;
+
+public class IndexedSnapshotTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void testRead_SameAsWritten() throws Exception {
+        String[] files = {
+            "scenario_10/state.json",
+            "scenario_20/state_initial.json",
+            "scenario_20/state_user1.json",
+        };
+
+        for (String file : files) {
+            AppState state = JSONStateReader.readStateModel(getResourcePath(file));
+
+            AppState result = writeAndOpen(state, 1).getRootState();
+
+            assertSameTree(state, result);
+        }
+    }
+
+    @Test
+    public void testRead_SameAsWrittenGenerated() throws Exception {
+        AppState state = StateTreeGenerator.generate(1000, 10);
+        Widget widget = state.getVisibleWidgets().get(0);
+        widget.putMetadata(MultiUser.DELETED_AT, 1621234567890L);
+        Map<String, DiffType> diff = new HashMap<>();
+        diff.put(widget.getId(), DiffType.CREATED);
+        state.putMetadata(MultiUser.META_DATA_DIFF, diff);
+
+        IndexedSnapshot snapshot = writeAndOpen(state, 42);
+        AppState result = snapshot.getRootState();
+
+        assertEquals(42, snapshot.getModelVersion());
+        assertSameTree(state, result);
+        assertEquals(diff, result.getMetadata(MultiUser.META_DATA_DIFF));
+    }
+
+    @Test
+    public void testRead_OnlyVisitedStates() throws Exception {
+        AppState state = StateTreeGenerator.generate(1000, 10);
+        IndexedSnapshot snapshot = writeAndOpen(state, 1);
+        List<Widget> loaded = new ArrayList<>();
+        snapshot.setLoadListener((widget, nextState) -> loaded.add(widget));
+
+        AppState root = snapshot.getRootState();
+        assertEquals(1, snapshot.getLoadedStateCount());
+        for (Widget widget : root.getVisibleWidgets()) {
+            assertTrue(LazyWidget.isUnloaded(widget));
+        }
+
+        Widget first = root.getVisibleWidgets().get(0);
+        AppState nextState = first.getNextState();
+
+        assertEquals(2, snapshot.getLoadedStateCount());
+        assertFalse(LazyWidget.isUnloaded(first));
+        assertTrue(LazyWidget.isUnloaded(root.getVisibleWidgets().get(1)));
+        assertSame(nextState, first.getNextState());
+        assertEquals(1, loaded.size());
+        assertSame(first, loaded.get(0));
+    }
+
+    @Test
+    public void testRead_WidgetInTwoStates() throws Exception {
+        AppState state = StateTreeGenerator.generate(30, 3);
+        Widget sharedWidget = state.getWidget("w0").getNextState().getVisibleWidgets().get(0);
+        state.getWidget("w1").getNextState().addWidget(sharedWidget);
+        IndexedSnapshot snapshot = writeAndOpen(state, 1);
+        AppState root = snapshot.getRootState();
+
+        Widget widget = root.getWidget("w0").getNextState().getWidget(sharedWidget.getId());
+        AppState nextState = widget.getNextState();
+        nextState.addWidget(StateTreeGenerator.createWidget(100));
+        AppState otherState = root.getWidget("w1").getNextState();
+
+        assertSame(widget, otherState.getWidget(sharedWidget.getId()));
+        assertSame(nextState, widget.getNextState());
+        assertNotNull(nextState.getWidget("w100"));
+    }
+
+    @Test
+    public void testSerialize_ReadsDeferredState() throws Exception {
+        AppState state = StateTreeGenerator.generate(100, 10);
+        AppState root = writeAndOpen(state, 1).getRootState();
+
+        AppState copy = AppStateCloner.copyBySerialization(root);
+
+        assertFalse(LazyWidget.isUnloaded(root.getVisibleWidgets().get(0)));
+        assertSameTree(state, copy);
+    }
+
+    @Test
+    public void testReadModelVersion() throws Exception {
+        File file = tempFolder.newFile("shared-state.idx");
+        try (OutputStream out = new FileOutputStream(file)) {
+            IndexedSnapshot.write(out, new AppState("0", "Home"), 4711);
+        }
+
+        assertEquals(4711, IndexedSnapshot.readModelVersion(file.getPath()));
+    }
+
+    @Test
+    public void testByteBufferInput_ReadLine() throws Exception {
+        byte[] bytes = "first\r\nsecond\rthird\n\nl\u00e4st".getBytes(StandardCharsets.ISO_8859_1);
+        IndexedSnapshot.ByteBufferInput in = new IndexedSnapshot.ByteBufferInput(ByteBuffer.wrap(bytes), 0);
+
+        assertEquals("first", in.readLine());
+        assertEquals("second", in.readLine());
+        assertEquals("third", in.readLine());
+        assertEquals("", in.readLine());
+        assertEquals("l\u00e4st", in.readLine());
+        assertNull(in.readLine());
+    }
+
+    private IndexedSnapshot writeAndOpen(AppState state, long modelVersion) throws Exception {
+        File file = tempFolder.newFile();
+        try (OutputStream out = new FileOutputStream(file)) {
+            IndexedSnapshot.write(out, state, modelVersion);
+        }
+        return IndexedSnapshot.open(file.getPath());
+    }
+
+    private static String getResourcePath(String resource) {
+        return IndexedSnapshotTest.class.getClassLoader().getResource(resource).getPath();
+    }
+}
@@ -3,6 +3,7 @@ package plugin;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static plugin.JSONStateParser.locationAreaAsJSONObject;
 import static plugin.JSONStateParser.metadataAsJSONObject;
@@ -14,6 +15,7 @@ import java.awt.Rectangle;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -227,8 +229,33 @@ public class JSONStateParserTest {
     }
 
     @Test
-    public void testParseState() {
-        // TODO: Implement
+    public void testParseState() throws Exception {
+        String json = "{\"state-id\":\"0\",\"bookmarks\":\"Home\",\"visible-widgets\":["
+            + "{\"id\":\"1\",\"next-state\":{\"state-id\":\"10\",\"bookmarks\":\"next\",\"visible-widgets\":["
+            + "{\"id\":\"2\",\"next-state\":null}]}},"
+            + "{\"id\":\"3\",\"next-state\":null}]}";
+        JSONObject jsonState = (JSONObject) new JSONParser().parse(json);
+
+        Widget first = new Widget();
+        first.setId("1");
+        Widget duplicate = new Widget();
+        duplicate.setId("1");
+        Widget second = new Widget();
+        second.setId("2");
+        Widget third = new Widget();
+        third.setId("3");
+        JSONStateParser.ParseContext context = new JSONStateParser.ParseContext(Arrays.asList(first, duplicate, second, third));
+
+        AppState result = JSONStateParser.parseState(jsonState, context);
+
+        assertEquals("0", result.getId());
+        assertEquals(2, result.getVisibleWidgets().size());
+        assertSame(first, result.getWidget("1"));
+        assertSame(third, result.getWidget("3"));
+
+        AppState nextState = first.getNextState();
+        assertEquals("10", nextState.getId());
+        assertSame(second, nextState.getWidget("2"));
     }
 
     @Test
@@ -0,0 +1,129 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static plugin.StateTreeAssert.assertSameTree;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import plugin.JSONStateParser.ParseContext;
+import scout.AppState;
+import scout.Widget;
+
+public class JSONStateReaderTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void testReadStateModel_SameAsParser() throws Exception {
+        String[] files = {
+            "scenario_10/state.json",
+            "scenario_10/state_other.json",
+            "scenario_20/state_initial.json",
+            "scenario_20/state_user1.json",
+            "scenario_20/state_user2.json",
+        };
+
+        for (String file : files) {
+            String filePath = getResourcePath(file);
+            AppState expected = JSONStateParser.parseCompleteAppState(parseJSON(filePath));
+
+            AppState result = JSONStateReader.readStateModel(filePath);
+
+            assertNotNull(file, result);
+            assertSameTree(expected, result);
+        }
+    }
+
+    @Test
+    public void testRead_SharesRepeatedStrings() throws Exception {
+        AppState state = StateTreeGenerator.generate(200, 10);
+        StringWriter json = new StringWriter();
+        JSONStateWriter.write(json, state);
+        ParseContext context = new ParseContext();
+
+        AppState result = JSONStateReader.read(new StringReader(json.toString()), context);
+
+        Map<String, Object> firstTags = new HashMap<>();
+        for (Widget widget : result.getAllIncludingChildWidgets()) {
+            Object tag = widget.getMetadata("tag");
+            Object firstTag = firstTags.putIfAbsent(String.valueOf(tag), tag);
+            if (firstTag != null) {
+                assertSame(firstTag, tag);
+            }
+        }
+        assertTrue(context.getDuplicateStrings() > 0);
+        assertTrue(context.getSavedBytes() > 0);
+    }
+
+    @Test
+    public void testReadModelVersion() throws Exception {
+        AppState state = JSONStateReader.readStateModel(getResourcePath("scenario_10/state.json"));
+        File file = tempFolder.newFile("shared-state.json");
+        try (Writer writer = new FileWriter(file)) {
+            JSONStateWriter.write(writer, state, 42);
+        }
+
+        assertEquals(42, JSONStateReader.readModelVersion(file.getPath()));
+        assertEquals(0, JSONStateReader.readModelVersion(getResourcePath("scenario_10/state.json")));
+        assertEquals(state.getAllIncludingChildWidgets().size(), 
+            JSONStateReader.readStateModel(file.getPath()).getAllIncludingChildWidgets().size());
+    }
+
+    @Test
+    public void testRead_StateBeforeAllWidgets() throws Exception {
+        String json = "{\"state\":{\"state-id\":\"0\",\"bookmarks\":\"Home\",\"visible-widgets\":["
+            + "{\"id\":\"1\",\"meta-data\":{\"matching_widget\":\"2\"},\"next-state\":"
+            + "{\"state-id\":\"10\",\"bookmarks\":\"next\",\"visible-widgets\":[{\"id\":\"2\",\"next-state\":null}]}}]},"
+            + "\"all-widgets\":[" + widgetJSON("1") + "," + widgetJSON("2") + "]}";
+
+        AppState result = JSONStateReader.read(new StringReader(json));
+
+        assertEquals("0", result.getId());
+        Widget w1 = result.getWidget("1");
+        assertNotNull(w1);
+        assertEquals("/html[1]/body[1]", w1.getMetadata("xpath"));
+        AppState nextState = w1.getNextState();
+        assertEquals("10", nextState.getId());
+        Widget w2 = nextState.getWidget("2");
+        assertNotNull(w2);
+        assertSame(w2, w1.getMetadata("matching_widget"));
+    }
+
+    private static String widgetJSON(String id) {
+        return "{\"id\":\"" + id + "\",\"visibility\":\"VISIBLE\",\"status\":\"LOCATED\",\"type\":\"ACTION\","
+            + "\"subtype\":\"LEFT_CLICK_ACTION\",\"weight\":0.0,\"paths\":[1,2],"
+            + "\"location\":{\"x\":\"1\",\"y\":\"2\",\"width\":\"3\",\"height\":\"4\"},"
+            + "\"meta-data\":{\"xpath\":\"/html[1]/body[1]\",\"neighbors\":\"12\"}}";
+    }
+
+    private static String getResourcePath(String resource) {
+        return JSONStateReaderTest.class.getClassLoader().getResource(resource).getPath();
+    }
+
+    private static JSONObject parseJSON(String filePath) throws Exception {
+        try (FileReader reader = new FileReader(filePath)) {
+            return (JSONObject) new JSONParser().parse(reader);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import static org.junit.Assert.assertEquals;
+import static plugin.StateTreeAssert.assertSameTree;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.Test;
+
+import plugin.MultiUser.DiffType;
+import scout.AppState;
+import scout.Widget;
+
+public class JSONStateWriterTest {
+
+    @Test
+    public void testWrite_SameAsAppStateAsJSONObject() throws Exception {
+        AppState state = JSONStateReader.readStateModel(getResourcePath("scenario_20/state_user2.json"));
+        Widget matching = StateTreeGenerator.createWidget(1);
+        state.getVisibleWidgets().get(0).putMetadata("matching_widget", matching);
+        Map<String, DiffType> diff = new HashMap<>();
+        diff.put("btnToMac", DiffType.NO_CHANGES);
+        state.putMetadata(MultiUser.META_DATA_DIFF, diff);
+        state.putMetadata("coverage", 42);
+
+        JSONObject expected = parse(JSONStateParser.appStateAsJSONObject(state).toJSONString());
+        JSONObject result = parse(writeToString(state));
+
+        normalize(expected);
+        normalize(result);
+        assertEquals(expected, result);
+    }
+
+    @Test
+    public void testWrite_ReadBack() throws Exception {
+        AppState state = JSONStateReader.readStateModel(getResourcePath("scenario_10/state.json"));
+
+        AppState result = JSONStateReader.read(new StringReader(writeToString(state)));
+
+        assertSameTree(state, result);
+    }
+
+    @Test
+    public void testWrite_EscapesStrings() throws Exception {
+        AppState state = new AppState("0", "Home \"quoted\"");
+        Widget widget = StateTreeGenerator.createWidget(1);
+        widget.setText("line\nbreak \\ Übersicht");
+        state.addWidget(widget);
+
+        AppState result = JSONStateReader.read(new StringReader(writeToString(state)));
+
+        assertEquals("Home \"quoted\"", result.getBookmark());
+        assertEquals("line\nbreak \\ Übersicht", result.getWidget("w1").getText());
+    }
+
+    @Test
+    public void testWrite_KeepsDeletedMarker() throws Exception {
+        AppState state = new AppState("0", "Home");
+        Widget widget = StateTreeGenerator.createWidget(1);
+        widget.putMetadata(MultiUser.DELETED_AT, 1621234567890L);
+        state.addWidget(widget);
+        String json = writeToString(state);
+
+        AppState result = JSONStateReader.read(new StringReader(json));
+        AppState parsed = JSONStateParser.parseCompleteAppState(parse(json));
+
+        assertEquals(1621234567890L, result.getWidget("w1").getMetadata(MultiUser.DELETED_AT));
+        assertEquals(1621234567890L, parsed.getWidget("w1").getMetadata(MultiUser.DELETED_AT));
+    }
+
+    private static String writeToString(AppState state) throws Exception {
+        StringWriter writer = new StringWriter();
+        JSONStateWriter.write(writer, state);
+        return writer.toString();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void normalize(JSONObject json) {
+        json.remove("last-updated-at-ms");
+
+        List<String> widgets = new ArrayList<>();
+        ((JSONArray) json.get("all-widgets")).forEach(w -> widgets.add(((JSONObject) w).toJSONString()));
+        Collections.sort(widgets);
+        json.put("all-widgets", widgets);
+    }
+
+    private static JSONObject parse(String json) throws Exception {
+        return (JSONObject) new JSONParser().parse(json);
+    }
+
+    private static String getResourcePath(String resource) {
+        return JSONStateWriterTest.class.getClassLoader().getResource(resource).getPath();
+    }
+}
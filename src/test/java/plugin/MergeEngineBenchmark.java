@@ -0,0 +1,120 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import scout.AppState;
+import scout.StateController;
+
+/**
+ * Throughput of the single steps of loading and saving a session, on trees of
+ * different size and shape. Run with "-prof gc" for the allocation rate,
+ * e.g. with the Maven profile "benchmark".
+ *
+ * The session tree is the shared tree with widgets created and deleted in every 7th state.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MergeEngineBenchmark {
+
+    @Param({ "1000", "10000" })
+    public int widgets;
+
+    @Param({ "10", "50" })
+    public int fanOut;
+
+    @Param({ "4", "8" })
+    public int depth;
+
+    private MultiUser multiUser;
+    private AppState sharedState;
+    private JSONObject sharedStateJSON;
+    private AppState sessionState;
+    private AppState annotatedSessionState;
+
+    @Setup
+    public void setup() throws ParseException {
+        StateController.setSystemProperty("multiUserPlugin.logLevel", "warn");
+        multiUser = new MultiUser(true);
+
+        sharedState = StateTreeGenerator.generate(widgets, fanOut, depth);
+        // Parse the text, the parser expects the JSON arrays that JSONParser creates
+        sharedStateJSON = (JSONObject) new JSONParser().parse(JSONStateParser.appStateAsJSONObject(sharedState).toJSONString());
+        sessionState = StateTreeGenerator.generate(widgets, fanOut, depth);
+        StateTreeGenerator.changeTree(sessionState, widgets);
+
+        annotatedSessionState = AppStateCloner.copy(sessionState);
+        multiUser.annotateDiffsInStates(sharedState, annotatedSessionState);
+    }
+
+    /**
+     * A fresh copy of the annotated session for every merge, since the merge moves created widgets into the shared tree.
+     */
+    @State(Scope.Thread)
+    public static class MergeInput {
+        private AppState sessionState;
+
+        @Setup(Level.Invocation)
+        public void copySession(MergeEngineBenchmark benchmark) {
+            sessionState = AppStateCloner.copy(benchmark.annotatedSessionState);
+        }
+    }
+
+    @Benchmark
+    public AppState parseCompleteAppState() {
+        return JSONStateParser.parseCompleteAppState(sharedStateJSON);
+    }
+
+    @Benchmark
+    public JSONObject appStateAsJSONObject() {
+        return JSONStateParser.appStateAsJSONObject(sharedState);
+    }
+
+    @Benchmark
+    public AppState deepCopy() {
+        return multiUser.deepCopy(sharedState);
+    }
+
+    @Benchmark
+    public AppState annotateDiffsInStates() {
+        multiUser.annotateDiffsInStates(sharedState, sessionState);
+        return sessionState;
+    }
+
+    @Benchmark
+    public AppState mergeStateChanges(MergeInput input) {
+        return multiUser.mergeStateChanges(sharedState, input.sessionState);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+            .include(MergeEngineBenchmark.class.getSimpleName())
+            .addProfiler("gc")
+            .build()).run();
+    }
+}
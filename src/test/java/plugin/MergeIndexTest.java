@@ -0,0 +1,121 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+
+import org.junit.Test;
+
+import scout.AppState;
+import scout.Widget;
+
+public class MergeIndexTest {
+
+    @Test
+    public void testGetWidget() {
+        AppState home = StateTreeGenerator.generate(100, 5);
+        Widget w0 = home.getWidget("w0");
+        AppState s0 = w0.getNextState();
+        Widget w5 = s0.getWidget("w5");
+
+        MergeIndex index = MergeIndex.build(home);
+
+        assertSame(w0, index.getWidget(home, "w0"));
+        assertSame(w5, index.getWidget(s0, "w5"));
+        assertNull(index.getWidget(home, "w5"));
+        assertNull(index.getWidget(home, "unknown"));
+        assertSame(s0, index.getOwningState("w5"));
+        assertSame(w0, index.getParentWidget(s0.getId()));
+        assertNull(index.getParentWidget(home.getId()));
+    }
+
+    @Test
+    public void testGetWidget_SameIdInTwoStates() {
+        AppState home = StateTreeGenerator.generate(10, 5);
+        AppState s0 = home.getWidget("w0").getNextState();
+        AppState s1 = home.getWidget("w1").getNextState();
+        Widget first = StateTreeGenerator.createWidget(100);
+        Widget second = StateTreeGenerator.createWidget(100);
+        s0.addWidget(first);
+        s1.addWidget(second);
+
+        MergeIndex index = MergeIndex.build(home);
+
+        assertSame(first, index.getWidget(s0, "w100"));
+        assertSame(second, index.getWidget(s1, "w100"));
+        assertNull(index.getOwningState("w100"));
+    }
+
+    @Test
+    public void testAddWidget() {
+        AppState home = StateTreeGenerator.generate(10, 5);
+        MergeIndex index = MergeIndex.build(home);
+        AppState s0 = home.getWidget("w0").getNextState();
+        Widget added = StateTreeGenerator.createWidget(100);
+        AppState addedState = new AppState("s100", "state 100");
+        Widget addedChild = StateTreeGenerator.createWidget(101);
+        addedState.addWidget(addedChild);
+        addedState.putMetadata(MultiUser.META_DATA_DIFF, new HashMap<>());
+        added.setNextState(addedState);
+
+        index.addWidget(s0, added);
+
+        assertSame(added, s0.getWidget("w100"));
+        assertSame(added, index.getWidget(s0, "w100"));
+        assertSame(addedChild, index.getWidget(addedState, "w101"));
+        assertSame(added, index.getParentWidget("s100"));
+
+        index.removeDiffMetaData();
+        assertNull(addedState.getMetadata(MultiUser.META_DATA_DIFF));
+    }
+
+    @Test
+    public void testGetSameWidget() {
+        AppState home = StateTreeGenerator.generate(10, 5);
+        Widget duplicate = StateTreeGenerator.createWidget(2);
+        duplicate.setId("w2-duplicate");
+        home.addWidget(duplicate);
+        MergeIndex index = MergeIndex.build(home);
+
+        assertSame(home.getWidget("w2"), index.getSameWidget(home, StateTreeGenerator.createWidget(2)));
+        assertNull(index.getSameWidget(home, StateTreeGenerator.createWidget(100)));
+        assertNull(index.getSameWidget(home, null));
+
+        Widget added = StateTreeGenerator.createWidget(100);
+        index.addWidget(home, added);
+        Widget otherDuplicate = StateTreeGenerator.createWidget(2);
+        index.addWidget(home, otherDuplicate);
+
+        assertSame(added, index.getSameWidget(home, StateTreeGenerator.createWidget(100)));
+        assertSame(home.getWidget("w2"), index.getSameWidget(home, StateTreeGenerator.createWidget(2)));
+    }
+
+    @Test
+    public void testGetSubtreeSize() {
+        AppState home = StateTreeGenerator.generate(100, 5);
+        AppState s0 = home.getWidget("w0").getNextState();
+        MergeIndex index = MergeIndex.build(home);
+
+        assertTrue(index.isTree());
+        assertEquals(s0.getAllIncludingChildWidgets().size(), index.getSubtreeSize(s0));
+        assertTrue(index.getSubtreeSize(s0) > 5);
+        assertEquals(0, index.getSubtreeSize(home));
+    }
+
+    @Test
+    public void testIsTree_SharedState() {
+        AppState home = StateTreeGenerator.generate(10, 5);
+        AppState s0 = home.getWidget("w0").getNextState();
+        home.getWidget("w1").setNextState(s0);
+
+        assertFalse(MergeIndex.build(home).isTree());
+    }
+}
@@ -0,0 +1,104 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.json.simple.JSONObject;
+import org.junit.Test;
+
+import plugin.MergeMetrics.Counter;
+import plugin.MergeMetrics.Phase;
+
+public class MergeMetricsTest {
+
+    @Test
+    public void testTimersAndCounters() throws Exception {
+        MergeMetrics metrics = new MergeMetrics();
+        metrics.record(Phase.MERGE, 2_000_000);
+        metrics.record(Phase.MERGE, 5_000_000);
+        MergeMetrics.Timer timer = metrics.time(Phase.WRITE);
+        try {
+            Thread.sleep(5);
+        } finally {
+            timer.stop();
+        }
+        metrics.increment(Counter.WIDGETS_CREATED);
+        metrics.add(Counter.WIDGETS_CREATED, 2);
+
+        assertEquals(2, metrics.getCount(Phase.MERGE));
+        assertEquals(7_000_000, metrics.getTotalNanos(Phase.MERGE));
+        assertEquals(5_000_000, metrics.getMaxNanos(Phase.MERGE));
+        assertTrue(metrics.getTotalNanos(Phase.WRITE) >= 5_000_000);
+        assertEquals(3, metrics.getWidgetsCreated());
+        assertEquals(7.0, metrics.getPhaseTotalMillis().get("merge"), 0.0);
+
+        metrics.reset();
+        assertEquals(0, metrics.getCount(Phase.MERGE));
+        assertEquals(0, metrics.getMaxNanos(Phase.MERGE));
+        assertEquals(0, metrics.getWidgetsCreated());
+    }
+
+    @Test
+    public void testNewChild() {
+        MergeMetrics metrics = new MergeMetrics();
+        MergeMetrics child = metrics.newChild();
+        MergeMetrics.Snapshot before = child.snapshot();
+
+        child.record(Phase.MERGE, 2_000_000);
+        child.add(Counter.WIDGETS_CREATED, 3);
+        metrics.increment(Counter.WIDGETS_CREATED);
+        JSONObject report = child.snapshot().since(before);
+
+        assertEquals(3L, report.get("widgets-created"));
+        assertEquals(4, metrics.getWidgetsCreated());
+        assertEquals(2_000_000, metrics.getTotalNanos(Phase.MERGE));
+        assertEquals(1, metrics.getCount(Phase.MERGE));
+    }
+
+    @Test
+    public void testSnapshotSince() {
+        MergeMetrics metrics = new MergeMetrics();
+        metrics.record(Phase.LOAD, 1_000_000);
+        metrics.increment(Counter.WIDGETS_DELETED);
+        MergeMetrics.Snapshot before = metrics.snapshot();
+
+        metrics.record(Phase.MERGE, 3_500_000);
+        metrics.add(Counter.WIDGETS_DELETED, 4);
+        JSONObject report = metrics.snapshot().since(before);
+
+        JSONObject phases = (JSONObject) report.get("phases-ms");
+        assertFalse(phases.containsKey("load"));
+        assertEquals(3.5, (Double) phases.get("merge"), 0.0);
+        assertEquals(4L, report.get("widgets-deleted"));
+        assertEquals(0L, report.get("widgets-created"));
+    }
+
+    @Test
+    public void testRegister() throws Exception {
+        MergeMetrics metrics = new MergeMetrics();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(MergeMetrics.OBJECT_NAME);
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+
+        assertTrue(metrics.register());
+        assertTrue(metrics.register());
+        metrics.increment(Counter.SAVES);
+        try {
+            assertEquals(1L, server.getAttribute(name, "SaveCount"));
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+}
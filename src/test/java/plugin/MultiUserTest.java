@@ -4,6 +4,7 @@
 
 package plugin;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
@@ -12,17 +13,35 @@ import static org.junit.Assert.assertTrue;
 
 import java.awt.Rectangle;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import scout.AppState;
 import scout.Widget;
@@ -33,6 +52,9 @@ import scout.Widget.WidgetVisibility;
 
 public class MultiUserTest extends MultiUser {
 
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
     public MultiUserTest() {
         super(true);
     }
@@ -379,6 +401,127 @@ public class MultiUserTest extends MultiUser {
         assertEquals(DiffType.CREATED, diff.get("btnToMiniTechInfo"));
     }
 
+    @Test
+    public void testAnnotateDiffsAgainstBaseline_SameAsSnapshot() throws Exception {
+        String initialPath = JSONStateParser.class.getClassLoader().getResource("scenario_20/state_initial.json").getPath();
+        AppState stateInitial = loadJSONModel(initialPath); 
+        AppState stateChanged = loadJSONModel(JSONStateParser.class.getClassLoader().getResource("scenario_20/state_user1.json").getPath());
+        AppState stateChangedCopy = deepCopy(stateChanged);
+
+        annotateDiffsInStates(stateInitial, stateChanged);
+        annotateDiffsAgainstBaseline(SessionBaseline.record(loadJSONModel(initialPath)), stateChangedCopy);
+
+        assertSameDiffs(stateChanged, stateChangedCopy);
+    }
+
+    @Test
+    public void testAnnotateDiffsAgainstBaseline_ChangesInSession() throws Exception {
+        AppState state = loadJSONModel(JSONStateParser.class.getClassLoader().getResource("scenario_20/state_initial.json").getPath()); 
+        SessionBaseline baseline = SessionBaseline.record(state);
+
+        annotateDiffsAgainstBaseline(baseline, state);
+        assertEquals(DiffType.NO_CHANGES, getDiffMetaDataFromState(state).get("btnToMac"));
+
+        AppState stateMac = state.getWidget("btnToMac").getNextState();
+        Widget btnToAir = stateMac.getWidget("btnToAir");
+        btnToAir.putMetadata("text", "MacBook Air M1");
+        Widget btnToMini = createWidget("btnToMini");
+        stateMac.addWidget(btnToMini);
+
+        annotateDiffsAgainstBaseline(baseline, state);
+
+        assertEquals(DiffType.NO_CHANGES, getDiffMetaDataFromState(state).get("btnToMac"));
+        Map<String, DiffType> diff = getDiffMetaDataFromState(stateMac);
+        assertFalse(DiffType.NO_CHANGES.equals(diff.get("btnToAir")));
+        assertEquals(DiffType.CREATED, diff.get("btnToMini"));
+        assertEquals(DiffType.NO_CHANGES, diff.get("btnToPro13"));
+    }
+
+    @Test
+    public void testAnnotateDiffsAgainstBaseline_LazyLoaded() throws Exception {
+        String initialPath = JSONStateParser.class.getClassLoader().getResource("scenario_20/state_initial.json").getPath();
+        String snapshotPath = tempFolder.newFile("shared-state.idx").getPath();
+        try (OutputStream out = new FileOutputStream(snapshotPath)) {
+            IndexedSnapshot.write(out, loadJSONModel(initialPath), 1);
+        }
+        IndexedSnapshot snapshot = IndexedSnapshot.open(snapshotPath);
+        AppState lazyState = snapshot.getRootState();
+        SessionBaseline lazyBaseline = SessionBaseline.record(lazyState);
+        snapshot.setLoadListener(lazyBaseline::recordLoaded);
+        AppState state = loadJSONModel(initialPath);
+        SessionBaseline baseline = SessionBaseline.record(state);
+
+        for (AppState session : new AppState[] { lazyState, state }) {
+            AppState stateMac = session.getWidget("btnToMac").getNextState();
+            stateMac.getWidget("btnToAir").putMetadata("text", "MacBook Air M1");
+            stateMac.addWidget(createWidget("btnToMini"));
+        }
+        annotateDiffsAgainstBaseline(lazyBaseline, lazyState);
+        annotateDiffsAgainstBaseline(baseline, state);
+
+        assertEquals(getDiffMetaDataFromState(state), getDiffMetaDataFromState(lazyState));
+        assertEquals(getDiffMetaDataFromState(state.getWidget("btnToMac").getNextState()), 
+            getDiffMetaDataFromState(lazyState.getWidget("btnToMac").getNextState()));
+        Widget btnToPro13 = lazyState.getWidget("btnToMac").getNextState().getWidget("btnToPro13");
+        assertTrue(LazyWidget.isUnloaded(btnToPro13));
+
+        AppState expected = loadJSONModel(initialPath);
+        applyStateChanges(expected, state);
+        AppState result = loadJSONModel(initialPath);
+        applyStateChanges(result, lazyState);
+        assertTrue(LazyWidget.isUnloaded(btnToPro13));
+        removeAllMarkedAsDeletedWidgets(expected);
+        removeAllMarkedAsDeletedWidgets(result);
+        StateTreeAssert.assertSameTree(expected, result);
+    }
+
+    @Test
+    public void testAnnotateDiffsInStates_DuplicateWidgets() {
+        AppState before = new AppState("0", "Home");
+        before.addWidget(createWidget("a1"));
+        before.addWidget(createWidget("a2"));
+        AppState after = new AppState("0", "Home");
+        after.addWidget(createWidget("b1"));
+
+        annotateDiffsInStates(before, after);
+
+        Map<String, DiffType> diff = getDiffMetaDataFromState(after);
+        assertEquals(2, diff.size());
+        assertEquals(DiffType.NO_CHANGES, diff.get("b1"));
+        assertEquals(DiffType.DELETED, diff.get("a2"));
+    }
+
+    private void assertSameDiffs(AppState expected, AppState actual) {
+        assertEquals(getDiffMetaDataFromState(expected), getDiffMetaDataFromState(actual));
+        for (Widget widget : expected.getVisibleWidgets()) {
+            AppState nextState = widget.getNextState();
+            if (nextState != null && !nextState.isHome()) {
+                assertSameDiffs(nextState, actual.getWidget(widget.getId()).getNextState());
+            }
+        }
+    }
+
+    @Test
+    public void testApplyRemoteChanges() throws Exception {
+        String initialPath = getClass().getClassLoader().getResource("scenario_20/state_initial.json").getPath();
+        String user1Path = getClass().getClassLoader().getResource("scenario_20/state_user1.json").getPath();
+        AppState sessionStart = loadJSONModel(initialPath);
+        AppState sessionState = loadJSONModel(initialPath);
+        Widget ownWidget = StateTreeGenerator.createWidget(1000);
+        sessionState.addWidget(ownWidget);
+
+        RemoteChanges changes = diffRemoteChanges(loadJSONModel(user1Path), sessionStart, null);
+        applyRemoteChanges(sessionState, changes);
+
+        AppState stateMac = sessionState.getWidget("btnToMac").getNextState();
+        assertNotNull(stateMac.getWidget("btnToMini"));
+        assertNotNull(stateMac.getWidget("btnToMini").getNextState().getWidget("btnToMiniTechInfo"));
+        assertNull(stateMac.getWidget("btnToPro13"));
+        assertNotNull(stateMac.getWidget("btnToAir"));
+        assertNotNull(sessionState.getWidget(ownWidget.getId()));
+        assertNull(sessionState.getMetadata(META_DATA_DIFF));
+    }
+
     @Test
     public void testMergeStateChanges_ChangesByOneUser() throws Exception {
         AppState stateInitial = loadJSONModel(JSONStateParser.class.getClassLoader().getResource("scenario_20/state_initial.json").getPath()); 
@@ -505,6 +648,370 @@ public class MultiUserTest extends MultiUser {
         assertNotNull(stateMiniBuy);        
     }
 
+    @Test
+    public void testApplyStateChanges_FromDeltaLog() throws Exception {
+        String initialPath = JSONStateParser.class.getClassLoader().getResource("scenario_20/state_initial.json").getPath();
+        String changedPath = JSONStateParser.class.getClassLoader().getResource("scenario_20/state_user1.json").getPath();
+        AppState stateChanged = loadJSONModel(changedPath);
+        annotateDiffsInStates(loadJSONModel(initialPath), stateChanged);
+        AppState expected = mergeStateChanges(loadJSONModel(initialPath), stateChanged);
+
+        DeltaLog deltaLog = new DeltaLog(tempFolder.newFile("delta.jsonl").getPath());
+        assertTrue(deltaLog.append(stateChanged));
+        List<AppState> records = deltaLog.readRecords();
+        assertEquals(1, records.size());
+        assertNull(records.get(0).getWidget("btnToAirTechInfo"));
+
+        AppState result = loadJSONModel(initialPath);
+        applyStateChanges(result, records.get(0));
+
+        removeAllMarkedAsDeletedWidgets(expected);
+        removeAllMarkedAsDeletedWidgets(result);
+        StateTreeAssert.assertSameTree(expected, result);
+    }
+
+    @Test
+    public void testApplyStateChanges_DeletionTimeFromDeltaLog() throws Exception {
+        AppState sessionState = createStateWithSubtree(2);
+        AppState sessionStart = deepCopy(sessionState);
+        sessionState.removeWidget("w1");
+        annotateDiffsInStates(sessionStart, sessionState);
+        DeltaLog deltaLog = new DeltaLog(tempFolder.getRoot().getPath() + "/delta.jsonl");
+        assertTrue(deltaLog.append(sessionState));
+        Thread.sleep(5);
+
+        AppState record = deltaLog.readRecords().get(0);
+        long deletedAt = (Long) record.getMetadata(DELETED_AT);
+        AppState sharedState = createStateWithSubtree(2);
+        applyStateChanges(sharedState, record);
+        applyStateChanges(sharedState, deltaLog.readRecords().get(0));
+
+        assertTrue(deletedAt < Instant.now().toEpochMilli());
+        Widget deleted = sharedState.getWidget("w1");
+        assertEquals(deletedAt, deleted.getMetadata(DELETED_AT));
+        assertEquals(deletedAt, deleted.getNextState().getWidget("w2").getMetadata(DELETED_AT));
+        assertNull(sharedState.getMetadata(DELETED_AT));
+    }
+
+    @Test
+    public void testApplyStateChanges_ParallelSameAsSequential() {
+        MultiUser parallelMerge = new MultiUser(true) {
+            @Override
+            protected boolean isParallelMerge() {
+                return true;
+            }
+
+            @Override
+            protected int getParallelMergeThreshold() {
+                return 20;
+            }
+        };
+        AppState expected = StateTreeGenerator.generate(3000, 5);
+        AppState result = StateTreeGenerator.generate(3000, 5);
+
+        applyStateChanges(expected, createChangedSession(3000, 5));
+        parallelMerge.applyStateChanges(result, createChangedSession(3000, 5));
+
+        assertTrue(result.getAllIncludingChildWidgets().size() > 3000);
+        removeAllMarkedAsDeletedWidgets(expected);
+        removeAllMarkedAsDeletedWidgets(result);
+        StateTreeAssert.assertSameTree(expected, result);
+    }
+
+    @Test
+    public void testApplyStateChanges_ParallelCountsIntoMetricsOfSave() {
+        MultiUser parallelMerge = new MultiUser(true) {
+            @Override
+            protected boolean isParallelMerge() {
+                return true;
+            }
+
+            @Override
+            protected int getParallelMergeThreshold() {
+                return 20;
+            }
+        };
+        MergeMetrics expected = new MergeMetrics();
+        MergeMetrics result = new MergeMetrics();
+
+        runWithMetrics(expected, () -> applyStateChanges(StateTreeGenerator.generate(3000, 5), createChangedSession(3000, 5)));
+        runWithMetrics(result, () -> parallelMerge.applyStateChanges(StateTreeGenerator.generate(3000, 5), createChangedSession(3000, 5)));
+
+        assertTrue(expected.getWidgetsCreated() > 0);
+        assertEquals(expected.getWidgetsCreated(), result.getWidgetsCreated());
+        assertEquals(expected.getWidgetsDeleted(), result.getWidgetsDeleted());
+    }
+
+    /**
+     * A generated tree with widgets created and deleted in many states, annotated against the unchanged tree.
+     */
+    private AppState createChangedSession(int widgetCount, int fanOut) {
+        AppState session = StateTreeGenerator.generate(widgetCount, fanOut);
+        StateTreeGenerator.changeTree(session, widgetCount);
+        annotateDiffsInStates(StateTreeGenerator.generate(widgetCount, fanOut), session);
+        return session;
+    }
+
+    @Test
+    public void testAnnotateDiffs_ParallelSameAsSequential() {
+        MultiUser parallelDiff = createParallelDiff();
+        AppState expected = StateTreeGenerator.generate(3000, 5);
+        AppState result = StateTreeGenerator.generate(3000, 5);
+        SessionBaseline expectedBaseline = SessionBaseline.record(expected);
+        SessionBaseline resultBaseline = SessionBaseline.record(result);
+        StateTreeGenerator.changeTree(expected, 3000);
+        StateTreeGenerator.changeTree(result, 3000);
+
+        annotateDiffsAgainstBaseline(expectedBaseline, expected);
+        parallelDiff.annotateDiffsAgainstBaseline(resultBaseline, result);
+        assertSameDiffs(expected, result);
+
+        annotateDiffsInStates(StateTreeGenerator.generate(3000, 5), expected);
+        parallelDiff.annotateDiffsInStates(StateTreeGenerator.generate(3000, 5), result);
+        assertSameDiffs(expected, result);
+    }
+
+    @Test
+    public void testAnnotateDiffs_ParallelWithSharedState() {
+        AppState expected = StateTreeGenerator.generate(100, 5);
+        AppState result = StateTreeGenerator.generate(100, 5);
+        for (AppState tree : new AppState[] { expected, result }) {
+            tree.getWidget("w1").setNextState(tree.getWidget("w0").getNextState());
+            StateTreeGenerator.changeTree(tree, 100);
+        }
+
+        annotateDiffsInStates(StateTreeGenerator.generate(100, 5), expected);
+        createParallelDiff().annotateDiffsInStates(StateTreeGenerator.generate(100, 5), result);
+
+        assertSameDiffs(expected, result);
+    }
+
+    private static MultiUser createParallelDiff() {
+        return new MultiUser(true) {
+            @Override
+            protected boolean isParallelDiff() {
+                return true;
+            }
+        };
+    }
+
+    @Test
+    public void testMergeIntoSharedModel_ConcurrentSavers() throws Exception {
+        String sharedModelFilePath = tempFolder.getRoot().getPath() + "/shared-state.json";
+        try (Writer writer = new FileWriter(sharedModelFilePath)) {
+            JSONStateWriter.write(writer, new AppState("0", "Home"));
+        }
+
+        int savers = 8;
+        int savesPerSaver = 5;
+        ExecutorService executor = Executors.newFixedThreadPool(savers);
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (int i = 0; i < savers * savesPerSaver; i++) {
+            int n = i;
+            results.add(executor.submit(() -> {
+                AppState sessionState = new AppState("0", "Home");
+                sessionState.addWidget(StateTreeGenerator.createWidget(n));
+                annotateDiffsInStates(null, sessionState);
+                return mergeIntoSharedModel(sharedModelFilePath, sessionState);
+            }));
+        }
+        for (Future<Boolean> result : results) {
+            assertTrue(result.get(60, TimeUnit.SECONDS));
+        }
+        executor.shutdown();
+
+        AppState sharedState = JSONStateReader.readStateModel(sharedModelFilePath);
+        assertEquals(savers * savesPerSaver, sharedState.getVisibleWidgets().size());
+    }
+
+    @Test
+    public void testMergeIntoSharedModel_ConflictWithCreatedSubtree() throws Exception {
+        String sharedModelFilePath = tempFolder.getRoot().getPath() + "/shared-state.json";
+        try (Writer writer = new FileWriter(sharedModelFilePath)) {
+            JSONStateWriter.write(writer, new AppState("0", "Home"));
+        }
+        AppState otherState = createStateWithSubtree(2);
+        AppState sessionState = createStateWithSubtree(3);
+        annotateDiffsInStates(null, sessionState);
+
+        AtomicBoolean isOtherSaved = new AtomicBoolean(false);
+        MultiUser multiUser = new MultiUser(true) {
+            @Override
+            protected void applyStateChanges(AppState sharedState, AppState sessionState) {
+                super.applyStateChanges(sharedState, sessionState);
+                // Another tester saves the same widget before the first attempt takes the lock
+                if (isOtherSaved.compareAndSet(false, true)) {
+                    try (Writer writer = new FileWriter(sharedModelFilePath)) {
+                        JSONStateWriter.write(writer, otherState, 1);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            }
+        };
+
+        assertTrue(multiUser.mergeIntoSharedModel(sharedModelFilePath, sessionState));
+
+        AppState sharedState = JSONStateReader.readStateModel(sharedModelFilePath);
+        assertEquals(2, JSONStateReader.readModelVersion(sharedModelFilePath));
+        assertEquals(1, sharedState.getVisibleWidgets().size());
+        AppState nextState = sharedState.getVisibleWidgets().get(0).getNextState();
+        assertEquals(2, nextState.getVisibleWidgets().size());
+        assertNotNull(nextState.getWidget("w3"));
+        assertNotNull(getDiffMetaDataFromState(sessionState.getWidget("w1").getNextState()).get("w3"));
+    }
+
+    /**
+     * @return home state with widget w1, which leads to a state with the given widget
+     */
+    private AppState createStateWithSubtree(int widgetNumber) {
+        AppState nextState = new AppState("s1", "state 1");
+        nextState.addWidget(StateTreeGenerator.createWidget(widgetNumber));
+        Widget widget = StateTreeGenerator.createWidget(1);
+        widget.setNextState(nextState);
+        AppState home = new AppState("0", "Home");
+        home.addWidget(widget);
+        return home;
+    }
+
+    @Test
+    public void testMergeIntoSharedModel_SkipsFoldedDeltaLog() throws Exception {
+        String sharedModelFilePath = tempFolder.getRoot().getPath() + "/shared-state.json";
+        long deletedAt = Instant.now().minus(1, ChronoUnit.HOURS).toEpochMilli();
+        AppState sharedState = new AppState("0", "Home");
+        sharedState.addWidget(StateTreeGenerator.createWidget(1));
+        sharedState.getWidget("w1").putMetadata(DELETED_AT, deletedAt);
+        try (Writer writer = new FileWriter(sharedModelFilePath)) {
+            JSONStateWriter.write(writer, sharedState, 2);
+        }
+
+        // Folded into version 2, but the delete failed
+        DeltaLog deltaLog = new DeltaLog(tempFolder.getRoot().getPath() + "/shared-state.delta.jsonl");
+        AppState deletion = new AppState("0", "Home");
+        Map<String, DiffType> diff = new HashMap<>();
+        diff.put("w1", DiffType.DELETED);
+        deletion.putMetadata(META_DATA_DIFF, diff);
+        assertTrue(deltaLog.append(deletion));
+        assertTrue(deltaLog.moveToFold(2));
+        // Moved aside for version 3, but the model was not written
+        AppState creation = new AppState("0", "Home");
+        creation.addWidget(StateTreeGenerator.createWidget(2));
+        annotateDiffsInStates(null, creation);
+        assertTrue(deltaLog.append(creation));
+        assertTrue(deltaLog.moveToFold(3));
+
+        AppState sessionState = new AppState("0", "Home");
+        sessionState.addWidget(StateTreeGenerator.createWidget(3));
+        annotateDiffsInStates(null, sessionState);
+        assertTrue(mergeIntoSharedModel(sharedModelFilePath, sessionState));
+
+        AppState result = JSONStateReader.readStateModel(sharedModelFilePath);
+        assertEquals(3, JSONStateReader.readModelVersion(sharedModelFilePath));
+        assertEquals(deletedAt, result.getWidget("w1").getMetadata(DELETED_AT));
+        assertNotNull(result.getWidget("w2"));
+        assertNotNull(result.getWidget("w3"));
+        assertTrue(deltaLog.getUnfoldedLogs(0).isEmpty());
+    }
+
+    @Test
+    public void testMergeIntoSharedModel_UnreadableVersion() throws Exception {
+        String sharedModelFilePath = tempFolder.getRoot().getPath() + "/shared-state.json";
+        try (Writer writer = new FileWriter(sharedModelFilePath)) {
+            writer.write("{\"model-version\":");
+        }
+        AppState sessionState = new AppState("0", "Home");
+        sessionState.addWidget(StateTreeGenerator.createWidget(1));
+        annotateDiffsInStates(null, sessionState);
+
+        assertFalse(mergeIntoSharedModel(sharedModelFilePath, sessionState));
+        assertEquals("{\"model-version\":", new String(Files.readAllBytes(Paths.get(sharedModelFilePath)), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testLoadState_CreatesMissingModel() throws Exception {
+        String sharedModelFilePath = tempFolder.getRoot().getPath() + "/shared-state.json";
+
+        AppState state = createMultiUser(sharedModelFilePath).loadState();
+
+        assertEquals("Home", state.getBookmark());
+        assertEquals(0, JSONStateReader.readStateModel(sharedModelFilePath).getAllWidgets().size());
+    }
+
+    @Test
+    public void testLoadState_UnreadableModelIsNotOverwritten() throws Exception {
+        String sharedModelFilePath = tempFolder.getRoot().getPath() + "/shared-state.json";
+        try (Writer writer = new FileWriter(sharedModelFilePath)) {
+            writer.write("{\"model-version\":");
+        }
+
+        AppState state = createMultiUser(sharedModelFilePath).loadState();
+
+        assertEquals(0, state.getAllWidgets().size());
+        assertEquals("{\"model-version\":", new String(Files.readAllBytes(Paths.get(sharedModelFilePath)), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testMergeIntoSharedModel_CorruptDeltaLogRecord() throws Exception {
+        String sharedModelFilePath = tempFolder.getRoot().getPath() + "/shared-state.json";
+        AppState sharedState = new AppState("0", "Home");
+        sharedState.addWidget(StateTreeGenerator.createWidget(1));
+        try (Writer writer = new FileWriter(sharedModelFilePath)) {
+            JSONStateWriter.write(writer, sharedState, 1);
+        }
+        byte[] sharedModel = Files.readAllBytes(Paths.get(sharedModelFilePath));
+        DeltaLog deltaLog = new DeltaLog(tempFolder.getRoot().getPath() + "/shared-state.delta.jsonl");
+        AppState creation = new AppState("0", "Home");
+        creation.addWidget(StateTreeGenerator.createWidget(2));
+        annotateDiffsInStates(null, creation);
+        assertTrue(deltaLog.append(creation));
+        try (Writer writer = new FileWriter(deltaLog.getFilePath(), true)) {
+            writer.write("{\"bookmark\":\n");
+        }
+        assertTrue(deltaLog.append(creation));
+        byte[] records = Files.readAllBytes(Paths.get(deltaLog.getFilePath()));
+
+        AppState sessionState = new AppState("0", "Home");
+        sessionState.addWidget(StateTreeGenerator.createWidget(3));
+        annotateDiffsInStates(null, sessionState);
+        assertFalse(mergeIntoSharedModel(sharedModelFilePath, sessionState));
+        createMultiUser(sharedModelFilePath).loadState();
+
+        assertArrayEquals(sharedModel, Files.readAllBytes(Paths.get(sharedModelFilePath)));
+        assertArrayEquals(records, Files.readAllBytes(Paths.get(deltaLog.getFilePath())));
+    }
+
+    private MultiUser createMultiUser(String sharedModelFilePath) {
+        return new MultiUser(true) {
+            @Override
+            protected String getSharedModelFilePath() {
+                return sharedModelFilePath;
+            }
+        };
+    }
+
+    @Test
+    public void testMergeIntoSharedModel_Metrics() throws Exception {
+        String sharedModelFilePath = tempFolder.getRoot().getPath() + "/shared-state.json";
+        try (Writer writer = new FileWriter(sharedModelFilePath)) {
+            JSONStateWriter.write(writer, new AppState("0", "Home"));
+        }
+        AppState sessionState = StateTreeGenerator.generate(30, 10);
+        annotateDiffsInStates(null, sessionState);
+        MergeMetrics.Snapshot before = getMergeMetrics().snapshot();
+
+        assertTrue(mergeIntoSharedModel(sharedModelFilePath, sessionState));
+
+        JSONObject report = getMergeMetrics().snapshot().since(before);
+        JSONObject phases = (JSONObject) report.get("phases-ms");
+        assertTrue(phases.containsKey("load"));
+        assertTrue(phases.containsKey("merge"));
+        assertTrue(phases.containsKey("lock-wait"));
+        assertTrue(phases.containsKey("write"));
+        assertFalse(phases.containsKey("diff"));
+        assertEquals(10L, report.get("widgets-created"));
+        assertEquals(0L, report.get("widgets-deleted"));
+    }
+
     @Test
     public void testMarkAsDeleted() {
         Widget w1 = createWidget("1");
@@ -550,6 +1057,28 @@ public class MultiUserTest extends MultiUser {
         assertEquals(1, results.size());
         assertEquals("1", results.get(0).getId());
     }
+
+    @Test
+    public void testRemoveAllMarkedAsDeletedWidgets_SharedState() {
+        AppState home = new AppState("0", "Home");
+        AppState shared = new AppState("1", "shared");
+        Widget w1 = createWidget("1");
+        Widget w2 = createWidget("2");
+        w1.setNextState(shared);
+        w2.setNextState(shared);
+        home.addWidget(w1);
+        home.addWidget(w2);
+
+        Widget w3 = createWidget("3");
+        Widget w4 = createWidget("4");
+        markAsDeleted(w3);
+        shared.addWidget(w3);
+        shared.addWidget(w4);
+
+        assertEquals(1, removeAllMarkedAsDeletedWidgets(home));
+        assertEquals(1, shared.getVisibleWidgets().size());
+        assertEquals("4", shared.getVisibleWidgets().get(0).getId());
+    }
     
     private Widget createWidget(String id) {
         Widget widget = new Widget();
@@ -0,0 +1,65 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import scout.AppState;
+
+/**
+ * Measures {@link JSONStateParser#parseCompleteAppState(JSONObject)} over generated
+ * state trees. With the widget index the time per widget should stay flat
+ * from 1k to 100k widgets.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseStateBenchmark {
+
+    @Param({ "1000", "10000", "100000" })
+    public int widgets;
+
+    @Param({ "10" })
+    public int fanOut;
+
+    private JSONObject jsonModel;
+
+    @Setup
+    public void setup() throws Exception {
+        AppState state = StateTreeGenerator.generate(widgets, fanOut);
+        String json = JSONStateParser.appStateAsJSONObject(state).toJSONString();
+        jsonModel = (JSONObject) new JSONParser().parse(json);
+    }
+
+    @Benchmark
+    public AppState parseCompleteAppState() {
+        return JSONStateParser.parseCompleteAppState(jsonModel);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+            .include(ParseStateBenchmark.class.getSimpleName())
+            .build()).run();
+    }
+}
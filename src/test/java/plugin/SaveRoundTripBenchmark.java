@@ -0,0 +1,152 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import scout.AppState;
+import scout.StateController;
+
+/**
+ * Throughput of saving a session into the shared model and loading it again, for each model format.
+ *
+ * A round-trip runs what {@link MultiUser#saveState()} does for the shared model in the "full"
+ * save mode: annotate the session, then load, merge and write the shared model under the lock.
+ * It ends with {@link MultiUser#loadState()}. Only the session file and the product properties
+ * are not written, so that nothing is written to the data folder of the working directory.
+ * The shared model is written anew before every round-trip.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SaveRoundTripBenchmark {
+
+    @Param({ "1000", "10000" })
+    public int widgets;
+
+    @Param({ "10", "50" })
+    public int fanOut;
+
+    @Param({ "4", "8" })
+    public int depth;
+
+    @Param({ MultiUser.MODEL_FORMAT_JSON, MultiUser.MODEL_FORMAT_BINARY, MultiUser.MODEL_FORMAT_STORE })
+    public String modelFormat;
+
+    private Path folder;
+    private String sharedModelFilePath;
+    private MultiUser multiUser;
+    private AppState sharedState;
+    private AppState sessionState;
+
+    @Setup
+    public void setup() throws IOException {
+        StateController.setSystemProperty("multiUserPlugin.logLevel", "warn");
+        folder = Files.createTempDirectory("save-benchmark");
+        sharedModelFilePath = folder.resolve(getModelFileName()).toString();
+        multiUser = new MultiUser(true) {
+            @Override
+            protected String getSharedModelFilePath() {
+                return sharedModelFilePath;
+            }
+        };
+
+        sharedState = StateTreeGenerator.generate(widgets, fanOut, depth);
+        sessionState = StateTreeGenerator.generate(widgets, fanOut, depth);
+        StateTreeGenerator.changeTree(sessionState, widgets);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(folder)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private String getModelFileName() {
+        switch (modelFormat) {
+            case MultiUser.MODEL_FORMAT_BINARY:
+                return "shared-state.bin";
+            case MultiUser.MODEL_FORMAT_STORE:
+                return "shared-state.store";
+            default:
+                return "shared-state.json";
+        }
+    }
+
+    /**
+     * The shared model before and a fresh copy of the session for every round-trip.
+     */
+    @State(Scope.Thread)
+    public static class Session {
+        private AppState sessionStart;
+        private AppState sessionState;
+
+        @Setup(Level.Invocation)
+        public void prepare(SaveRoundTripBenchmark benchmark) throws IOException {
+            try (OutputStream out = new FileOutputStream(benchmark.sharedModelFilePath)) {
+                switch (benchmark.modelFormat) {
+                    case MultiUser.MODEL_FORMAT_BINARY:
+                        BinaryStateFormat.write(out, benchmark.sharedState, 1);
+                        break;
+                    case MultiUser.MODEL_FORMAT_STORE:
+                        new WidgetStore(benchmark.folder.resolve("widget-store")).writeSnapshot(out, benchmark.sharedState, 1);
+                        break;
+                    default:
+                        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+                        JSONStateWriter.write(writer, benchmark.sharedState, 1);
+                }
+            }
+            sessionStart = AppStateCloner.copy(benchmark.sharedState);
+            sessionState = AppStateCloner.copy(benchmark.sessionState);
+        }
+    }
+
+    @Benchmark
+    public AppState saveAndLoad(Session session) {
+        multiUser.annotateDiffsInStates(session.sessionStart, session.sessionState);
+        if (!multiUser.mergeIntoSharedModel(sharedModelFilePath, session.sessionState)) {
+            throw new IllegalStateException("Merge into shared model failed");
+        }
+        return multiUser.loadState();
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+            .include(SaveRoundTripBenchmark.class.getSimpleName())
+            .addProfiler("gc")
+            .build()).run();
+    }
+}
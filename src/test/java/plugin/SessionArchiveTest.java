@@ -0,0 +1,108 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static plugin.StateTreeAssert.assertSameTree;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import scout.AppState;
+
+public class SessionArchiveTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void testArchive_SharesChunksOfSimilarSessions() throws Exception {
+        SessionArchive archive = new SessionArchive(tempFolder.getRoot().toPath());
+        AppState first = StateTreeGenerator.generate(2000, 10);
+        AppState second = StateTreeGenerator.generate(2000, 10);
+        second.getWidget("w5").getNextState().addWidget(StateTreeGenerator.createWidget(5000));
+
+        int firstChunks = archive.archive("session-state-1.json", first);
+        long firstBytes = archive.getStoredBytes();
+        int secondChunks = archive.archive("session-state-2.json", second);
+
+        assertTrue(firstChunks > 10);
+        assertTrue(secondChunks <= 3);
+        assertTrue(archive.getStoredBytes() < firstBytes * 5 / 4);
+        assertEquals(Arrays.asList("session-state-1.json", "session-state-2.json"), archive.listSessions());
+        assertSameTree(first, archive.rebuildState("session-state-1.json"));
+        assertSameTree(second, archive.rebuildState("session-state-2.json"));
+    }
+
+    @Test
+    public void testPrune() throws Exception {
+        SessionArchive archive = new SessionArchive(tempFolder.getRoot().toPath());
+        byte[] removedContent = randomContent(1, 100_000);
+        byte[] keptContent = randomContent(2, 100_000);
+        archive.archive("session-state-1.json", removedContent);
+        archive.archive("session-state-2.json", keptContent);
+        archive.archive("session-state-3.json", keptContent);
+        long storedBytes = archive.getStoredBytes();
+
+        assertEquals(1, archive.prune(2, 0));
+
+        assertEquals(Arrays.asList("session-state-2.json", "session-state-3.json"), archive.listSessions());
+        assertTrue(archive.getStoredBytes() < storedBytes * 2 / 3);
+        assertArrayEquals(keptContent, archive.rebuild("session-state-2.json"));
+        assertEquals(0, archive.prune(0, 1));
+    }
+
+    @Test
+    public void testImportFile() throws Exception {
+        SessionArchive archive = new SessionArchive(tempFolder.getRoot().toPath());
+        Path sessionFile = tempFolder.getRoot().toPath().resolve("session-state-1.json");
+        byte[] content = randomContent(3, 20_000);
+        Files.write(sessionFile, content);
+
+        assertTrue(archive.importFile(sessionFile));
+
+        assertFalse(Files.exists(sessionFile));
+        Path restored = tempFolder.getRoot().toPath().resolve("restored.json");
+        archive.restore("session-state-1.json", restored);
+        assertArrayEquals(content, Files.readAllBytes(restored));
+    }
+
+    @Test
+    public void testImportFile_AlreadyImported() throws Exception {
+        SessionArchive archive = new SessionArchive(tempFolder.getRoot().toPath());
+        Path sessionFile = tempFolder.getRoot().toPath().resolve("session-state-1.json");
+
+        assertFalse(archive.importFile(sessionFile));
+        assertTrue(archive.listSessions().isEmpty());
+    }
+
+    @Test(expected = IOException.class)
+    public void testRebuild_MissingChunk() throws Exception {
+        SessionArchive archive = new SessionArchive(tempFolder.getRoot().toPath());
+        archive.archive("session-state-1.json", randomContent(4, 10_000));
+        try (Stream<Path> files = Files.walk(archive.getFolder().resolve("chunks"))) {
+            Files.delete(files.filter(Files::isRegularFile).findFirst().get());
+        }
+
+        archive.rebuild("session-state-1.json");
+    }
+
+    private static byte[] randomContent(long seed, int length) {
+        byte[] content = new byte[length];
+        new Random(seed).nextBytes(content);
+        return content;
+    }
+}
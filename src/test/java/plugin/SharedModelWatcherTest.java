@@ -0,0 +1,43 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SharedModelWatcherTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void testWatch() throws Exception {
+        Semaphore changes = new Semaphore(0);
+        try (SharedModelWatcher watcher = new SharedModelWatcher(tempFolder.getRoot().toPath(), 
+                Collections.singleton("shared-state.json"), 100, changes::release)) {
+            watcher.start();
+
+            Files.write(tempFolder.getRoot().toPath().resolve("other.json"), new byte[] { 1 });
+            assertFalse(changes.tryAcquire(1, TimeUnit.SECONDS));
+
+            // Written in several steps like a replaced model, reported once
+            Files.write(tempFolder.getRoot().toPath().resolve("shared-state.json"), new byte[] { 1 });
+            Files.write(tempFolder.getRoot().toPath().resolve("shared-state.json"), new byte[] { 1, 2 });
+            assertTrue(changes.tryAcquire(10, TimeUnit.SECONDS));
+            assertFalse(changes.tryAcquire(1, TimeUnit.SECONDS));
+            assertEquals(0, changes.availablePermits());
+        }
+    }
+}
@@ -0,0 +1,92 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import scout.AppState;
+
+/**
+ * Compares loading the shared model from JSON with loading it from a
+ * {@link BinaryStateFormat} snapshot. The file sizes of both formats are
+ * printed during setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SnapshotFormatBenchmark {
+
+    @Param({ "1000", "10000", "100000" })
+    public int widgets;
+
+    @Param({ "10" })
+    public int fanOut;
+
+    private File jsonFile;
+    private File binaryFile;
+
+    @Setup
+    public void setup() throws Exception {
+        AppState state = StateTreeGenerator.generate(widgets, fanOut);
+
+        jsonFile = File.createTempFile("shared-state", ".json");
+        try (Writer writer = new BufferedWriter(new FileWriter(jsonFile))) {
+            JSONStateWriter.write(writer, state, 1);
+        }
+        binaryFile = File.createTempFile("shared-state", ".bin");
+        try (OutputStream out = new FileOutputStream(binaryFile)) {
+            BinaryStateFormat.write(out, state, 1);
+        }
+
+        System.out.printf("%n%d widgets: JSON %d bytes, binary %d bytes%n", 
+            widgets, jsonFile.length(), binaryFile.length());
+    }
+
+    @TearDown
+    public void tearDown() {
+        jsonFile.delete();
+        binaryFile.delete();
+    }
+
+    @Benchmark
+    public AppState loadJSON() throws Exception {
+        return JSONStateReader.readStateModel(jsonFile.getPath());
+    }
+
+    @Benchmark
+    public AppState loadBinary() throws Exception {
+        return BinaryStateFormat.readStateModel(binaryFile.getPath());
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+            .include(SnapshotFormatBenchmark.class.getSimpleName())
+            .build()).run();
+    }
+}
@@ -0,0 +1,92 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import scout.AppState;
+import scout.Widget;
+
+/**
+ * Assertions that compare two state trees by value.
+ */
+public class StateTreeAssert {
+
+    public static void assertSameTree(AppState expected, AppState actual) {
+        assertSameTree(expected, actual, new IdentityHashMap<>());
+    }
+
+    private static void assertSameTree(AppState expected, AppState actual, Map<AppState, AppState> visited) {
+        if (expected == null) {
+            assertNull(actual);
+            return;
+        }
+        assertNotNull("Missing state with id " + expected.getId(), actual);
+        if (visited.put(expected, actual) != null) {
+            return;
+        }
+
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getBookmark(), actual.getBookmark());
+
+        List<Widget> expectedWidgets = expected.getVisibleWidgets();
+        List<Widget> actualWidgets = actual.getVisibleWidgets();
+        assertEquals("Visible widgets of state " + expected.getId(), expectedWidgets.size(), actualWidgets.size());
+
+        for (int i = 0; i < expectedWidgets.size(); i++) {
+            Widget expectedWidget = expectedWidgets.get(i);
+            Widget actualWidget = actualWidgets.get(i);
+            assertSameWidget(expectedWidget, actualWidget);
+
+            AppState expectedNext = expectedWidget.getNextState();
+            AppState actualNext = actualWidget.getNextState();
+            if (expectedNext != null && expectedNext.isHome()) {
+                assertEquals(expectedNext.getId(), actualNext.getId());
+                continue;
+            }
+            assertSameTree(expectedNext, actualNext, visited);
+        }
+    }
+
+    public static void assertSameWidget(Widget expected, Widget actual) {
+        assertEquals(expected.getId(), actual.getId());
+        String id = expected.getId();
+        assertEquals(id, expected.getText(), actual.getText());
+        assertEquals(id, expected.getWidgetType(), actual.getWidgetType());
+        assertEquals(id, expected.getWidgetSubtype(), actual.getWidgetSubtype());
+        assertEquals(id, expected.getWidgetStatus(), actual.getWidgetStatus());
+        assertEquals(id, expected.getWidgetVisibility(), actual.getWidgetVisibility());
+        assertEquals(id, expected.getWeight(), actual.getWeight(), 0.0);
+        assertEquals(id, expected.getCreatedDate(), actual.getCreatedDate());
+        assertEquals(id, expected.getResolvedDate(), actual.getResolvedDate());
+        assertEquals(id, expected.getReportedDate(), actual.getReportedDate());
+        assertEquals(id, expected.getCreatedBy(), actual.getCreatedBy());
+        assertEquals(id, expected.getCreatedByPlugin(), actual.getCreatedByPlugin());
+        assertEquals(id, expected.getComment(), actual.getComment());
+        assertEquals(id, expected.getReportedText(), actual.getReportedText());
+        assertEquals(id, expected.getReportedBy(), actual.getReportedBy());
+        assertEquals(id, expected.getLocationArea(), actual.getLocationArea());
+        assertEquals(id, metadataAsStrings(expected), metadataAsStrings(actual));
+    }
+
+    private static Map<String, String> metadataAsStrings(Widget widget) {
+        Map<String, String> metadata = new TreeMap<>();
+        for (String key : widget.getMetadataKeys()) {
+            Object value = widget.getMetadata(key);
+            if (value instanceof Widget) {
+                value = "widget:" + ((Widget) value).getId();
+            }
+            metadata.put(key, String.valueOf(value));
+        }
+        return metadata;
+    }
+}
@@ -0,0 +1,139 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import java.awt.Rectangle;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+
+import scout.AppState;
+import scout.Widget;
+import scout.Widget.WidgetStatus;
+import scout.Widget.WidgetSubtype;
+import scout.Widget.WidgetType;
+import scout.Widget.WidgetVisibility;
+
+/**
+ * Generates synthetic state trees of a given size for benchmarks.
+ */
+public class StateTreeGenerator {
+
+    private static final String[] TAGS = { "A", "BUTTON", "DIV", "SPAN", "INPUT" };
+    private static final String[] CLASSES = {
+        "v-btn v-btn--flat v-btn--router v-btn--text theme--dark v-size--default",
+        "v-toolbar__title",
+        "v-list-item v-list-item--link theme--light",
+        "nav-link active",
+    };
+
+    /**
+     * Creates a tree with the home state as root, where every state has
+     * {@code fanOut} visible widgets and every widget leads to a new state
+     * until {@code widgetCount} widgets are created (breadth-first).
+     */
+    public static AppState generate(int widgetCount, int fanOut) {
+        AppState home = new AppState("0", "Home");
+        Deque<AppState> open = new ArrayDeque<>();
+        open.add(home);
+
+        int created = 0;
+        while (created < widgetCount) {
+            AppState state = open.poll();
+            for (int i = 0; i < fanOut && created < widgetCount; i++) {
+                Widget widget = createWidget(created);
+                AppState nextState = new AppState("s" + created, "state " + created);
+                widget.setNextState(nextState);
+                state.addWidget(widget);
+                open.add(nextState);
+                created++;
+            }
+        }
+
+        return home;
+    }
+
+    /**
+     * Creates a tree with the home state as root and at most {@code depth} levels of
+     * widgets below it, where every state has up to {@code fanOut} visible widgets.
+     * The states are filled depth-first, so the tree reaches the given depth
+     * even if it holds fewer widgets than the complete tree.
+     */
+    public static AppState generate(int widgetCount, int fanOut, int depth) {
+        long capacity = 0;
+        long levelSize = 1;
+        for (int level = 1; level <= depth && capacity < widgetCount; level++) {
+            levelSize *= fanOut;
+            capacity += levelSize;
+        }
+        if (capacity < widgetCount) {
+            throw new IllegalArgumentException("A tree with fan-out " + fanOut + " and depth " + depth 
+                + " holds only " + capacity + " widgets");
+        }
+
+        AppState home = new AppState("0", "Home");
+        fill(home, 1, 0, widgetCount, fanOut, depth);
+        return home;
+    }
+
+    private static int fill(AppState state, int level, int created, int widgetCount, int fanOut, int depth) {
+        for (int i = 0; i < fanOut && created < widgetCount; i++) {
+            Widget widget = createWidget(created);
+            AppState nextState = new AppState("s" + created, "state " + created);
+            widget.setNextState(nextState);
+            state.addWidget(widget);
+            created++;
+            if (level < depth) {
+                created = fill(nextState, level + 1, created, widgetCount, fanOut, depth);
+            }
+        }
+        return created;
+    }
+
+    /**
+     * Changes a generated tree like a test session: adds a widget to every 7th state
+     * and removes the first widget without further widgets from every 14th state,
+     * so the deletions do not cut off subtrees.
+     * @param firstNewWidget number of the first added widget, e.g. the widget count of the tree
+     */
+    public static void changeTree(AppState tree, int firstNewWidget) {
+        List<AppState> states = new ArrayList<>();
+        for (Widget widget : tree.getAllIncludingChildWidgets()) {
+            states.add(widget.getNextState());
+        }
+        for (int i = 0; i < states.size(); i += 7) {
+            AppState state = states.get(i);
+            if (i % 2 == 0) {
+                for (Widget widget : state.getVisibleWidgets()) {
+                    if (widget.getNextState() == null || widget.getNextState().getVisibleWidgets().isEmpty()) {
+                        state.removeWidget(widget);
+                        break;
+                    }
+                }
+            }
+            state.addWidget(createWidget(firstNewWidget + i));
+        }
+    }
+
+    public static Widget createWidget(int n) {
+        Widget widget = new Widget();
+        widget.setId("w" + n);
+        widget.setWidgetStatus(WidgetStatus.LOCATED);
+        widget.setCreatedBy("Tester " + (n % 5));
+        widget.setCreatedDate(new Date(1623332401000L + n));
+        widget.setWidgetType(WidgetType.ACTION);
+        widget.setWidgetSubtype(WidgetSubtype.LEFT_CLICK_ACTION);
+        widget.setWidgetVisibility(WidgetVisibility.VISIBLE);
+        widget.setLocationArea(new Rectangle(n % 1024, n % 768, 120, 36));
+        widget.putMetadata("xpath", "/html[1]/body[1]/div[1]/div[" + (n % 50) + "]/a[" + n + "]");
+        widget.putMetadata("href", "https://mydomain.de/page/" + (n % 200));
+        widget.putMetadata("text", "Link " + n);
+        widget.putMetadata("tag", TAGS[n % TAGS.length]);
+        widget.putMetadata("class", CLASSES[n % CLASSES.length]);
+        return widget;
+    }
+}
@@ -0,0 +1,67 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import scout.AppState;
+import scout.Widget;
+
+public class TombstoneCompactorTest {
+
+    private static final long NOW = 1621234567890L;
+
+    @Test
+    public void testCompact_RemovesExpiredWithSubtree() {
+        AppState home = new AppState("0", "Home");
+        AppState next = new AppState("1", "next");
+        Widget expired = createWidget(1, NOW - TimeUnit.DAYS.toMillis(31));
+        expired.setNextState(next);
+        next.addWidget(createWidget(2, 0));
+        next.addWidget(createWidget(3, 0));
+        home.addWidget(expired);
+        home.addWidget(createWidget(4, 0));
+
+        TombstoneCompactor.Result result = new TombstoneCompactor(30).compact(home, NOW);
+
+        assertEquals(1, result.getTombstonesRemoved());
+        assertEquals(3, result.getWidgetsReclaimed());
+        assertEquals(1, home.getVisibleWidgets().size());
+        assertNull(home.getWidget("w1"));
+    }
+
+    @Test
+    public void testCompact_KeepsRecentAndSharedStates() {
+        AppState home = new AppState("0", "Home");
+        AppState shared = new AppState("1", "shared");
+        Widget expired = createWidget(1, NOW - TimeUnit.DAYS.toMillis(31));
+        Widget other = createWidget(2, 0);
+        expired.setNextState(shared);
+        other.setNextState(shared);
+        shared.addWidget(createWidget(3, NOW - TimeUnit.DAYS.toMillis(1)));
+        home.addWidget(expired);
+        home.addWidget(other);
+
+        TombstoneCompactor.Result result = new TombstoneCompactor(30).compact(home, NOW);
+
+        assertEquals(1, result.getTombstonesRemoved());
+        assertEquals(1, result.getWidgetsReclaimed());
+        assertNotNull(shared.getWidget("w3"));
+    }
+
+    private static Widget createWidget(int n, long deletedAt) {
+        Widget widget = StateTreeGenerator.createWidget(n);
+        if (deletedAt > 0) {
+            widget.putMetadata(MultiUser.DELETED_AT, deletedAt);
+        }
+        return widget;
+    }
+}
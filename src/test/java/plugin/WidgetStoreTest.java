@@ -0,0 +1,125 @@
+// SPDX-FileCopyrightText: 2021 Andreas Bauer
+//
+// SPDX-License-Identifier: MIT
+
+package plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static plugin.StateTreeAssert.assertSameTree;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import plugin.MultiUser.DiffType;
+import scout.AppState;
+import scout.Widget;
+
+public class WidgetStoreTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void testWriteSnapshot_ReadBack() throws Exception {
+        AppState state = StateTreeGenerator.generate(1000, 10);
+        Widget widget = state.getVisibleWidgets().get(0);
+        widget.putMetadata(MultiUser.DELETED_AT, 1621234567890L);
+        widget.putMetadata("matching_widget", StateTreeGenerator.createWidget(5000));
+        Map<String, DiffType> diff = new HashMap<>();
+        diff.put(widget.getId(), DiffType.CREATED);
+        state.putMetadata(MultiUser.META_DATA_DIFF, diff);
+        File file = writeSnapshot(new WidgetStore(getStoreFolder()), state, 4711);
+
+        AppState result = new WidgetStore(getStoreFolder()).readSnapshot(file.getPath());
+
+        assertSameTree(state, result);
+        assertEquals(diff, result.getMetadata(MultiUser.META_DATA_DIFF));
+        assertEquals(4711, WidgetStore.readModelVersion(file.getPath()));
+    }
+
+    @Test
+    public void testWriteSnapshot_OnlyNewWidgetsAreWritten() throws Exception {
+        WidgetStore store = new WidgetStore(getStoreFolder());
+        AppState state = StateTreeGenerator.generate(1000, 10);
+        AppState before = StateTreeGenerator.generate(1000, 10);
+        File first = writeSnapshot(store, state, 1);
+        int widgetCount = store.getLastWrittenCount();
+        long packSize = getPackSize();
+
+        state.getWidget("w5").setText("changed");
+        File second = writeSnapshot(store, state, 2);
+
+        assertEquals(1, store.getLastWrittenCount());
+        assertEquals(widgetCount - 1, store.getLastReusedCount());
+        assertTrue(getPackSize() - packSize < packSize / 100);
+        assertSameTree(before, store.readSnapshot(first.getPath()));
+        assertSameTree(state, store.readSnapshot(second.getPath()));
+    }
+
+    @Test
+    public void testReadSnapshot_WidgetsAddedByOtherStore() throws Exception {
+        WidgetStore store = new WidgetStore(getStoreFolder());
+        WidgetStore otherStore = new WidgetStore(getStoreFolder());
+        AppState state = StateTreeGenerator.generate(500, 10);
+        writeSnapshot(store, state, 1);
+
+        state.getWidget("w7").setText("changed by other tester");
+        File file = writeSnapshot(otherStore, state, 2);
+
+        assertEquals(1, otherStore.getLastWrittenCount());
+        assertSameTree(state, store.readSnapshot(file.getPath()));
+    }
+
+    @Test
+    public void testWriteSnapshot_ReplacesIncompleteRecord() throws Exception {
+        AppState state = StateTreeGenerator.generate(500, 10);
+        File first = writeSnapshot(new WidgetStore(getStoreFolder()), state, 1);
+        long packSize = getPackSize();
+        Files.write(getStoreFolder().resolve("widgets.pack"), new byte[] {1, 2, 3, 4, 5}, StandardOpenOption.APPEND);
+
+        WidgetStore store = new WidgetStore(getStoreFolder());
+        state.getWidget("w3").setText("changed");
+        File second = writeSnapshot(store, state, 2);
+
+        assertEquals(1, store.getLastWrittenCount());
+        assertEquals(packSize + store.getLastWrittenBytes(), getPackSize());
+        assertSameTree(state, new WidgetStore(getStoreFolder()).readSnapshot(second.getPath()));
+        assertEquals(500, new WidgetStore(getStoreFolder()).readSnapshot(first.getPath()).getAllIncludingChildWidgets().size());
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadSnapshot_MissingWidget() throws Exception {
+        File file = writeSnapshot(new WidgetStore(getStoreFolder()), StateTreeGenerator.generate(100, 10), 1);
+        Files.delete(getStoreFolder().resolve("widgets.pack"));
+
+        new WidgetStore(getStoreFolder()).readSnapshot(file.getPath());
+    }
+
+    private Path getStoreFolder() {
+        return tempFolder.getRoot().toPath().resolve("widget-store");
+    }
+
+    private long getPackSize() throws IOException {
+        return Files.size(getStoreFolder().resolve("widgets.pack"));
+    }
+
+    private File writeSnapshot(WidgetStore store, AppState state, long modelVersion) throws IOException {
+        File file = tempFolder.newFile("state-" + modelVersion + ".store");
+        try (OutputStream out = new FileOutputStream(file)) {
+            store.writeSnapshot(out, state, modelVersion);
+        }
+        return file;
+    }
+}